@@ -0,0 +1,141 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * BTreeChanges keeps the tuples transactions insert into and delete from
+ * one B+ tree while it locks keys rather than pages (see BTreeFile), and
+ * the pages they change. Other transactions change the same pages in the
+ * meantime, so pages cannot be restored whole: an aborting transaction
+ * undoes its changes one tuple at a time, newest first, and a read-only
+ * transaction, which reads the current pages, puts back the changes its
+ * snapshot does not see.
+ * <p>
+ * A change is recorded while its writer still holds the latch on the leaf
+ * it changed, so a reader that holds latches on the leaves of a key range
+ * finds the pages and the changes in agreement.
+ *
+ * @Threadsafe
+ */
+class BTreeChanges {
+
+	/** A tuple inserted into or deleted from the tree. */
+	static final class Change {
+		final Tuple tuple; // a copy, which later changes to the tree leave alone
+		final boolean insert;
+
+		Change(Tuple tuple, boolean insert) {
+			this.tuple = tuple;
+			this.insert = insert;
+		}
+	}
+
+	/** The changes and pages of one transaction. */
+	private static final class Writer {
+		final ArrayList<Change> changes = new ArrayList<Change>();
+		final LinkedHashSet<PageId> pages = new LinkedHashSet<PageId>();
+		// the pool the transaction runs in
+		final BufferPool pool;
+		// the number of its commit, or 0 while it is running
+		long commit = 0;
+
+		Writer(BufferPool pool) {
+			this.pool = pool;
+		}
+	}
+
+	private final HashMap<TransactionId, Writer> running = new HashMap<TransactionId, Writer>();
+	// committed writers some open snapshot may not see, in commit order
+	private final ArrayList<Writer> committed = new ArrayList<Writer>();
+
+	/**
+	 * Notes that tid, running in pool, is about to change pid. A transaction
+	 * left running in a pool that has since been replaced is forgotten.
+	 *
+	 * @return true if tid had changed nothing in the tree in pool before
+	 */
+	synchronized boolean changedPage(TransactionId tid, PageId pid, BufferPool pool) {
+		Writer w = running.get(tid);
+		boolean first = w == null || w.pool != pool;
+		if (first) {
+			w = new Writer(pool);
+			running.put(tid, w);
+		}
+		w.pages.add(pid);
+		return first;
+	}
+
+	/** Records that tid inserted (or deleted) a tuple; t is a copy of it. */
+	synchronized void changed(TransactionId tid, Tuple t, boolean insert) {
+		running.get(tid).changes.add(new Change(t, insert));
+	}
+
+	/** Returns tid's latest change that has not been undone, or null. */
+	synchronized Change last(TransactionId tid) {
+		Writer w = running.get(tid);
+		return w == null || w.changes.isEmpty() ? null : w.changes.get(w.changes.size() - 1);
+	}
+
+	/** Drops tid's latest change, which has just been undone. */
+	synchronized void undone(TransactionId tid) {
+		ArrayList<Change> changes = running.get(tid).changes;
+		changes.remove(changes.size() - 1);
+	}
+
+	/** Returns the pages tid has changed, or null if it changed none. */
+	synchronized ArrayList<PageId> pages(TransactionId tid) {
+		Writer w = running.get(tid);
+		return w == null ? null : new ArrayList<PageId>(w.pages);
+	}
+
+	/**
+	 * Called when tid commits as number commit; snapshots taken after it
+	 * see its changes.
+	 */
+	synchronized void committed(TransactionId tid, long commit) {
+		Writer w = running.remove(tid);
+		if (w != null && !w.changes.isEmpty()) {
+			w.commit = commit;
+			w.pages.clear();
+			committed.add(w);
+		}
+	}
+
+	/** Called when tid has aborted and undone its changes. */
+	synchronized void aborted(TransactionId tid) {
+		running.remove(tid);
+	}
+
+	/**
+	 * Drops the changes of the commits in pool up to horizon, which every
+	 * snapshot sees, and those of commits in other pools.
+	 */
+	synchronized void prune(long horizon, BufferPool pool) {
+		Iterator<Writer> it = committed.iterator();
+		while (it.hasNext()) {
+			Writer w = it.next();
+			if (w.pool != pool || w.commit <= horizon) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Returns the changes a snapshot taken in pool does not see: those of
+	 * transactions running in pool and of commits after the snapshot.
+	 */
+	synchronized ArrayList<Change> unseen(long snapshot, BufferPool pool) {
+		ArrayList<Change> unseen = new ArrayList<Change>();
+		for (Writer w : running.values()) {
+			if (w.pool == pool) {
+				unseen.addAll(w.changes);
+			}
+		}
+		for (Writer w : committed) {
+			if (w.pool == pool && w.commit > snapshot) {
+				unseen.addAll(w.changes);
+			}
+		}
+		return unseen;
+	}
+}
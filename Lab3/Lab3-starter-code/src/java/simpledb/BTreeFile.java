@@ -1,7 +1,13 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
 
 import simpledb.Predicate.Op;
 
@@ -11,6 +17,9 @@ import simpledb.Predicate.Op;
  * a set of internal pages, and a set of leaf pages, which contain a collection of tuples
  * in sorted order. BTreeFile works closely with BTreeLeafPage, BTreeInternalPage,
  * and BTreeRootPtrPage. The format of these pages is described in their constructors.
+ * <p>
+ * Under IsolationLevel.SERIALIZABLE, transactions lock the keys of the tree
+ * rather than its pages; see {@link #locksKeys(TransactionId)}.
  * 
  * @see simpledb.BTreeLeafPage#BTreeLeafPage
  * @see simpledb.BTreeInternalPage#BTreeInternalPage
@@ -24,6 +33,19 @@ public class BTreeFile implements DbFile {
 	private final TupleDesc td;
 	private final int tableid ;
 	private int keyField;
+	// opened on first use and shared by all readers and writers; positional
+	// reads and writes leave the channel's own position alone
+	private volatile FileChannel channel;
+	// non-null while pages are read through a memory mapping of the file
+	private volatile MappedPages mapped;
+	// held while an operation reads or changes a page, apart from the locks
+	// its transaction holds until commit
+	final PageLatches latches = new PageLatches();
+	// held by the one operation at a time that splits or merges pages while
+	// transactions lock keys
+	private final ReentrantLock treeLatch = new ReentrantLock();
+	// the tuples and pages changed by transactions that lock keys
+	private final BTreeChanges changes = new BTreeChanges();
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -78,38 +100,21 @@ public class BTreeFile implements DbFile {
 	 */
 	public Page readPage(PageId pid) {
 		BTreePageId id = (BTreePageId) pid;
-		BufferedInputStream bis = null;
 
 		try {
-			bis = new BufferedInputStream(new FileInputStream(f));
 			if(id.pgcateg() == BTreePageId.ROOT_PTR) {
 				byte pageBuf[] = new byte[BTreeRootPtrPage.getPageSize()];
-				int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
-				if (retval == -1) {
-					throw new IllegalArgumentException("Read past end of table");
-				}
-				if (retval < BTreeRootPtrPage.getPageSize()) {
-					throw new IllegalArgumentException("Unable to read "
-							+ BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
-				}
+				read(pageBuf, 0);
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
 				BTreeRootPtrPage p = new BTreeRootPtrPage(id, pageBuf);
 				return p;
 			}
 			else {
-				byte pageBuf[] = new byte[BufferPool.getPageSize()];
-				if (bis.skip(BTreeRootPtrPage.getPageSize() + (id.getPageNumber()-1) * BufferPool.getPageSize()) !=
-						BTreeRootPtrPage.getPageSize() + (id.getPageNumber()-1) * BufferPool.getPageSize()) {
-					throw new IllegalArgumentException(
-							"Unable to seek to correct place in BTreeFile");
-				}
-				int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
-				if (retval == -1) {
-					throw new IllegalArgumentException("Read past end of table");
-				}
-				if (retval < BufferPool.getPageSize()) {
-					throw new IllegalArgumentException("Unable to read "
-							+ BufferPool.getPageSize() + " bytes from BTreeFile");
+				ByteBuffer pageBuf = mappedPage(id.getPageNumber());
+				if (pageBuf == null) {
+					byte[] bytes = new byte[BufferPool.getPageSize()];
+					read(bytes, offset(id.getPageNumber()));
+					pageBuf = ByteBuffer.wrap(bytes);
 				}
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
 				if(id.pgcateg() == BTreePageId.INTERNAL) {
@@ -127,14 +132,6 @@ public class BTreeFile implements DbFile {
 			}
 		} catch (IOException e) {
 			throw new RuntimeException(e);
-		} finally {
-			// Close the file on success or error
-			try {
-				if (bis != null)
-					bis.close();
-			} catch (IOException ioe) {
-				// Ignore failures closing the file
-			}
 		}
 	}
 
@@ -148,15 +145,104 @@ public class BTreeFile implements DbFile {
 		BTreePageId id = (BTreePageId) page.getId();
 		
 		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
 		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			rf.write(data);
-			rf.close();
+			write(data, 0);
 		}
 		else {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (page.getId().getPageNumber()-1) * BufferPool.getPageSize());
-			rf.write(data);
-			rf.close();
+			write(data, offset(id.getPageNumber()));
+		}
+	}
+
+	/**
+	 * Selects whether readPage() decodes internal, leaf and header pages
+	 * straight from a memory mapping of the file, rather than reading each
+	 * page into a new array first. Suits indexes that are mostly read and fit
+	 * in the operating system's page cache. The root pointer page, which is
+	 * smaller than the others, is always read from the file. Off by default.
+	 */
+	public void setMemoryMapped(boolean on) {
+		mapped = on ? new MappedPages(BTreeRootPtrPage.getPageSize(), BufferPool.getPageSize()) : null;
+	}
+
+	public boolean isMemoryMapped() {
+		return mapped != null;
+	}
+
+	/**
+	 * Returns a view of page pageNo in the memory mapping of the file, or
+	 * null if the file is not mapped or ends before the page does.
+	 */
+	private ByteBuffer mappedPage(int pageNo) throws IOException {
+		MappedPages m = mapped;
+		if (m == null || m.getPageSize() != BufferPool.getPageSize()) {
+			return null;
+		}
+		// page numbers start at 1 after the root pointer page
+		return m.page(channel(null), pageNo - 1);
+	}
+
+	/** Returns the offset in the file of the page numbered pageNo, which is not the root pointer. */
+	private static long offset(int pageNo) {
+		return BTreeRootPtrPage.getPageSize() + (long) (pageNo-1) * BufferPool.getPageSize();
+	}
+
+	/**
+	 * Returns the channel to the file, opening it if it is not open. A
+	 * channel closed under another thread, which happens when a thread is
+	 * interrupted in the middle of I/O on it, is replaced.
+	 */
+	private FileChannel channel(FileChannel closed) throws IOException {
+		FileChannel c = channel;
+		if (c != null && c != closed && c.isOpen()) {
+			return c;
+		}
+		synchronized (this) {
+			c = channel;
+			if (c == null || !c.isOpen()) {
+				c = FileChannel.open(f.toPath(), StandardOpenOption.CREATE,
+						StandardOpenOption.READ, StandardOpenOption.WRITE);
+				channel = c;
+			}
+			return c;
+		}
+	}
+
+	/** Fills buf with the bytes of the file from offset on. */
+	private void read(byte[] buf, long offset) throws IOException {
+		ByteBuffer data = ByteBuffer.wrap(buf);
+		FileChannel c = channel(null);
+		while (data.hasRemaining()) {
+			int n;
+			try {
+				n = c.read(data, offset + data.position());
+			} catch (ClosedByInterruptException e) {
+				throw e;
+			} catch (ClosedChannelException e) {
+				c = channel(c);
+				continue;
+			}
+			if (n < 0) {
+				if (data.position() == 0) {
+					throw new IllegalArgumentException("Read past end of table");
+				}
+				throw new IllegalArgumentException("Unable to read "
+						+ buf.length + " bytes from BTreeFile");
+			}
+		}
+	}
+
+	/** Writes buf to the file at offset. */
+	private void write(byte[] buf, long offset) throws IOException {
+		ByteBuffer data = ByteBuffer.wrap(buf);
+		FileChannel c = channel(null);
+		while (data.hasRemaining()) {
+			try {
+				c.write(data, offset + data.position());
+			} catch (ClosedByInterruptException e) {
+				throw e;
+			} catch (ClosedChannelException e) {
+				c = channel(c);
+			}
 		}
 	}
 	
@@ -176,10 +262,26 @@ public class BTreeFile implements DbFile {
 	}
 
 	/**
-	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
-	 * the left-most page possibly containing the key field f. It locks all internal
-	 * nodes along the path to the leaf node with READ_ONLY permission, and locks the 
-	 * leaf node with permission perm.
+	 * Finds and locks the leaf page in the B+ tree corresponding to the left-most
+	 * page possibly containing the key field f, locking the leaf node with
+	 * permission perm.
+	 * 
+	 * Internal nodes are only needed to route the descent, so they are latched
+	 * rather than locked: each internal node is read under a read latch, which is
+	 * released once the child is latched or, for the leaf, locked (latch
+	 * crabbing). A split or merge holds write latches on the pages it changes
+	 * until the operation ends, so a descent never reads a half-changed node. The
+	 * leaf lock is held until the transaction completes, as are the locks on any
+	 * internal node a split or merge later modifies.
+	 * 
+	 * A descent never waits while it holds a latch. If a node is latched by a
+	 * writer, or the leaf cannot be locked at once, the latches are dropped, the
+	 * descent waits for the lock, and it starts again from the root; a leaf locked
+	 * while no latch was held is only returned once a descent has led to it
+	 * again. A leaf locked while its parent was latched is the right one even if
+	 * the parent holds changes its writer will undo, because a leaf's key range
+	 * only changes when the leaf itself is changed, and the writer then holds its
+	 * lock. A read first tries a descent that holds no latch across levels at all.
 	 * 
 	 * If f is null, it finds the left-most leaf page -- used for the iterator
 	 * 
@@ -188,14 +290,263 @@ public class BTreeFile implements DbFile {
 	 * @param pid - the current page being searched
 	 * @param perm - the permissions with which to lock the leaf page
 	 * @param f - the field to search for
-	 * @return the left-most leaf page possibly containing the key field f
+	 * @return the left-most leaf page possibly containing the key field f; for a read,
+	 * possibly a leaf to its left
+	 * @see #findLeafPageUncoupled(TransactionId, HashMap, BTreePageId, Field)
 	 * 
 	 */
 	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
 			Field f) 
 					throws DbException, TransactionAbortedException {
-		// some code goes here
-        return null;
+		if(perm == Permissions.READ_ONLY) {
+			BTreeLeafPage leaf = findLeafPageUncoupled(tid, dirtypages, pid, f);
+			if(leaf != null) {
+				return leaf;
+			}
+		}
+
+		BTreePageId rootId = pid;
+		// a leaf locked while no latch was held, and whether it had been locked before
+		BTreePageId locked = null;
+		boolean lockedHeld = false;
+		while(true) {
+			// the internal page whose latch is released once its child is latched
+			BTreePageId latched = null;
+			pid = rootId;
+			while(pid.pgcateg() != BTreePageId.LEAF) {
+				BTreeInternalPage page = readLatched(tid, dirtypages, pid);
+				if(page == null) {
+					break;
+				}
+				unlatch(latched);
+				latched = pid;
+				BTreePageId child = route(page, f);
+				if(child == null) {
+					unlatch(latched);
+					throw new DbException("internal page " + pid + " has no entries");
+				}
+				pid = child;
+			}
+			if(pid.pgcateg() != BTreePageId.LEAF) {
+				// a split or merge holds pid's latch: wait for it to finish
+				unlatch(latched);
+				awaitWriter(tid, dirtypages, pid, Permissions.READ_ONLY, false);
+				continue;
+			}
+
+			if(pid.equals(locked)) {
+				unlatch(latched);
+				return (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
+			}
+			if(locked != null && !lockedHeld) {
+				Database.getBufferPool().releasePage(tid, locked);
+			}
+			boolean held = holds(tid, dirtypages, pid);
+			Page leaf = dirtypages.containsKey(pid) ? dirtypages.get(pid)
+					: Database.getBufferPool().getPageNoWait(tid, pid, perm);
+			unlatch(latched);
+			if(leaf != null) {
+				// the lock is held now, so this does not wait
+				return (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
+			}
+			awaitWriter(tid, dirtypages, pid, perm, true);
+			locked = pid;
+			lockedHeld = held;
+		}
+	}
+
+	/**
+	 * Finds the leaf page for a read without holding a latch on more than one level
+	 * at a time, in the manner of a B-link tree: the latch on each internal node is
+	 * released before the child is latched, so a reader never holds up a writer on
+	 * the level above it.
+	 * 
+	 * The child may then be split, or lose keys to a sibling, before it is latched.
+	 * Keys only move right in a split, and the search iterators already follow
+	 * the right-sibling links of the leaves until they pass f, so a leaf to the
+	 * left of the one holding f is still a correct place to start. So is a leaf
+	 * whose first key is below f, and one whose left sibling's high key is below
+	 * f, since no key to its left is greater than that. A leaf is not if keys
+	 * equal to f may be in its left sibling, if it has lost keys to that sibling
+	 * since the parent was read, or if it has been emptied by a merge; null is
+	 * returned and the caller descends again with latch crabbing, as it does if
+	 * the descent meets a node a writer has latched.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pid - the root page
+	 * @param f - the field to search for, or null for the left-most leaf
+	 * @return a read-locked leaf page at or to the left of the left-most leaf possibly
+	 * containing f, or null if the descent has to be repeated
+	 */
+	private BTreeLeafPage findLeafPageUncoupled(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid,
+			Field f) 
+					throws DbException, TransactionAbortedException {
+		if(pid.pgcateg() == BTreePageId.LEAF) {
+			// the root; the caller's lock on the root pointer keeps it the root
+			return (BTreeLeafPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+		}
+		while(pid.pgcateg() != BTreePageId.LEAF) {
+			BTreeInternalPage page = readLatched(tid, dirtypages, pid);
+			if(page == null) {
+				return null;
+			}
+			BTreePageId child = route(page, f);
+			unlatch(pid);
+			if(child == null) { // merged away
+				return null;
+			}
+			pid = child;
+		}
+
+		// the leaf is read under a latch too, which the descent may wait for as
+		// it holds no other
+		boolean latching = Database.getBufferPool().locksReads(tid) && !dirtypages.containsKey(pid);
+		while(true) {
+			if(latching) {
+				latches.readLatch(pid);
+			}
+			boolean held = holds(tid, dirtypages, pid);
+			BTreeLeafPage leaf = (BTreeLeafPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+			boolean start = false;
+			BTreePageId busy = null;
+			Iterator<Tuple> it = leaf.iterator();
+			BTreePageId leftId = leaf.getLeftSiblingId();
+			if(it.hasNext() && leftId == null) {
+				start = true;
+			}
+			else if(it.hasNext() && f != null) {
+				// keys equal to f may continue in the left sibling, unless its
+				// high key is below f
+				if(it.next().getField(keyField).compare(Op.LESS_THAN, f)) {
+					start = true;
+				}
+				else if(latching && !dirtypages.containsKey(leftId) && !latches.tryReadLatch(leftId)) {
+					busy = leftId;
+				}
+				else {
+					start = highKeyBelow(tid, dirtypages, leftId, pid, f);
+					if(latching) {
+						unlatch(leftId);
+					}
+				}
+			}
+			if(latching) {
+				unlatch(pid);
+			}
+			if(start) {
+				return leaf;
+			}
+			if(!held) {
+				Database.getBufferPool().releasePage(tid, pid);
+			}
+			if(busy == null) {
+				return null;
+			}
+			// a split or merge holds the left sibling's latch, and may be waiting
+			// for the leaf's
+			latches.await(busy, false);
+		}
+	}
+
+	/**
+	 * Returns true if the high key of the leaf leftId, whose right sibling is
+	 * pid, is below f. The caller holds pid, whose left sibling then cannot
+	 * change its high key.
+	 */
+	private boolean highKeyBelow(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId leftId,
+			BTreePageId pid, Field f) throws DbException, TransactionAbortedException {
+		boolean held = holds(tid, dirtypages, leftId);
+		BTreeLeafPage left = (BTreeLeafPage) getPage(tid, dirtypages, leftId, Permissions.READ_ONLY);
+		Field high = left.getHighKey();
+		boolean below = pid.equals(left.getRightSiblingId()) && high != null && high.compare(Op.LESS_THAN, f);
+		if(!held) {
+			Database.getBufferPool().releasePage(tid, leftId);
+		}
+		return below;
+	}
+
+	/**
+	 * Returns the child of an internal page to descend to in search of the
+	 * left-most leaf possibly containing f, or null if the page has no entries.
+	 */
+	private BTreePageId route(BTreeInternalPage page, Field f) {
+		Iterator<BTreeEntry> it = page.iterator();
+		BTreeEntry e = null;
+		while(it.hasNext()) {
+			e = it.next();
+			// keys equal to an entry's key may also be in its left subtree
+			if(f == null || f.compare(Op.LESS_THAN_OR_EQ, e.getKey())) {
+				return e.getLeftChild();
+			}
+		}
+		return (e == null) ? null : e.getRightChild();
+	}
+
+	/**
+	 * Returns true if tid already has pid locked or dirtied, so that a descent
+	 * must not release it.
+	 */
+	private boolean holds(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid) {
+		return dirtypages.containsKey(pid) || Database.getBufferPool().holdsLock(tid, pid);
+	}
+
+	/**
+	 * Reads an internal page for a descent under a read latch, without locking it.
+	 * A page this operation is changing is already write-latched, and a
+	 * transaction that does not lock its reads reads its own versions of pages,
+	 * so neither takes a latch.
+	 * 
+	 * @return the page, or null if a split or merge holds its latch
+	 */
+	private BTreeInternalPage readLatched(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid)
+			throws DbException {
+		if(dirtypages.containsKey(pid)) {
+			return (BTreeInternalPage) dirtypages.get(pid);
+		}
+		BufferPool bp = Database.getBufferPool();
+		if(bp.locksReads(tid) && !latches.tryReadLatch(pid)) {
+			return null;
+		}
+		return (BTreeInternalPage) bp.getUnlockedPage(tid, pid);
+	}
+
+	/**
+	 * Releases the read latch that a descent took on a page.
+	 * 
+	 * @param pid - the page, or null if there is nothing to release
+	 */
+	private void unlatch(BTreePageId pid) {
+		if(pid != null) {
+			latches.readUnlatch(pid);
+		}
+	}
+
+	/**
+	 * Waits, holding no latch, for the transaction that has pid locked to finish
+	 * changing the tree. A writer latches only pages it has locked, and keeps the
+	 * lock until it commits or aborts, so once tid's lock is granted the latch is
+	 * free.
+	 * 
+	 * @param keep - whether tid keeps the lock; otherwise it is released, unless
+	 * tid held it before
+	 */
+	private void awaitWriter(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid,
+			Permissions perm, boolean keep) throws DbException, TransactionAbortedException {
+		boolean held = holds(tid, dirtypages, pid);
+		Database.getBufferPool().getPage(tid, pid, perm);
+		if(!keep && !held) {
+			Database.getBufferPool().releasePage(tid, pid);
+		}
+	}
+
+	/**
+	 * Releases the write latches an operation took on the pages it changed.
+	 */
+	private void unlatchAll(HashMap<PageId, Page> dirtypages) {
+		for(PageId pid : dirtypages.keySet()) {
+			latches.writeUnlatch(pid);
+		}
 	}
 	
 	/**
@@ -230,7 +581,7 @@ public class BTreeFile implements DbFile {
 	 * @param page - the leaf page to split
 	 * @param field - the key field of the tuple to be inserted after the split is complete. Necessary to know
 	 * which of the two pages to return.
-	 * @see #getParentWithEmptySlots(TransactionId, HashMap, BTreePageId, Field)
+	 * @see #getParentWithEmptySlots(TransactionId, HashMap, BTreePage, Field)
 	 * 
 	 * @return the leaf page into which the new tuple should be inserted
 	 * @throws DbException
@@ -239,16 +590,44 @@ public class BTreeFile implements DbFile {
 	 */
 	protected BTreeLeafPage splitLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreeLeafPage page, Field field) 
 			throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        //
-        // Split the leaf page by adding a new page on the right of the existing
-		// page and moving half of the tuples to the new page.  Copy the middle key up
-		// into the parent page, and recursively split the parent as needed to accommodate
-		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
-		// the sibling pointers of all the affected leaf pages.  Return the page into which a 
-		// tuple with the given key field should be inserted.
-        return null;
-		
+		BTreeLeafPage rightPage = (BTreeLeafPage) getEmptyPage(tid, dirtypages, BTreePageId.LEAF);
+
+		// move the upper half of the tuples to the new page
+		ArrayList<Tuple> moved = new ArrayList<Tuple>();
+		Iterator<Tuple> it = page.reverseIterator();
+		int moveCount = page.getNumTuples() / 2;
+		while(moved.size() < moveCount && it.hasNext()) {
+			moved.add(it.next());
+		}
+		for(Tuple t : moved) {
+			page.deleteTuple(t);
+			rightPage.insertTuple(t);
+		}
+
+		// link the new page in between page and its right sibling
+		BTreePageId oldRightId = page.getRightSiblingId();
+		rightPage.setLeftSiblingId(page.getId());
+		rightPage.setRightSiblingId(oldRightId);
+		page.setRightSiblingId(rightPage.getId());
+		if(oldRightId != null) {
+			BTreeLeafPage oldRight = (BTreeLeafPage) getPage(tid, dirtypages, oldRightId, Permissions.READ_WRITE);
+			oldRight.setLeftSiblingId(rightPage.getId());
+		}
+
+		// copy the first key of the new page up into the parent; it is the
+		// high key of page, and the new page takes over page's old one
+		Field splitKey = rightPage.iterator().next().getField(keyField);
+		rightPage.setHighKey(page.getHighKey());
+		page.setHighKey(splitKey);
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page, splitKey);
+		parent.insertEntry(new BTreeEntry(splitKey, page.getId(), rightPage.getId()));
+		page.setParentId(parent.getId());
+		rightPage.setParentId(parent.getId());
+
+		if(field.compare(Op.GREATER_THAN, splitKey)) {
+			return rightPage;
+		}
+		return page;
 	}
 	
 	/**
@@ -265,7 +644,7 @@ public class BTreeFile implements DbFile {
 	 * @param page - the internal page to split
 	 * @param field - the key field of the entry to be inserted after the split is complete. Necessary to know
 	 * which of the two pages to return.
-	 * @see #getParentWithEmptySlots(TransactionId, HashMap, BTreePageId, Field)
+	 * @see #getParentWithEmptySlots(TransactionId, HashMap, BTreePage, Field)
 	 * @see #updateParentPointers(TransactionId, HashMap, BTreeInternalPage)
 	 * 
 	 * @return the internal page into which the new entry should be inserted
@@ -276,16 +655,35 @@ public class BTreeFile implements DbFile {
 	protected BTreeInternalPage splitInternalPage(TransactionId tid, HashMap<PageId, Page> dirtypages, 
 			BTreeInternalPage page, Field field) 
 					throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        //
-        // Split the internal page by adding a new page on the right of the existing
-		// page and moving half of the entries to the new page.  Push the middle key up
-		// into the parent page, and recursively split the parent as needed to accommodate
-		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
-		// the parent pointers of all the children moving to the new page.  updateParentPointers()
-		// will be useful here.  Return the page into which an entry with the given key field
-		// should be inserted.
-		return null;
+		BTreeInternalPage rightPage = (BTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
+
+		// move the upper half of the entries to the new page, and take the
+		// entry just below them out to push it up
+		ArrayList<BTreeEntry> moved = new ArrayList<BTreeEntry>();
+		Iterator<BTreeEntry> it = page.reverseIterator();
+		int moveCount = page.getNumEntries() / 2;
+		while(moved.size() < moveCount && it.hasNext()) {
+			moved.add(it.next());
+		}
+		BTreeEntry middle = it.next();
+		for(BTreeEntry e : moved) {
+			page.deleteKeyAndRightChild(e);
+			rightPage.insertEntry(e);
+		}
+		page.deleteKeyAndRightChild(middle);
+
+		middle.setLeftChild(page.getId());
+		middle.setRightChild(rightPage.getId());
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page, middle.getKey());
+		parent.insertEntry(middle);
+		page.setParentId(parent.getId());
+		rightPage.setParentId(parent.getId());
+		updateParentPointers(tid, dirtypages, rightPage);
+
+		if(field.compare(Op.GREATER_THAN, middle.getKey())) {
+			return rightPage;
+		}
+		return page;
 	}
 	
 	/**
@@ -295,19 +693,21 @@ public class BTreeFile implements DbFile {
 	 *
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
-	 * @param parentId - the id of the parent. May be an internal page or the RootPtr page
+	 * @param page - the page whose parent is wanted. Its parent may be an internal page or the RootPtr page
 	 * @param field - the key of the entry which will be inserted. Needed in case the parent must be split
 	 * to accommodate the new entry
 	 * @return the parent page, guaranteed to have at least one empty slot
 	 * @see #splitInternalPage(TransactionId, HashMap, BTreeInternalPage, Field)
+	 * @see #getParent(TransactionId, HashMap, BTreePage)
 	 * 
 	 * @throws DbException
 	 * @throws IOException
 	 * @throws TransactionAbortedException
 	 */
 	private BTreeInternalPage getParentWithEmptySlots(TransactionId tid, HashMap<PageId, Page> dirtypages, 
-			BTreePageId parentId, Field field) throws DbException, IOException, TransactionAbortedException {
+			BTreePage page, Field field) throws DbException, IOException, TransactionAbortedException {
 		
+		BTreePageId parentId = page.getParentId();
 		BTreeInternalPage parent = null;
 		
 		// create a parent node if necessary
@@ -327,8 +727,7 @@ public class BTreeFile implements DbFile {
 		}
 		else { 
 			// lock the parent page
-			parent = (BTreeInternalPage) getPage(tid, dirtypages, parentId, 
-					Permissions.READ_WRITE);
+			parent = getParent(tid, dirtypages, page);
 		}
 
 		// split the parent if needed
@@ -340,6 +739,44 @@ public class BTreeFile implements DbFile {
 
 	}
 
+	/**
+	 * Locks the internal page that is the parent of page for writing, and checks
+	 * that it still has page as a child. The descent that led to page released
+	 * the parent's latch long before, but page is locked, and no one can move it
+	 * to another parent without its lock, so a parent that has lost page means
+	 * the tree is corrupt. The check is repeated if page's parent pointer changed
+	 * while the lock was awaited. A parent with no entries yet, like a new root,
+	 * passes.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param page - the locked page whose parent is wanted; its parent is not the RootPtr page
+	 * @return the parent page, locked for writing
+	 * @throws DbException if the parent has no entry for page
+	 * @throws TransactionAbortedException
+	 */
+	private BTreeInternalPage getParent(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePage page)
+			throws DbException, TransactionAbortedException {
+		while(true) {
+			BTreePageId parentId = page.getParentId();
+			BTreeInternalPage parent = (BTreeInternalPage) getPage(tid, dirtypages, parentId, Permissions.READ_WRITE);
+			Iterator<BTreeEntry> it = parent.iterator();
+			if(!it.hasNext()) {
+				return parent;
+			}
+			while(it.hasNext()) {
+				BTreeEntry e = it.next();
+				if(e.getLeftChild().equals(page.getId()) || e.getRightChild().equals(page.getId())) {
+					return parent;
+				}
+			}
+			if(page.getParentId().equals(parentId)) {
+				throw new DbException("page " + page.getId().getPageNumber() + " is not a child of its parent "
+						+ parentId.getPageNumber());
+			}
+		}
+	}
+
 	/**
 	 * Helper function to update the parent pointer of a node.
 	 * 
@@ -394,7 +831,8 @@ public class BTreeFile implements DbFile {
 	 * Method to encapsulate the process of locking/fetching a page.  First the method checks the local 
 	 * cache ("dirtypages"), and if it can't find the requested page there, it fetches it from the buffer pool.  
 	 * It also adds pages to the dirtypages cache if they are fetched with read-write permission, since 
-	 * presumably they will soon be dirtied by this transaction.
+	 * presumably they will soon be dirtied by this transaction, and write-latches them until the
+	 * operation ends, so that descents through them wait for the transaction's lock instead.
 	 * 
 	 * This method is needed to ensure that page updates are not lost if the same pages are
 	 * accessed multiple times.
@@ -414,9 +852,20 @@ public class BTreeFile implements DbFile {
 		if(dirtypages.containsKey(pid)) {
 			return dirtypages.get(pid);
 		}
+		else if(locksKeys(tid)) {
+			// pages are latched but not locked; see locksKeys()
+			if(perm == Permissions.READ_ONLY) {
+				return Database.getBufferPool().getCurrentPage(pid);
+			}
+			latches.writeLatch(pid);
+			Page p = Database.getBufferPool().getCurrentPage(pid);
+			dirtypages.put(pid, p);
+			return p;
+		}
 		else {
 			Page p = Database.getBufferPool().getPage(tid, pid, perm);
 			if(perm == Permissions.READ_WRITE) {
+				latches.writeLatch(pid);
 				dirtypages.put(pid, p);
 			}
 			return p;
@@ -435,28 +884,34 @@ public class BTreeFile implements DbFile {
 	 */
 	public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
+		if(locksKeys(tid)) {
+			return new ArrayList<Page>(changeKeyLocked(tid, t, true, null).values());
+		}
 		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		try {
+			// get a read lock on the root pointer page and use it to locate the root page
+			BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
+			BTreePageId rootId = rootPtr.getRootId();
+
+			if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
+				rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
+				rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+				rootPtr.setRootId(rootId);
+			}
 
-		// get a read lock on the root pointer page and use it to locate the root page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId rootId = rootPtr.getRootId();
-
-		if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
-			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			rootPtr.setRootId(rootId);
-		}
+			// find and lock the left-most leaf page corresponding to the key field,
+			// and split the leaf page if there are no more slots available
+			BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+			if(leafPage.getNumEmptySlots() == 0) {
+				leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
+			}
 
-		// find and lock the left-most leaf page corresponding to the key field,
-		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
-		if(leafPage.getNumEmptySlots() == 0) {
-			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
+			// insert the tuple into the leaf page
+			leafPage.insertTuple(t);
+		} finally {
+			unlatchAll(dirtypages);
 		}
 
-		// insert the tuple into the leaf page
-		leafPage.insertTuple(t);
-
 		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
 		dirtyPagesArr.addAll(dirtypages.values());
 		return dirtyPagesArr;
@@ -488,7 +943,7 @@ public class BTreeFile implements DbFile {
 		// the same parent as the page. Find the entries in the parent corresponding to 
 		// the page and siblings
 		if(parentId.pgcateg() != BTreePageId.ROOT_PTR) {
-			parent = (BTreeInternalPage) getPage(tid, dirtypages, parentId, Permissions.READ_WRITE);
+			parent = getParent(tid, dirtypages, page);
 			Iterator<BTreeEntry> ite = parent.iterator();
 			while(ite.hasNext()) {
 				BTreeEntry e = ite.next();
@@ -576,11 +1031,23 @@ public class BTreeFile implements DbFile {
 	 */
 	protected void stealFromLeafPage(BTreeLeafPage page, BTreeLeafPage sibling,
 			BTreeInternalPage parent, BTreeEntry entry, boolean isRightSibling) throws DbException {
-		// some code goes here
-        //
-        // Move some of the tuples from the sibling to the page so
-		// that the tuples are evenly distributed. Be sure to update
-		// the corresponding parent entry.
+		// take the tuples next to page from the sibling
+		ArrayList<Tuple> moved = new ArrayList<Tuple>();
+		Iterator<Tuple> it = isRightSibling ? sibling.iterator() : sibling.reverseIterator();
+		int moveCount = (sibling.getNumTuples() - page.getNumTuples()) / 2;
+		while(moved.size() < moveCount && it.hasNext()) {
+			moved.add(it.next());
+		}
+		for(Tuple t : moved) {
+			sibling.deleteTuple(t);
+			page.insertTuple(t);
+		}
+
+		BTreeLeafPage rightPage = isRightSibling ? sibling : page;
+		BTreeLeafPage leftPage = isRightSibling ? page : sibling;
+		entry.setKey(rightPage.iterator().next().getField(keyField));
+		parent.updateEntry(entry);
+		leftPage.setHighKey(entry.getKey());
 	}
 
 	/**
@@ -656,11 +1123,26 @@ public class BTreeFile implements DbFile {
 	protected void stealFromLeftInternalPage(TransactionId tid, HashMap<PageId, Page> dirtypages, 
 			BTreeInternalPage page, BTreeInternalPage leftSibling, BTreeInternalPage parent,
 			BTreeEntry parentEntry) throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        // Move some of the entries from the left sibling to the page so
-		// that the entries are evenly distributed. Be sure to update
-		// the corresponding parent entry. Be sure to update the parent
-		// pointers of all children in the entries that were moved.
+		ArrayList<BTreeEntry> moved = new ArrayList<BTreeEntry>();
+		Iterator<BTreeEntry> it = leftSibling.reverseIterator();
+		int moveCount = (leftSibling.getNumEntries() - page.getNumEntries()) / 2;
+		while(moved.size() < moveCount && it.hasNext()) {
+			moved.add(it.next());
+		}
+
+		// each key rotates through the parent: the parent's key comes down
+		// in front of page's entries and the moved key replaces it
+		Field key = parentEntry.getKey();
+		BTreePageId rightChild = page.iterator().next().getLeftChild();
+		for(BTreeEntry e : moved) {
+			leftSibling.deleteKeyAndRightChild(e);
+			page.insertEntry(new BTreeEntry(key, e.getRightChild(), rightChild));
+			rightChild = e.getRightChild();
+			key = e.getKey();
+		}
+		parentEntry.setKey(key);
+		parent.updateEntry(parentEntry);
+		updateParentPointers(tid, dirtypages, page);
 	}
 	
 	/**
@@ -684,11 +1166,26 @@ public class BTreeFile implements DbFile {
 	protected void stealFromRightInternalPage(TransactionId tid, HashMap<PageId, Page> dirtypages, 
 			BTreeInternalPage page, BTreeInternalPage rightSibling, BTreeInternalPage parent,
 			BTreeEntry parentEntry) throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        // Move some of the entries from the right sibling to the page so
-		// that the entries are evenly distributed. Be sure to update
-		// the corresponding parent entry. Be sure to update the parent
-		// pointers of all children in the entries that were moved.
+		ArrayList<BTreeEntry> moved = new ArrayList<BTreeEntry>();
+		Iterator<BTreeEntry> it = rightSibling.iterator();
+		int moveCount = (rightSibling.getNumEntries() - page.getNumEntries()) / 2;
+		while(moved.size() < moveCount && it.hasNext()) {
+			moved.add(it.next());
+		}
+
+		// each key rotates through the parent: the parent's key comes down
+		// after page's entries and the moved key replaces it
+		Field key = parentEntry.getKey();
+		BTreePageId leftChild = page.reverseIterator().next().getRightChild();
+		for(BTreeEntry e : moved) {
+			rightSibling.deleteKeyAndLeftChild(e);
+			page.insertEntry(new BTreeEntry(key, leftChild, e.getLeftChild()));
+			leftChild = e.getLeftChild();
+			key = e.getKey();
+		}
+		parentEntry.setKey(key);
+		parent.updateEntry(parentEntry);
+		updateParentPointers(tid, dirtypages, page);
 	}
 	
 	/**
@@ -712,13 +1209,27 @@ public class BTreeFile implements DbFile {
 	protected void mergeLeafPages(TransactionId tid, HashMap<PageId, Page> dirtypages, 
 			BTreeLeafPage leftPage, BTreeLeafPage rightPage, BTreeInternalPage parent, BTreeEntry parentEntry) 
 					throws DbException, IOException, TransactionAbortedException {
+		ArrayList<Tuple> moved = new ArrayList<Tuple>();
+		Iterator<Tuple> it = rightPage.iterator();
+		while(it.hasNext()) {
+			moved.add(it.next());
+		}
+		for(Tuple t : moved) {
+			rightPage.deleteTuple(t);
+			leftPage.insertTuple(t);
+		}
 
-		// some code goes here
-        //
-		// Move all the tuples from the right page to the left page, update
-		// the sibling pointers, and make the right page available for reuse.
-		// Delete the entry in the parent corresponding to the two pages that are merging -
-		// deleteParentEntry() will be useful here
+		// unlink the right page
+		BTreePageId nextId = rightPage.getRightSiblingId();
+		leftPage.setHighKey(rightPage.getHighKey());
+		leftPage.setRightSiblingId(nextId);
+		if(nextId != null) {
+			BTreeLeafPage next = (BTreeLeafPage) getPage(tid, dirtypages, nextId, Permissions.READ_WRITE);
+			next.setLeftSiblingId(leftPage.getId());
+		}
+
+		setEmptyPage(tid, dirtypages, rightPage.getId().getPageNumber());
+		deleteParentEntry(tid, dirtypages, leftPage, parent, parentEntry);
 	}
 
 	/**
@@ -744,14 +1255,24 @@ public class BTreeFile implements DbFile {
 	protected void mergeInternalPages(TransactionId tid, HashMap<PageId, Page> dirtypages, 
 			BTreeInternalPage leftPage, BTreeInternalPage rightPage, BTreeInternalPage parent, BTreeEntry parentEntry) 
 					throws DbException, IOException, TransactionAbortedException {
-		
-		// some code goes here
-        //
-        // Move all the entries from the right page to the left page, update
-		// the parent pointers of the children in the entries that were moved, 
-		// and make the right page available for reuse
-		// Delete the entry in the parent corresponding to the two pages that are merging -
-		// deleteParentEntry() will be useful here
+		ArrayList<BTreeEntry> moved = new ArrayList<BTreeEntry>();
+		Iterator<BTreeEntry> it = rightPage.iterator();
+		while(it.hasNext()) {
+			moved.add(it.next());
+		}
+
+		// pull the parent's key down between the two pages' entries
+		BTreePageId leftChild = leftPage.reverseIterator().next().getRightChild();
+		BTreePageId rightChild = moved.get(0).getLeftChild();
+		leftPage.insertEntry(new BTreeEntry(parentEntry.getKey(), leftChild, rightChild));
+		for(BTreeEntry e : moved) {
+			rightPage.deleteKeyAndLeftChild(e);
+			leftPage.insertEntry(e);
+		}
+		updateParentPointers(tid, dirtypages, leftPage);
+
+		setEmptyPage(tid, dirtypages, rightPage.getId().getPageNumber());
+		deleteParentEntry(tid, dirtypages, leftPage, parent, parentEntry);
 	}
 	
 	/**
@@ -814,18 +1335,24 @@ public class BTreeFile implements DbFile {
 	 */
 	public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) 
 			throws DbException, IOException, TransactionAbortedException {
+		if(locksKeys(tid)) {
+			return new ArrayList<Page>(changeKeyLocked(tid, t, false, null).values());
+		}
 		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
-
-		BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().getPageNumber(),
-				BTreePageId.LEAF);
-		BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
-		page.deleteTuple(t);
-
-		// if the page is below minimum occupancy, get some tuples from its siblings
-		// or merge with one of the siblings
-		int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
-		if(page.getNumEmptySlots() > maxEmptySlots) { 
-			handleMinOccupancyPage(tid, dirtypages, page);
+		try {
+			BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().getPageNumber(),
+					BTreePageId.LEAF);
+			BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
+			page.deleteTuple(t);
+
+			// if the page is below minimum occupancy, get some tuples from its siblings
+			// or merge with one of the siblings
+			int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
+			if(page.getNumEmptySlots() > maxEmptySlots) { 
+				handleMinOccupancyPage(tid, dirtypages, page);
+			}
+		} finally {
+			unlatchAll(dirtypages);
 		}
 
 		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
@@ -833,6 +1360,640 @@ public class BTreeFile implements DbFile {
 		return dirtyPagesArr;
 	}
 
+	/**
+	 * Returns true if tid locks the keys it reads and writes in this file
+	 * rather than its pages, as every transaction that is not read-only does
+	 * under IsolationLevel.SERIALIZABLE.
+	 * <p>
+	 * A reader then locks each key it reads S, and the first key past the
+	 * range it reads, or the end of the index, too, so that no key can be
+	 * inserted into the range before it commits (next-key locking). A writer
+	 * locks the key it inserts or deletes X. An insert also locks the next key
+	 * X, for the duration of the insert only, which makes it wait for a reader
+	 * that has scanned the gap; a delete keeps the next key locked until it
+	 * commits, since the gap below that key has grown. Writers of different
+	 * keys on the same leaf thus go ahead at the same time.
+	 * <p>
+	 * Pages are not locked, only latched while an operation reads or changes
+	 * them. An operation takes latches and key locks without waiting; if one
+	 * is busy, it releases every latch, waits for it, and starts again. Splits
+	 * and merges are made by one operation at a time, which holds the tree
+	 * latch and may wait for page latches. They are never undone: an abort
+	 * undoes the transaction's inserts and deletes one by one instead (see
+	 * BTreeChanges), and the pages a transaction changed are written out when
+	 * it completes.
+	 */
+	boolean locksKeys(TransactionId tid) {
+		BufferPool bp = Database.getBufferPool();
+		return bp.locksKeys() && !bp.isReadOnly(tid);
+	}
+
+	/**
+	 * Inserts t, or deletes it, for a transaction that locks keys; see
+	 * locksKeys(). An attempt that cannot go on without waiting, or without
+	 * splitting or merging pages, starts over, holding the tree latch in the
+	 * second case.
+	 * 
+	 * @param undo - the change this undoes as tid aborts, or null. An undo
+	 * takes no key locks: tid still holds those of the change.
+	 * @return the pages the operation changed
+	 */
+	private HashMap<PageId, Page> changeKeyLocked(TransactionId tid, Tuple t, boolean insert,
+			BTreeChanges.Change undo) throws DbException, IOException, TransactionAbortedException {
+		// the next keys an insert locks for its own duration, and the modes
+		// tid held them in before
+		HashMap<LockManager.IndexKey, LockManager.Mode> instant = new HashMap<LockManager.IndexKey, LockManager.Mode>();
+		boolean structural = false;
+		try {
+			while(true) {
+				if(structural) {
+					treeLatch.lock();
+				}
+				LatchedOp op = new LatchedOp(tid, structural);
+				try {
+					if(insert ? insertLatched(op, t, undo, instant) : deleteLatched(op, t, undo)) {
+						// recorded under the latches, for readers of snapshots
+						changedPages(tid, op.dirtypages);
+						if(undo == null) {
+							changes.changed(tid, copy(t), insert);
+						}
+						else {
+							changes.undone(tid);
+						}
+						return op.dirtypages;
+					}
+				} finally {
+					op.release();
+					if(structural) {
+						treeLatch.unlock();
+					}
+				}
+				structural |= op.needsTree;
+				op.await();
+			}
+		} finally {
+			for(Map.Entry<LockManager.IndexKey, LockManager.Mode> e : instant.entrySet()) {
+				Database.getBufferPool().restoreKeyLock(tid, tableid, e.getKey().key, e.getValue());
+			}
+		}
+	}
+
+	/**
+	 * One attempt at inserting t for a transaction that locks keys.
+	 * 
+	 * @return false if the attempt failed and has to start over
+	 */
+	private boolean insertLatched(LatchedOp op, Tuple t, BTreeChanges.Change undo,
+			HashMap<LockManager.IndexKey, LockManager.Mode> instant) throws DbException, IOException, TransactionAbortedException {
+		Field key = t.getField(keyField);
+		BTreeLeafPage leaf = op.latchLeaf(key, true);
+		if(leaf == null) {
+			if(op.failed()) {
+				return false;
+			}
+			// the tree has no root yet, and making one changes the root pointer
+			if(!op.structural) {
+				op.needsTree = true;
+				return false;
+			}
+			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(op.tid, op.dirtypages,
+					BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+			BTreePageId rootId = rootPtr.getRootId();
+			if(rootId == null) {
+				rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
+				rootPtr.setRootId(rootId);
+			}
+			leaf = (BTreeLeafPage) getPage(op.tid, op.dirtypages, rootId, Permissions.READ_WRITE);
+		}
+		if(undo == null) {
+			Field next = op.nextKey(leaf, key);
+			if(op.failed() || !op.lock(key, Permissions.READ_WRITE)) {
+				return false;
+			}
+			LockManager.IndexKey nextKey = new LockManager.IndexKey(tableid, next);
+			if(!instant.containsKey(nextKey)) {
+				instant.put(nextKey, Database.getBufferPool().getKeyLockMode(op.tid, tableid, next));
+			}
+			if(!op.lock(next, Permissions.READ_WRITE)) {
+				return false;
+			}
+		}
+		// a split write-latches the leaf's right sibling
+		op.unlatchReads();
+		if(leaf.getNumEmptySlots() == 0) {
+			if(!op.structural) {
+				op.needsTree = true;
+				return false;
+			}
+			leaf = splitLeafPage(op.tid, op.dirtypages, leaf, key);
+		}
+		leaf.insertTuple(t);
+		return true;
+	}
+
+	/**
+	 * One attempt at deleting t for a transaction that locks keys. The tuple
+	 * is found by its key and its fields, since its RecordId may be out of
+	 * date; one in the slot t's RecordId names is preferred.
+	 * 
+	 * @return false if the attempt failed and has to start over
+	 */
+	private boolean deleteLatched(LatchedOp op, Tuple t, BTreeChanges.Change undo)
+			throws DbException, IOException, TransactionAbortedException {
+		Field key = t.getField(keyField);
+		BTreeLeafPage leaf = op.latchLeaf(key, true);
+		Tuple found = null;
+		while(leaf != null && (found = find(leaf, t)) == null) {
+			// tuples with the same key may go on in the right sibling
+			Iterator<Tuple> last = leaf.reverseIterator();
+			if(leaf.getRightSiblingId() == null
+					|| (last.hasNext() && last.next().getField(keyField).compare(Op.GREATER_THAN, key))) {
+				throw new DbException("tuple to delete is not in the index");
+			}
+			leaf = op.writeLatchLeaf(leaf.getRightSiblingId());
+		}
+		if(leaf == null) {
+			if(op.failed()) {
+				return false;
+			}
+			throw new DbException("tuple to delete is not in the index");
+		}
+		if(undo == null) {
+			Field next = op.nextKey(leaf, key);
+			if(op.failed() || !op.lock(key, Permissions.READ_WRITE) || !op.lock(next, Permissions.READ_WRITE)) {
+				return false;
+			}
+		}
+		// redistributing or merging write-latches the leaf's siblings
+		op.unlatchReads();
+		// a leaf other than the root must not be left less than half full
+		int maxEmptySlots = leaf.getMaxTuples() - leaf.getMaxTuples()/2; // ceiling
+		boolean underfull = leaf.getNumEmptySlots() + 1 > maxEmptySlots
+				&& leaf.getParentId().pgcateg() != BTreePageId.ROOT_PTR;
+		if(underfull && !op.structural) {
+			op.needsTree = true;
+			return false;
+		}
+		leaf.deleteTuple(found);
+		if(found != t) {
+			t.setRecordId(null);
+		}
+		if(underfull) {
+			handleMinOccupancyPage(op.tid, op.dirtypages, leaf);
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the tuple of leaf that is t, or else the one in the slot t's
+	 * RecordId names if it has the same fields, or else the first tuple with
+	 * the same fields; null if there is none.
+	 */
+	private Tuple find(BTreeLeafPage leaf, Tuple t) {
+		RecordId rid = t.getRecordId();
+		Tuple same = null;
+		Iterator<Tuple> it = leaf.iterator();
+		while(it.hasNext()) {
+			Tuple p = it.next();
+			if(p == t || (rid != null && rid.equals(p.getRecordId()) && sameFields(p, t))) {
+				return p;
+			}
+			if(same == null && sameFields(p, t)) {
+				same = p;
+			}
+		}
+		return same;
+	}
+
+	private static boolean sameFields(Tuple a, Tuple b) {
+		return fields(a).equals(fields(b));
+	}
+
+	private static List<Field> fields(Tuple t) {
+		ArrayList<Field> fields = new ArrayList<Field>();
+		for(int i = 0; i < t.getTupleDesc().numFields(); i++) {
+			fields.add(t.getField(i));
+		}
+		return fields;
+	}
+
+	/** Returns a copy of t, which later changes to the tree leave alone. */
+	private static Tuple copy(Tuple t) {
+		Tuple c = new Tuple(t.getTupleDesc());
+		for(int i = 0; i < t.getTupleDesc().numFields(); i++) {
+			c.setField(i, t.getField(i));
+		}
+		return c;
+	}
+
+	/**
+	 * Marks the pages an operation changed for tid dirty while it still holds
+	 * their write latches, and notes them among the pages tid writes out
+	 * when it completes.
+	 */
+	private void changedPages(TransactionId tid, HashMap<PageId, Page> dirtypages) throws DbException {
+		BufferPool bp = Database.getBufferPool();
+		for(Page page : dirtypages.values()) {
+			if(changes.changedPage(tid, page.getId(), bp)) {
+				bp.changedKeys(tid, tableid);
+			}
+			bp.cacheDirty(tid, page);
+		}
+	}
+
+	/**
+	 * Called by the BufferPool when tid, which changed this file while it
+	 * locked keys, commits or aborts, before its locks are released. An abort
+	 * first undoes tid's inserts and deletes, newest first. Then the pages tid
+	 * changed are written out, each under a read latch, so that no half-made
+	 * change of another operation reaches the disk.
+	 */
+	void transactionComplete(TransactionId tid, boolean commit) throws IOException {
+		if(!commit) {
+			try {
+				BTreeChanges.Change c;
+				while((c = changes.last(tid)) != null) {
+					changeKeyLocked(tid, c.tuple, !c.insert, c);
+				}
+			} catch(DbException | TransactionAbortedException e) {
+				throw new IOException("could not undo transaction " + tid.getId() + ": " + e.getMessage());
+			}
+		}
+		ArrayList<PageId> pages = changes.pages(tid);
+		if(pages != null) {
+			for(PageId pid : pages) {
+				latches.readLatch(pid);
+				try {
+					Database.getBufferPool().writeCurrentPage(pid);
+				} finally {
+					latches.readUnlatch(pid);
+				}
+			}
+		}
+		if(!commit) {
+			changes.aborted(tid);
+		}
+	}
+
+	/**
+	 * Called by the BufferPool as tid's commit is numbered, before the number
+	 * is counted; snapshots that count it see tid's changes.
+	 */
+	void committed(TransactionId tid, long commit) {
+		changes.committed(tid, commit);
+	}
+
+	/** Drops the changes kept for snapshots up to horizon, which every snapshot sees. */
+	void pruneChanges(long horizon) {
+		changes.prune(horizon, Database.getBufferPool());
+	}
+
+	/**
+	 * Reads the next batch of a scan while this file locks keys: the tuples
+	 * from the scan's position to the last key of the leaf it starts in, which
+	 * is left for the next batch, or to the end of the index. A batch that
+	 * starts past the last key of a leaf takes in the leaves to its right until
+	 * one ends with a greater key, so the tuples of one key are never split
+	 * between batches. The leaves are read under read latches. A scan that
+	 * locks keys locks each key it reads, and the first key past its range or
+	 * the end of the index; a read-only scan puts back the changes its
+	 * snapshot does not see instead.
+	 * 
+	 * @return the tuples of the batch that match the scan's predicate
+	 */
+	ArrayList<Tuple> readKeys(BTreeKeyScan scan) throws DbException, TransactionAbortedException {
+		while(true) {
+			LatchedOp op = new LatchedOp(scan.tid, false);
+			try {
+				ArrayList<Tuple> batch = readKeysLatched(op, scan);
+				if(batch != null) {
+					return batch;
+				}
+			} catch(IOException e) {
+				throw new DbException("could not read " + f + ": " + e.getMessage());
+			} finally {
+				op.release();
+			}
+			op.await();
+		}
+	}
+
+	/**
+	 * One attempt at reading the next batch of a scan.
+	 * 
+	 * @return the batch, or null if the attempt failed and has to start over
+	 */
+	private ArrayList<Tuple> readKeysLatched(LatchedOp op, BTreeKeyScan scan)
+			throws DbException, IOException {
+		boolean snapshot = Database.getBufferPool().isReadOnly(op.tid);
+		ArrayList<BTreeLeafPage> leaves = new ArrayList<BTreeLeafPage>();
+		BTreeLeafPage leaf = op.latchLeaf(scan.from, false);
+		if(leaf == null && op.failed()) {
+			return null;
+		}
+		// the batch ends below upper, or at the end of the index if it is null
+		Field upper = null;
+		while(leaf != null) {
+			leaves.add(leaf);
+			BTreePageId right = leaf.getRightSiblingId();
+			if(right == null) {
+				break;
+			}
+			Iterator<Tuple> last = leaf.reverseIterator();
+			if(last.hasNext()) {
+				Field k = last.next().getField(keyField);
+				if(scan.from == null || k.compare(Op.GREATER_THAN, scan.from)) {
+					upper = k;
+					break;
+				}
+			}
+			leaf = op.readLatch(right) ? (BTreeLeafPage) Database.getBufferPool().getCurrentPage(right) : null;
+			if(leaf == null) {
+				return null;
+			}
+		}
+		ArrayList<Tuple> range = new ArrayList<Tuple>();
+		for(BTreeLeafPage l : leaves) {
+			Iterator<Tuple> it = l.iterator();
+			while(it.hasNext()) {
+				Tuple t = it.next();
+				if(scan.inBatch(t.getField(keyField), upper)) {
+					range.add(t);
+				}
+			}
+		}
+		if(snapshot) {
+			range = asOfSnapshot(op.tid, range, scan, upper);
+		}
+
+		ArrayList<Tuple> batch = new ArrayList<Tuple>();
+		Field locked = null;
+		for(Tuple t : range) {
+			Field k = t.getField(keyField);
+			if(!snapshot && (locked == null || !k.equals(locked))) {
+				if(!op.lock(k, Permissions.READ_ONLY)) {
+					return null;
+				}
+				locked = k;
+			}
+			if(scan.past(k)) {
+				scan.done = true;
+				return batch;
+			}
+			if(scan.matches(t)) {
+				batch.add(t);
+			}
+		}
+		if(upper == null) {
+			// the end of the index is the key after the last one
+			if(!snapshot && !op.lock(null, Permissions.READ_ONLY)) {
+				return null;
+			}
+			scan.done = true;
+		}
+		else {
+			scan.from = upper;
+			scan.inclusive = true;
+		}
+		return batch;
+	}
+
+	/**
+	 * Returns the tuples of a batch of a read-only scan as tid's snapshot
+	 * sees them, given those now in the latched leaves: the tuples inserted
+	 * since the snapshot are dropped, and those deleted since are put back,
+	 * in key order.
+	 */
+	private ArrayList<Tuple> asOfSnapshot(TransactionId tid, ArrayList<Tuple> current, BTreeKeyScan scan,
+			Field upper) {
+		BufferPool bp = Database.getBufferPool();
+		// for the fields of each tuple changed, how many more such tuples
+		// the snapshot has than the leaves
+		HashMap<List<Field>, Integer> extra = new HashMap<List<Field>, Integer>();
+		for(BTreeChanges.Change c : changes.unseen(bp.snapshotOf(tid), bp)) {
+			if(scan.inBatch(c.tuple.getField(keyField), upper)) {
+				List<Field> fields = fields(c.tuple);
+				Integer n = extra.get(fields);
+				extra.put(fields, (n == null ? 0 : n) + (c.insert ? -1 : 1));
+			}
+		}
+		ArrayList<Tuple> seen = new ArrayList<Tuple>();
+		for(Tuple t : current) {
+			List<Field> fields = fields(t);
+			Integer n = extra.get(fields);
+			if(n != null && n < 0) {
+				extra.put(fields, n + 1);
+			}
+			else {
+				seen.add(t);
+			}
+		}
+		for(Map.Entry<List<Field>, Integer> e : extra.entrySet()) {
+			for(int i = 0; i < e.getValue(); i++) {
+				Tuple t = new Tuple(td);
+				for(int j = 0; j < td.numFields(); j++) {
+					t.setField(j, e.getKey().get(j));
+				}
+				seen.add(t);
+			}
+		}
+		// a stable sort, which keeps the tuples of the leaves in their order
+		Collections.sort(seen, new Comparator<Tuple>() {
+			public int compare(Tuple a, Tuple b) {
+				Field x = a.getField(keyField);
+				Field y = b.getField(keyField);
+				return x.compare(Op.LESS_THAN, y) ? -1 : x.compare(Op.GREATER_THAN, y) ? 1 : 0;
+			}
+		});
+		return seen;
+	}
+
+	/**
+	 * The latches one attempt at an operation holds while this file locks
+	 * keys, and what it found busy if it cannot go on; see locksKeys().
+	 */
+	private final class LatchedOp {
+		final TransactionId tid;
+		// whether it holds the tree latch, so that it may split or merge
+		// pages and wait for page latches
+		final boolean structural;
+		// the pages it write-latched, marked dirty by tid
+		final HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		private final ArrayList<BTreePageId> readLatched = new ArrayList<BTreePageId>();
+		private final ArrayList<BTreePageId> writeLatched = new ArrayList<BTreePageId>();
+		// a latch or a key lock it found busy
+		private BTreePageId busyPage = null;
+		private boolean busyWrite;
+		private boolean busyKey = false;
+		private Field key;
+		private Permissions perm;
+		// whether it has to split or merge pages, holding the tree latch
+		boolean needsTree = false;
+
+		LatchedOp(TransactionId tid, boolean structural) {
+			this.tid = tid;
+			this.structural = structural;
+		}
+
+		/** Returns true if the attempt has to start over. */
+		boolean failed() {
+			return busyPage != null || busyKey || needsTree;
+		}
+
+		/** Takes pid's latch; fails if it is busy and the attempt may not wait. */
+		private boolean latch(BTreePageId pid, boolean write) {
+			if(structural) {
+				if(write) {
+					latches.writeLatch(pid);
+				}
+				else {
+					latches.readLatch(pid);
+				}
+				return true;
+			}
+			if(write ? latches.tryWriteLatch(pid) : latches.tryReadLatch(pid)) {
+				return true;
+			}
+			busyPage = pid;
+			busyWrite = write;
+			return false;
+		}
+
+		/** Read-latches pid until the attempt ends, unless that fails. */
+		boolean readLatch(BTreePageId pid) {
+			if(!latch(pid, false)) {
+				return false;
+			}
+			readLatched.add(pid);
+			return true;
+		}
+
+		private void readUnlatch(BTreePageId pid) {
+			latches.readUnlatch(pid);
+			readLatched.remove(pid);
+		}
+
+		/**
+		 * Write-latches the leaf pid until the operation ends, and returns it;
+		 * or returns null if the latch was busy.
+		 */
+		BTreeLeafPage writeLatchLeaf(BTreePageId pid) throws DbException {
+			if(!latch(pid, true)) {
+				return null;
+			}
+			writeLatched.add(pid);
+			Page page = Database.getBufferPool().getCurrentPage(pid);
+			dirtypages.put(pid, page);
+			return (BTreeLeafPage) page;
+		}
+
+		/**
+		 * Descends from the root pointer to the left-most leaf possibly
+		 * containing f, or the left-most leaf if f is null, crabbing read
+		 * latches down the internal pages, and latches the leaf, with the
+		 * write latch for a write.
+		 * 
+		 * @return the leaf, or null if the attempt failed or the tree has no
+		 * root yet
+		 */
+		BTreeLeafPage latchLeaf(Field f, boolean write) throws DbException, IOException {
+			createIfEmpty();
+			BufferPool bp = Database.getBufferPool();
+			BTreePageId pid = BTreeRootPtrPage.getId(tableid);
+			if(!readLatch(pid)) {
+				return null;
+			}
+			BTreePageId child = ((BTreeRootPtrPage) bp.getCurrentPage(pid)).getRootId();
+			while(true) {
+				if(child == null) {
+					readUnlatch(pid);
+					return null;
+				}
+				boolean leaf = child.pgcateg() == BTreePageId.LEAF;
+				BTreeLeafPage written = null;
+				boolean latched = leaf && write ? (written = writeLatchLeaf(child)) != null : readLatch(child);
+				readUnlatch(pid);
+				if(!latched) {
+					return null;
+				}
+				if(leaf) {
+					return write ? written : (BTreeLeafPage) bp.getCurrentPage(child);
+				}
+				pid = child;
+				child = route((BTreeInternalPage) bp.getCurrentPage(pid), f);
+				if(child == null) {
+					throw new DbException("internal page " + pid + " has no entries");
+				}
+			}
+		}
+
+		/**
+		 * Returns the first key greater than key, looking in leaf and then its
+		 * right siblings, which stay read-latched; null if there is none,
+		 * which makes the end of the index the next key, or if the attempt
+		 * failed.
+		 */
+		Field nextKey(BTreeLeafPage leaf, Field key) throws DbException {
+			BTreeLeafPage page = leaf;
+			while(true) {
+				Iterator<Tuple> it = page.iterator();
+				while(it.hasNext()) {
+					Field k = it.next().getField(keyField);
+					if(k.compare(Op.GREATER_THAN, key)) {
+						return k;
+					}
+				}
+				BTreePageId right = page.getRightSiblingId();
+				if(right == null || !readLatch(right)) {
+					return null;
+				}
+				page = (BTreeLeafPage) Database.getBufferPool().getCurrentPage(right);
+			}
+		}
+
+		/** Locks key (null for the end of the index) for tid if that needs no waiting. */
+		boolean lock(Field key, Permissions perm) {
+			if(Database.getBufferPool().tryLockKey(tid, tableid, key, perm)) {
+				return true;
+			}
+			busyKey = true;
+			this.key = key;
+			this.perm = perm;
+			return false;
+		}
+
+		/** Releases the read latches the attempt holds. */
+		void unlatchReads() {
+			for(BTreePageId pid : readLatched) {
+				latches.readUnlatch(pid);
+			}
+			readLatched.clear();
+		}
+
+		/** Releases every latch the attempt holds. */
+		void release() {
+			unlatchReads();
+			for(BTreePageId pid : writeLatched) {
+				latches.writeUnlatch(pid);
+			}
+			unlatchAll(dirtypages);
+		}
+
+		/**
+		 * Waits, holding no latch, for the latch or key lock the attempt found
+		 * busy. A wait for a lock aborts tid if it is picked as the victim of
+		 * a deadlock.
+		 */
+		void await() throws DbException, TransactionAbortedException {
+			if(busyPage != null) {
+				latches.await(busyPage, busyWrite);
+			}
+			else if(busyKey) {
+				Database.getBufferPool().lockKey(tid, tableid, key, perm);
+			}
+		}
+	}
+
 	/**
 	 * Get a read lock on the root pointer page. Create the root pointer page and root page
 	 * if necessary.
@@ -845,6 +2006,16 @@ public class BTreeFile implements DbFile {
 	 * @throws TransactionAbortedException
 	 */
 	BTreeRootPtrPage getRootPtrPage(TransactionId tid, HashMap<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
+		createIfEmpty();
+
+		// get a read lock on the root pointer page
+		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
+	}
+
+	/**
+	 * Creates the root pointer page and an empty root page if the file is empty.
+	 */
+	private void createIfEmpty() throws IOException {
 		synchronized(this) {
 			if(f.length() == 0) {
 				// create the root pointer page and the root page
@@ -857,9 +2028,6 @@ public class BTreeFile implements DbFile {
 				bw.close();
 			}
 		}
-
-		// get a read lock on the root pointer page
-		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
 	}
 
 	/**
@@ -944,15 +2112,31 @@ public class BTreeFile implements DbFile {
 		int emptyPageNo = getEmptyPageNo(tid, dirtypages);
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 		
+		BTreePageId[] old = new BTreePageId[0];
+		if(locksKeys(tid)) {
+			// a transaction may be writing out the page as it completes, under
+			// the category it had before it was freed; once the page has left
+			// the pool under every category, none will
+			old = new BTreePageId[] { new BTreePageId(tableid, emptyPageNo, BTreePageId.LEAF),
+					new BTreePageId(tableid, emptyPageNo, BTreePageId.INTERNAL),
+					new BTreePageId(tableid, emptyPageNo, BTreePageId.HEADER) };
+			for(BTreePageId pid : old) {
+				latches.writeLatch(pid);
+				Database.getBufferPool().discardPage(pid);
+			}
+		}
+		
 		// write empty page to disk
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (emptyPageNo-1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
-		rf.close();
+		write(BTreePage.createEmptyPageData(), offset(emptyPageNo));
 		
 		// make sure the page is not in the buffer pool	or in the local cache		
 		Database.getBufferPool().discardPage(newPageId);
 		dirtypages.remove(newPageId);
+		for(BTreePageId pid : old) {
+			if(!pid.equals(newPageId) && !dirtypages.containsKey(pid)) {
+				latches.writeUnlatch(pid);
+			}
+		}
 		
 		return getPage(tid, dirtypages, newPageId, Permissions.READ_WRITE);
 	}
@@ -1078,6 +2262,9 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	BufferAccessStrategy strategy = null;
+	// used instead while the file locks keys
+	BTreeKeyScan scan = null;
 
 	TransactionId tid;
 	BTreeFile f;
@@ -1096,10 +2283,17 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
+		if (Database.getBufferPool().locksKeys()) {
+			scan = new BTreeKeyScan(f, tid, null);
+			return;
+		}
 		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
 				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
 		BTreePageId root = rootPtr.getRootId();
+		// a full scan of a large index reads its leaves through a private ring
+		strategy = Database.getBufferPool().getScanStrategy(f.numPages());
 		curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+		Database.getBufferPool().readAheadFrom(curp.getRightSiblingId());
 		it = curp.iterator();
 	}
 
@@ -1111,6 +2305,8 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 */
 	@Override
 	protected Tuple readNext() throws TransactionAbortedException, DbException {
+		if (scan != null)
+			return scan.next();
 		if (it != null && !it.hasNext())
 			it = null;
 
@@ -1121,7 +2317,8 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 			}
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
+						nextp, Permissions.READ_ONLY, strategy);
+				Database.getBufferPool().readAheadFrom(curp.getRightSiblingId());
 				it = curp.iterator();
 				if (!it.hasNext())
 					it = null;
@@ -1148,6 +2345,8 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 		super.close();
 		it = null;
 		curp = null;
+		strategy = null;
+		scan = null;
 	}
 }
 
@@ -1159,6 +2358,8 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	// used instead while the file locks keys
+	BTreeKeyScan scan = null;
 
 	TransactionId tid;
 	BTreeFile f;
@@ -1181,6 +2382,10 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
+		if (Database.getBufferPool().locksKeys()) {
+			scan = new BTreeKeyScan(f, tid, ipred);
+			return;
+		}
 		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
 				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
 		BTreePageId root = rootPtr.getRootId();
@@ -1191,9 +2396,25 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 		else {
 			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
 		}
+		if(readsToEnd()) {
+			Database.getBufferPool().readAheadFrom(curp.getRightSiblingId());
+		}
 		it = curp.iterator();
 	}
 
+	/**
+	 * Only a search with no upper bound reads every leaf to the right of its
+	 * first one. Any other search stops at the leaf holding the first key past
+	 * its range, and that leaf stays locked until the transaction ends, so that
+	 * no other transaction can insert a key into the range that was scanned
+	 * (next-key locking at page granularity; while the file locks keys, a
+	 * BTreeKeyScan locks the next key itself). Reading ahead past that leaf
+	 * would only read pages the search never asks for.
+	 */
+	private boolean readsToEnd() {
+		return ipred.getOp() == Op.GREATER_THAN || ipred.getOp() == Op.GREATER_THAN_OR_EQ;
+	}
+
 	/**
 	 * Read the next tuple either from the current page if it has more tuples matching
 	 * the predicate or from the next page by following the right sibling pointer.
@@ -1203,6 +2424,9 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	@Override
 	protected Tuple readNext() throws TransactionAbortedException, DbException,
 	NoSuchElementException {
+		if (scan != null) {
+			return scan.next();
+		}
 		while (it != null) {
 
 			while (it.hasNext()) {
@@ -1231,6 +2455,9 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
+				if(readsToEnd()) {
+					Database.getBufferPool().readAheadFrom(curp.getRightSiblingId());
+				}
 				it = curp.iterator();
 			}
 		}
@@ -1252,5 +2479,83 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	public void close() {
 		super.close();
 		it = null;
+		scan = null;
+	}
+}
+
+/**
+ * The position of a scan of a B+ tree file that locks keys, for
+ * BTreeFileIterator and BTreeSearchIterator. The tuples are read in batches
+ * by BTreeFile.readKeys(), each starting at the first key the one before
+ * left out, since the leaves may be split or merged in between.
+ */
+class BTreeKeyScan {
+
+	final BTreeFile f;
+	final TransactionId tid;
+	private final IndexPredicate ipred;
+	// the next batch starts at from, or after it unless inclusive; at the
+	// first key if from is null
+	Field from = null;
+	boolean inclusive = false;
+	// whether the last batch has been read
+	boolean done = false;
+	private ArrayList<Tuple> batch = new ArrayList<Tuple>();
+	private int next = 0;
+
+	/**
+	 * @param ipred - the predicate to filter on, or null to read every tuple
+	 */
+	BTreeKeyScan(BTreeFile f, TransactionId tid, IndexPredicate ipred) {
+		this.f = f;
+		this.tid = tid;
+		this.ipred = ipred;
+		if (ipred != null && (ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN
+				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ)) {
+			from = ipred.getField();
+			inclusive = ipred.getOp() != Op.GREATER_THAN;
+		}
+	}
+
+	/** Returns the next tuple of the scan, or null if there is none. */
+	Tuple next() throws DbException, TransactionAbortedException {
+		while (next == batch.size()) {
+			if (done) {
+				return null;
+			}
+			batch = f.readKeys(this);
+			next = 0;
+		}
+		return batch.get(next++);
+	}
+
+	/**
+	 * Returns true if key belongs to the next batch, which ends below upper,
+	 * or at the end of the index if upper is null.
+	 */
+	boolean inBatch(Field key, Field upper) {
+		return (from == null || key.compare(inclusive ? Op.GREATER_THAN_OR_EQ : Op.GREATER_THAN, from))
+				&& (upper == null || key.compare(Op.LESS_THAN, upper));
+	}
+
+	/** Returns true if key is the first one past the keys the scan reads. */
+	boolean past(Field key) {
+		if (ipred == null) {
+			return false;
+		}
+		switch (ipred.getOp()) {
+		case EQUALS:
+		case LESS_THAN_OR_EQ:
+			return key.compare(Op.GREATER_THAN, ipred.getField());
+		case LESS_THAN:
+			return key.compare(Op.GREATER_THAN_OR_EQ, ipred.getField());
+		default:
+			return false;
+		}
+	}
+
+	/** Returns true if t matches the scan's predicate. */
+	boolean matches(Tuple t) {
+		return ipred == null || t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField());
 	}
 }
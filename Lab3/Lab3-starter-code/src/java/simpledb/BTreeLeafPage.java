@@ -2,6 +2,7 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of BTreeLeafPage stores data for one page of a BTreeFile and 
@@ -18,6 +19,9 @@ public class BTreeLeafPage extends BTreePage {
 	
 	private int leftSibling; // leaf node or 0
 	private int rightSibling; // leaf node or 0
+	// no key in this leaf or those to its left is above it, and none to its
+	// right is below it; only set if there is a right sibling
+	private Field highKey;
 
 	public void checkRep(int fieldid, Field lowerBound, Field upperBound, boolean checkoccupancy, int depth) {
 		Field prev = lowerBound;
@@ -35,6 +39,11 @@ public class BTreeLeafPage extends BTreePage {
 			assert(prev.compare(Predicate.Op.LESS_THAN_OR_EQ, upperBound));
 		}
 
+		// the high key is the key in the parents that divides this leaf from its right sibling
+		if (rightSibling != 0 && null != upperBound) {
+			assert(highKey.compare(Predicate.Op.EQUALS, upperBound));
+		}
+
 		if (checkoccupancy && depth > 0) {
 			assert(getNumTuples() >= getMaxTuples()/2);
 		}
@@ -44,7 +53,8 @@ public class BTreeLeafPage extends BTreePage {
 	 * Create a BTreeLeafPage from a set of bytes of data read from disk.
 	 * The format of a BTreeLeafPage is a set of header bytes indicating
 	 * the slots of the page that are in use, and some number of tuple slots, 
-	 * as well as some extra bytes for the parent and sibling pointers.
+	 * as well as some extra bytes for the parent and sibling pointers and the
+	 * high key.
 	 *  Specifically, the number of tuples is equal to: <p>
 	 *          floor((BufferPool.getPageSize()*8 - extra bytes*8) / (tuple size * 8 + 1))
 	 * <p> where tuple size is the size of tuples in this
@@ -62,9 +72,17 @@ public class BTreeLeafPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeLeafPage(BTreePageId id, byte[] data, int key) throws IOException {
+		this(id, ByteBuffer.wrap(data), key);
+	}
+
+	/**
+	 * Create a BTreeLeafPage from the page image in data, reading it in place;
+	 * data may be a view of a memory-mapped file.
+	 */
+	BTreeLeafPage(BTreePageId id, ByteBuffer data, int key) throws IOException {
 		super(id, key);
 		this.numSlots = getMaxTuples();
-		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+		DataInputStream dis = new DataInputStream(new ByteBufferInputStream(data));
 
 		// Read the parent and sibling pointers
 		try {
@@ -88,6 +106,12 @@ public class BTreeLeafPage extends BTreePage {
 			e.printStackTrace();
 		}
 
+		try {
+			this.highKey = td.getFieldType(keyField).parse(dis);
+		} catch (java.text.ParseException e) {
+			e.printStackTrace();
+		}
+
 		// allocate and read the header slots of this page
 		header = new byte[getHeaderSize()];
 		for (int i=0; i<header.length; i++)
@@ -111,8 +135,8 @@ public class BTreeLeafPage extends BTreePage {
 	 */
 	public int getMaxTuples() {        
 		int bitsPerTupleIncludingHeader = td.getSize() * 8 + 1;
-		// extraBits are: left sibling pointer, right sibling pointer, parent pointer
-		int extraBits = 3 * INDEX_SIZE * 8; 
+		// extraBits are: left sibling pointer, right sibling pointer, parent pointer, high key
+		int extraBits = (3 * INDEX_SIZE + td.getFieldType(keyField).getLen()) * 8; 
 		int tuplesPerPage = (BufferPool.getPageSize()*8 - extraBits) / bitsPerTupleIncludingHeader; //round down
 		return tuplesPerPage;
 	}
@@ -222,6 +246,16 @@ public class BTreeLeafPage extends BTreePage {
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+		try {
+			if (highKey != null) {
+				highKey.serialize(dos);
+			}
+			else {
+				dos.write(new byte[td.getFieldType(keyField).getLen()]);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
 
 		// create the header of the page
 		for (int i=0; i<header.length; i++) {
@@ -262,7 +296,8 @@ public class BTreeLeafPage extends BTreePage {
 		}
 
 		// padding
-		int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length + 3 * INDEX_SIZE); //- numSlots * td.getSize();
+		int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length + 3 * INDEX_SIZE
+				+ td.getFieldType(keyField).getLen()); //- numSlots * td.getSize();
 		byte[] zeroes = new byte[zerolen];
 		try {
 			dos.write(zeroes, 0, zerolen);
@@ -434,6 +469,28 @@ public class BTreeLeafPage extends BTreePage {
 		}
 	}
 
+	/**
+	 * Get the high key of this page, the key in the parents that divides it from
+	 * its right sibling: no key in this page or those to its left is greater, and
+	 * no key in the pages to its right is less. Keys equal to it may be on either
+	 * side, as they are in the parents.
+	 * @return the high key, or null if this page has no right sibling
+	 */
+	public Field getHighKey() {
+		if(rightSibling == 0) {
+			return null;
+		}
+		return highKey;
+	}
+
+	/**
+	 * Set the high key of this page
+	 * @param key - the new high key, or null if the page has no right sibling
+	 */
+	public void setHighKey(Field key) {
+		highKey = key;
+	}
+
 	/**
 	 * Returns the number of tuples currently stored on this page
 	 */
@@ -278,7 +278,8 @@ public class BTreeUtility {
 	 */
 	public static int getNumTuplesPerPage(int columns) {
 		int bytesPerTuple = Type.INT_TYPE.getLen() * columns * 8;
-		int tuplesPerPage = (BufferPool.getPageSize() * 8 - 3 * BTreeLeafPage.INDEX_SIZE * 8) /  (bytesPerTuple + 1);
+		// the pointers and the high key of the page come first
+		int tuplesPerPage = (BufferPool.getPageSize() * 8 - (3 * BTreeLeafPage.INDEX_SIZE + Type.INT_TYPE.getLen()) * 8) /  (bytesPerTuple + 1);
 		return tuplesPerPage;
 	}
 	
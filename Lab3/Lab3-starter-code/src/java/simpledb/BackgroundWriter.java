@@ -0,0 +1,80 @@
+package simpledb;
+
+/**
+ * BackgroundWriter is the thread that writes dirty pages out ahead of
+ * demand while its buffer pool runs in STEAL mode, so that a miss usually
+ * finds a clean page to evict instead of having to write one first.
+ * <p>
+ * Every interval, and whenever the pool wakes it up after failing to find a
+ * clean victim, the writer cleans dirty pages until no more than the target
+ * fraction of the pool is dirty. The pages themselves are written by
+ * {@link BufferPool#cleanDirtyPages(int)}, which logs them first.
+ *
+ * @see BufferPool#setStealEnabled(boolean)
+ */
+class BackgroundWriter extends Thread {
+
+	/** Default time between rounds, in milliseconds. */
+	static final long DEFAULT_INTERVAL_MS = 100;
+
+	/** Default fraction of the pool the writer lets stay dirty. */
+	static final double DEFAULT_DIRTY_TARGET = 0.25;
+
+	private final BufferPool pool;
+	private final long intervalMs;
+	private final double dirtyTarget;
+	private volatile boolean running = true;
+	private boolean wakeRequested = false; // guarded by this
+
+	BackgroundWriter(BufferPool pool, long intervalMs, double dirtyTarget) {
+		super("simpledb-bgwriter");
+		setDaemon(true);
+		this.pool = pool;
+		this.intervalMs = intervalMs;
+		this.dirtyTarget = dirtyTarget;
+	}
+
+	/** Starts a round now rather than at the end of the interval. */
+	synchronized void wake() {
+		wakeRequested = true;
+		notifyAll();
+	}
+
+	/** Stops the writer after its current round and waits for it to exit. */
+	void shutdown() {
+		running = false;
+		wake();
+		try {
+			join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public void run() {
+		while (running) {
+			synchronized (this) {
+				if (!wakeRequested) {
+					try {
+						wait(intervalMs);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				wakeRequested = false;
+			}
+			if (!running) {
+				return;
+			}
+			int excess = pool.countDirtyPages() - (int) (pool.MAX_PAGES * dirtyTarget);
+			if (excess > 0) {
+				try {
+					pool.cleanDirtyPages(excess);
+				} catch (Exception e) {
+					// the next round, or the pool's own attempt on a miss, retries
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+}
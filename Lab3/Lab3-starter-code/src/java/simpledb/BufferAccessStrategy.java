@@ -0,0 +1,58 @@
+package simpledb;
+
+/**
+ * BufferAccessStrategy confines the pages read by one large sequential scan
+ * to a small private ring of buffer pool frames. Once the ring is full, each
+ * further page the scan has to read from disk replaces the page the scan
+ * itself read ringSize misses earlier, instead of evicting whatever the
+ * eviction policy would pick. A scan over a table much bigger than the pool
+ * therefore displaces at most ringSize other pages.
+ * <p>
+ * Pages the scan finds already cached are used in place and never join the
+ * ring. If the page due for reuse has been dirtied or dropped in the meantime,
+ * the buffer pool falls back to its normal eviction policy for that read.
+ * <p>
+ * A strategy is owned by a single iterator and is not thread safe.
+ *
+ * @see BufferPool#getScanStrategy(int)
+ * @see BufferPool#getPage(TransactionId, PageId, Permissions, BufferAccessStrategy)
+ */
+public class BufferAccessStrategy {
+
+    private final int[] frames;
+    private final PageId[] pids;
+    private int next = 0;
+
+    /**
+     * @param ringSize the number of frames the scan may occupy
+     */
+    public BufferAccessStrategy(int ringSize) {
+        if (ringSize < 1) {
+            throw new IllegalArgumentException("ring size must be positive");
+        }
+        frames = new int[ringSize];
+        pids = new PageId[ringSize];
+    }
+
+    /** Returns the number of frames in the ring. */
+    public int getRingSize() {
+        return frames.length;
+    }
+
+    /** Returns the id of the page due to be replaced next, or null while the ring is filling up. */
+    PageId nextVictimPage() {
+        return pids[next];
+    }
+
+    /** Returns the frame holding the page due to be replaced next. */
+    int nextVictimFrame() {
+        return frames[next];
+    }
+
+    /** Records that the scan read pid into frame, replacing the oldest ring entry. */
+    void loaded(int frame, PageId pid) {
+        frames[next] = frame;
+        pids[next] = pid;
+        next = (next + 1) % frames.length;
+    }
+}
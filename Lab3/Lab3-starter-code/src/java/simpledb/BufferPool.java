@@ -1,184 +1,11 @@
 package simpledb;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-
-class LockManager {
-	
-	public class PageLock {
-		private PageId pid;
-		private Permissions perm;
-		public ArrayList<TransactionId> lockHolder;
-		
-		public PageLock(PageId pid, Permissions perm) {
-			this.pid = pid;
-			this.perm = perm;
-			this.lockHolder = new ArrayList<>();
-		}
-		
-		public void setPermission(Permissions perm) {
-			this.perm = perm;
-		}
-		
-		public PageId getPid() {
-			return this.pid;
-		}
-		
-		public Permissions getPerm() {
-			return this.perm;
-		}
-		
-		public boolean addHolder(TransactionId tid) {
-			if(perm == Permissions.READ_ONLY) {
-				if(!lockHolder.contains(tid)) {
-					lockHolder.add(tid);
-				}
-				return true;
-			}else{
-				// Add holder to exclusive lock only if no one holds the lock
-				if(lockHolder.size() == 0) {
-					lockHolder.add(tid);
-					return true;
-				}
-				return false;
-			}
-		}
-		
-		public boolean upgradeHolder(TransactionId tid) {
-			if(perm == Permissions.READ_ONLY && lockHolder.size() == 1 && lockHolder.contains(tid)) {
-				perm = Permissions.READ_WRITE;
-				return true;
-			}
-			return false;
-		}
-	}
-	
-	private ConcurrentHashMap<PageId, PageLock> pageLockTable;
-	private ConcurrentHashMap<TransactionId, ArrayList<PageId>> transactionTable;
-	private Graph DepGraph;
-	
-	public LockManager() {
-		pageLockTable = new ConcurrentHashMap<>();
-		DepGraph = new Graph();
-		transactionTable = new ConcurrentHashMap<>();
-	}
-	
-	public synchronized boolean detectCycle() {
-		return DepGraph.checkCycle();
-	}
-	
-	public synchronized boolean acquireLock(TransactionId tid, PageId pid, Permissions perm) {
-		
-		if(perm == Permissions.READ_ONLY) {
-			// If a shared lock is requested
-			if(pageLockTable.containsKey(pid)) {
-				// If there exists a page lock for this page
-				if(pageLockTable.get(pid).getPerm() == Permissions.READ_ONLY) {
-					// Grant shared lock when the page is held by another transaction with a shared lock
-					updateTransactionTable(tid, pid);
-					assert pageLockTable.get(pid).addHolder(tid) == true;
-					return true;
-				} else {
-					// Wait if exclusive lock held by other transaction
-					return holdsLock(tid, pid);
-				}
-			}else {
-				// No lock has been granted for the page
-				PageLock pl = new PageLock(pid, Permissions.READ_ONLY);
-				pl.addHolder(tid);
-				pageLockTable.put(pid, pl);
-				updateTransactionTable(tid, pid);
-				return true;
-			}
-		}else if(perm == Permissions.READ_WRITE) {
-			// If an exclusive lock is requested
-			if(pageLockTable.containsKey(pid)) {
-				// Check the type of the lock being held
-				if(pageLockTable.get(pid).getPerm() == Permissions.READ_WRITE) {
-					// If exclusive lock held by another transaction, 
-					// add dependency to the dependency graph and return false
-					return holdsLock(tid, pid);
-				}
-				else {
-					// If there exists a shared lock for this page, tries to upgrade the lock
-					return pageLockTable.get(pid).upgradeHolder(tid);
-				}
-			}else {
-				PageLock pl = new PageLock(pid, Permissions.READ_WRITE);
-				pl.addHolder(tid);
-				pageLockTable.put(pid, pl);
-				updateTransactionTable(tid, pid);
-				return true;
-			}
-		}
-		return false;
-	}
-	
-	public synchronized boolean releaseLock(TransactionId tid, PageId pid) {
-		// Remove transaction table
-		if (transactionTable.containsKey(tid)) {
-			transactionTable.get(tid).remove(pid);
-			if (transactionTable.get(tid).size() == 0) {
-				transactionTable.remove(tid);
-			}
-		}
-		
-		
-		// Remove lock table
-		if(pageLockTable.containsKey(pid) && pageLockTable.get(pid).lockHolder.contains(tid)){
-			pageLockTable.get(pid).lockHolder.remove(tid);
-			if(pageLockTable.get(pid).lockHolder.isEmpty()) {
-				// if no more transaction hold lock to the page, remove it from the table
-				pageLockTable.remove(pid);
-			}
-			return true;
-		}
-		return false;
-	}
-	
-	public synchronized boolean holdsLock(TransactionId tid, PageId pid) {
-		return pageLockTable.containsKey(pid) && pageLockTable.get(pid).lockHolder.contains(tid);
-	}
-	
-	private synchronized void updateTransactionTable(TransactionId tid, PageId pid) {
-		if (transactionTable.containsKey(tid)) {
-            if (!transactionTable.get(tid).contains(pid)) {
-                transactionTable.get(tid).add(pid);
-            }
-        } else {
-            // no entry tid
-            ArrayList<PageId> lockList = new ArrayList<PageId>();
-            lockList.add(pid);
-            transactionTable.put(tid, lockList);
-        }
-	}
-	
-	// return the id of transaction that currently holds exclusive lock to page pid  	
-	private synchronized TransactionId getXLockHolder(PageId pid) {
-		return pageLockTable.get(pid).lockHolder.get(0);
-	}
-	
-	// add dependency edge from tid to the transaction that currently holds exclusive lock to page pid 
-	public synchronized void addDependency(TransactionId tid, PageId pid) {
-		TransactionId XlockHolder = getXLockHolder(pid);
-		if(XlockHolder!=null) {
-			DepGraph.addDep(XlockHolder, tid);	
-		}		
-	}
-	
-	// removes all edges to tid in the dependency graph
-	public synchronized void removeDependency(TransactionId tid) {
-		DepGraph.removeDep(tid);
-	}
-	
-	// return the list of locks acquired by tid
-	public synchronized ArrayList<PageId> getXactPages(TransactionId tid){
-		return transactionTable.get(tid);
-	}
-}
-
-
+import java.util.concurrent.ConcurrentHashMap.KeySetView;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from disk.
@@ -204,22 +31,274 @@ public class BufferPool {
 	 */
 	public static final int DEFAULT_PAGES = 50;
 
+	/**
+	 * Default size of the buffer pool Database creates, in bytes. Can be
+	 * overridden with the simpledb.bufferpool.bytes system property.
+	 */
+	public static final long DEFAULT_POOL_BYTES = (long) DEFAULT_PAGES * DEFAULT_PAGE_SIZE;
+
 	public final int MAX_PAGES;
 
-	private LinkedHashMap<PageId, Page> bp_map;
+	/** Number of page table partitions per available processor. */
+	private static final int PARTITIONS_PER_CPU = 4;
+
+	/** Largest ring a scan strategy is given, in pages. */
+	public static final int DEFAULT_SCAN_RING_PAGES = 16;
+
+	// full scans of files with more pages than this use a private ring
+	private volatile int scanRingThreshold;
+	private volatile int scanRingPages;
+
+	private final PageTable page_table;
 	
-	private LockManager lock_manager;
+	private final LockManager lock_manager;
+
+
+	private final ReadAhead read_ahead;
+	// the B+ trees each transaction has changed while they lock keys
+	private final ConcurrentHashMap<TransactionId, KeySetView<Integer, Boolean>> key_writers =
+			new ConcurrentHashMap<TransactionId, KeySetView<Integer, Boolean>>();
+
+	private volatile IsolationLevel isolation = IsolationLevel.SERIALIZABLE;
+	private final VersionStore versions = new VersionStore();
+	private final OptimisticValidator optimistic = new OptimisticValidator();
+	// transactions declared read-only, which read from snapshots without locks
+	private final KeySetView<TransactionId, Boolean> read_only = ConcurrentHashMap.newKeySet();
+
+	/** How many dirty pages a miss cleans itself when the writer has fallen behind. */
+	private static final int STEAL_BATCH = 8;
+
+	// non-null while the pool runs in STEAL mode
+	private volatile BackgroundWriter bg_writer;
+	private final Object bg_writer_lock = new Object();
+	// transactions with uncommitted changes on disk, which abort must roll back
+	private final KeySetView<TransactionId, Boolean> stolen = ConcurrentHashMap.newKeySet();
+
+	// hit ratio counters; LongAdder keeps concurrent hits from contending
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
 
 	/**
-	 * Creates a BufferPool that caches up to numPages pages.
+	 * Creates a BufferPool that caches up to numPages pages, using CLOCK
+	 * eviction.
 	 *
 	 * @param numPages maximum number of pages in this buffer pool.
 	 */
 	public BufferPool(int numPages) {
+		this(numPages, new ClockEvictionPolicy());
+	}
+
+	/**
+	 * Creates a BufferPool that caches up to numPages pages and evicts pages
+	 * according to policy.
+	 *
+	 * @param numPages maximum number of pages in this buffer pool.
+	 * @param policy a new eviction policy, not shared with any other buffer pool
+	 */
+	public BufferPool(int numPages, EvictionPolicy policy) {
+		this(numPages, policy, false);
+	}
+
+	/**
+	 * Creates a BufferPool that caches up to numPages pages and evicts pages
+	 * according to policy. If offHeap is set, the pool allocates numPages
+	 * page-sized frames of direct memory up front, and heap file pages are
+	 * kept in those frames rather than on the Java heap.
+	 *
+	 * @param numPages maximum number of pages in this buffer pool.
+	 * @param policy a new eviction policy, not shared with any other buffer pool
+	 * @param offHeap whether to keep cached pages in off-heap frames
+	 */
+	public BufferPool(int numPages, EvictionPolicy policy, boolean offHeap) {
 		// some code goes here
 		MAX_PAGES = numPages;
-		bp_map = new LinkedHashMap<>(MAX_PAGES, .75f, true);
+		int partitions = Math.min(numPages, PARTITIONS_PER_CPU * Runtime.getRuntime().availableProcessors());
+		FrameArena arena = offHeap ? new FrameArena(numPages, pageSize) : null;
+		page_table = new PageTable(MAX_PAGES, Math.max(1, partitions), policy, arena);
 		lock_manager = new LockManager();
+		read_ahead = new ReadAhead(page_table);
+		scanRingThreshold = numPages;
+		scanRingPages = Math.max(1, Math.min(DEFAULT_SCAN_RING_PAGES, numPages / 8));
+	}
+
+	/**
+	 * Returns the number of pages a buffer pool of the given size in bytes
+	 * holds at the current page size.
+	 */
+	public static int pagesFor(long bytes) {
+		return (int) Math.max(1, Math.min(Integer.MAX_VALUE, bytes / pageSize));
+	}
+
+	/** Returns true if this pool keeps cached pages in off-heap frames. */
+	public boolean isOffHeap() {
+		return page_table.getArena() != null;
+	}
+
+	/**
+	 * Switches between NO STEAL, the default, and STEAL mode. In STEAL mode a
+	 * BackgroundWriter thread writes dirty heap file pages to disk ahead of
+	 * demand, so that a transaction may dirty more pages than the pool
+	 * holds. Before an uncommitted page is written, its UPDATE record is
+	 * forced to the log, and aborting a transaction whose pages were written
+	 * rolls them back from the log. B+ tree pages are never stolen.
+	 */
+	public void setStealEnabled(boolean steal) {
+		synchronized (bg_writer_lock) {
+			if (steal && bg_writer == null) {
+				bg_writer = new BackgroundWriter(this, BackgroundWriter.DEFAULT_INTERVAL_MS,
+						BackgroundWriter.DEFAULT_DIRTY_TARGET);
+				bg_writer.start();
+			} else if (!steal && bg_writer != null) {
+				BackgroundWriter writer = bg_writer;
+				bg_writer = null;
+				writer.shutdown();
+			}
+		}
+	}
+
+	public boolean isStealEnabled() {
+		return bg_writer != null;
+	}
+
+	/** Returns the size of the pages this pool can hold, in bytes. */
+	public long getCapacityBytes() {
+		return (long) MAX_PAGES * pageSize;
+	}
+
+	/**
+	 * Sets the size above which a full scan of a file is confined to a
+	 * private ring of frames. Defaults to the size of the pool, since a scan
+	 * of a file that does not fit would only cycle through the pool anyway.
+	 *
+	 * @param pages the threshold, in pages of the scanned file
+	 */
+	public void setScanRingThreshold(int pages) {
+		scanRingThreshold = pages;
+	}
+
+	/**
+	 * Sets the number of frames given to each large scan. Defaults to an
+	 * eighth of the pool, at most DEFAULT_SCAN_RING_PAGES.
+	 */
+	public void setScanRingPages(int pages) {
+		if (pages < 1) {
+			throw new IllegalArgumentException("ring size must be positive");
+		}
+		scanRingPages = pages;
+	}
+
+	/**
+	 * Returns the access strategy a full scan over a file of filePages pages
+	 * should pass to getPage(), or null if the file is small enough to be
+	 * cached normally.
+	 */
+	public BufferAccessStrategy getScanStrategy(int filePages) {
+		if (filePages <= scanRingThreshold) {
+			return null;
+		}
+		return new BufferAccessStrategy(scanRingPages);
+	}
+
+	/**
+	 * Selects how lock waits that could deadlock are handled; see
+	 * DeadlockPolicy. Defaults to DeadlockPolicy.DETECT.
+	 */
+	public void setDeadlockPolicy(DeadlockPolicy policy) {
+		lock_manager.setPolicy(policy);
+	}
+
+	public DeadlockPolicy getDeadlockPolicy() {
+		return lock_manager.getPolicy();
+	}
+
+	/**
+	 * Sets the number of page locks a transaction may hold in one table
+	 * before its IS or IX lock on the table is converted to S or X and the
+	 * page locks are dropped. The conversion is skipped while another
+	 * transaction holds a conflicting lock on the table.
+	 */
+	public void setLockEscalationThreshold(int pages) {
+		lock_manager.setEscalationThreshold(pages);
+	}
+
+	public int getLockEscalationThreshold() {
+		return lock_manager.getEscalationThreshold();
+	}
+
+	/**
+	 * Selects how transactions are isolated from each other; see
+	 * IsolationLevel. Defaults to IsolationLevel.SERIALIZABLE. Should only
+	 * be changed while no transaction is running.
+	 */
+	public void setIsolationLevel(IsolationLevel level) {
+		isolation = level;
+	}
+
+	public IsolationLevel getIsolationLevel() {
+		return isolation;
+	}
+
+	/**
+	 * Takes tid's snapshot under IsolationLevel.SNAPSHOT, if it has none
+	 * yet. A transaction that does not call this gets its snapshot when it
+	 * first reads or writes a page.
+	 */
+	public void beginSnapshot(TransactionId tid) {
+		if (isolation == IsolationLevel.SNAPSHOT) {
+			versions.begin(tid);
+		}
+	}
+
+	/**
+	 * Declares tid read-only and takes its snapshot. Unless the pool runs
+	 * under IsolationLevel.OPTIMISTIC, where no reads are locked anyway,
+	 * tid then reads every page as of the last commit before this call,
+	 * without taking a lock, and getPage() refuses it READ_WRITE.
+	 */
+	public void beginReadOnly(TransactionId tid) {
+		read_only.add(tid);
+		if (isolation != IsolationLevel.OPTIMISTIC) {
+			versions.begin(tid);
+		}
+	}
+
+	/** Returns the version store of this buffer pool; for tests. */
+	VersionStore getVersionStore() {
+		return versions;
+	}
+
+	/** Returns the lock manager of this buffer pool; for tests. */
+	LockManager getLockManager() {
+		return lock_manager;
+	}
+
+	/** Returns the eviction policy of this buffer pool. */
+	public EvictionPolicy getEvictionPolicy() {
+		return page_table.getPolicy();
+	}
+
+	/** Returns the number of getPage() calls served from the pool. */
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	/** Returns the number of getPage() calls that had to read from disk. */
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	/** Returns the fraction of getPage() calls served from the pool, or 0 if there were none. */
+	public double getHitRatio() {
+		long h = hits.sum();
+		long total = h + misses.sum();
+		return total == 0 ? 0.0 : (double) h / total;
+	}
+
+	/** Resets the hit, miss and read-ahead counters. */
+	public void resetStats() {
+		hits.reset();
+		misses.reset();
+		read_ahead.resetStats();
 	}
 
 	public static int getPageSize() {
@@ -244,6 +323,12 @@ public class BufferPool {
 	 * it should be returned. If it is not present, it should be added to the buffer
 	 * pool and returned. If there is insufficient space in the buffer pool, a page
 	 * should be evicted and the new page should be added in its place.
+	 * <p>
+	 * Under IsolationLevel.SNAPSHOT, a page read with READ_ONLY that tid has
+	 * not locked itself is not locked, and is returned as tid's snapshot sees
+	 * it; the page returned may then be a copy that is not cached. The same
+	 * holds for every read of a transaction declared read-only, except under
+	 * IsolationLevel.OPTIMISTIC.
 	 *
 	 * @param tid  the ID of the transaction requesting the page
 	 * @param pid  the ID of the requested page
@@ -251,45 +336,482 @@ public class BufferPool {
 	 */
 	public Page getPage(TransactionId tid, PageId pid, Permissions perm)
 			throws TransactionAbortedException, DbException {
+		return getPage(tid, pid, perm, null);
+	}
+
+	/**
+	 * Like {@link #getPage(TransactionId, PageId, Permissions)}, but a page
+	 * that has to be read from disk is placed in the strategy's ring of
+	 * frames, if one is given, rather than competing for the whole pool.
+	 *
+	 * @param strategy the access strategy of a large scan, or null
+	 * @see #getScanStrategy(int)
+	 */
+	public Page getPage(TransactionId tid, PageId pid, Permissions perm, BufferAccessStrategy strategy)
+			throws TransactionAbortedException, DbException {
 		// some code goes here
-		boolean lockGranted = lock_manager.acquireLock(tid, pid, perm);
-		if(!lockGranted) {
-			lock_manager.addDependency(tid, pid);
-		}
-		int cnt = 0;		
-		while(!lockGranted) {
-			cnt+=1;
-			if(cnt == 10) { // run cycle detection every second
-				if(lock_manager.detectCycle()) { // abort current transaction and raise exception if cyclic 										
-					try{
-						transactionComplete(tid, false);
-						throw new TransactionAbortedException();
-					}catch(IOException e) {
-						e.printStackTrace();
-						throw new DbException("");
-					}
+		if (isolation != IsolationLevel.OPTIMISTIC && read_only.contains(tid)) {
+			if (perm == Permissions.READ_WRITE) {
+				throw new DbException("transaction " + tid.getId() + " is read-only");
+			}
+			return versions.read(tid, fetchPage(pid, strategy));
+		}
+		if (isolation == IsolationLevel.SNAPSHOT) {
+			return getSnapshotPage(tid, pid, perm, strategy);
+		}
+		if (isolation == IsolationLevel.OPTIMISTIC) {
+			return getOptimisticPage(tid, pid, perm, strategy);
+		}
+		// a granted table lock may still leave the page lock to be waited for
+		LockManager.LockRequest request;
+		while ((request = lock_manager.requestLock(tid, pid, perm)) != null) {
+			awaitLock(tid, request);
+		}
+		return fetchPage(pid, strategy);
+	}
+
+	/**
+	 * getPage under IsolationLevel.SNAPSHOT: reads are served from tid's
+	 * snapshot without a lock, and writes are locked as usual but abort tid
+	 * if the page was changed by a commit after its snapshot.
+	 */
+	private Page getSnapshotPage(TransactionId tid, PageId pid, Permissions perm,
+			BufferAccessStrategy strategy) throws TransactionAbortedException, DbException {
+		if (perm == Permissions.READ_ONLY && !lock_manager.holdsLock(tid, pid)) {
+			return versions.read(tid, fetchPage(pid, strategy));
+		}
+		LockManager.LockRequest request;
+		while ((request = lock_manager.requestLock(tid, pid, perm)) != null) {
+			awaitLock(tid, request);
+		}
+		Page page = fetchPage(pid, strategy);
+		if (perm == Permissions.READ_WRITE && !versions.lockedForWrite(tid, page)) {
+			try {
+				transactionComplete(tid, false);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			throw new TransactionAbortedException();
+		}
+		return page;
+	}
+
+	/**
+	 * getPage under IsolationLevel.OPTIMISTIC: takes no lock, but records
+	 * the version of the page read, and returns a private copy of the page
+	 * for READ_WRITE.
+	 */
+	private Page getOptimisticPage(TransactionId tid, PageId pid, Permissions perm,
+			BufferAccessStrategy strategy) throws DbException {
+		Page copy = optimistic.buffered(tid, pid);
+		if (copy != null) {
+			return copy;
+		}
+		// read the version first: a commit installs its pages before it
+		// raises their versions, so the page is at least this new
+		long version = optimistic.version(pid);
+		Page page = fetchPage(pid, strategy);
+		optimistic.read(tid, pid, version);
+		if (perm == Permissions.READ_ONLY) {
+			return page;
+		}
+		if (pid instanceof BTreePageId) {
+			// BTreeFile writes the pages it allocates straight to disk
+			throw new DbException("B+ tree files cannot be written under optimistic concurrency control");
+		}
+		copy = page.getBeforeImage();
+		optimistic.buffer(tid, copy);
+		return copy;
+	}
+
+	/**
+	 * Like {@link #getPage(TransactionId, PageId, Permissions)}, but returns
+	 * null rather than wait when the lock on pid cannot be granted at once;
+	 * a request that would have to wait is withdrawn. A B+ tree descent
+	 * locks a leaf this way while it still holds a latch on the leaf's
+	 * parent, since it must not wait for a lock while it holds a latch.
+	 */
+	Page getPageNoWait(TransactionId tid, PageId pid, Permissions perm)
+			throws TransactionAbortedException, DbException {
+		if (locksPage(tid, pid, perm)) {
+			LockManager.LockRequest request;
+			while ((request = lock_manager.requestLock(tid, pid, perm)) != null) {
+				if (!lock_manager.cancelRequest(request)) {
+					return null;
 				}
-				cnt = 0;
 			}
+		}
+		return getPage(tid, pid, perm);
+	}
+
+	/**
+	 * Returns pid as tid would read it, but without locking it: from tid's
+	 * snapshot if it reads one, and otherwise the cached page. Under
+	 * OPTIMISTIC the read is not recorded for validation. A B+ tree descent
+	 * reads internal pages this way, under a latch, since they only route
+	 * it to the leaf it locks.
+	 */
+	Page getUnlockedPage(TransactionId tid, PageId pid) throws DbException {
+		if (isolation == IsolationLevel.OPTIMISTIC) {
+			Page copy = optimistic.buffered(tid, pid);
+			return copy != null ? copy : fetchPage(pid, null);
+		}
+		if (!locksPage(tid, pid, Permissions.READ_ONLY)) {
+			return versions.read(tid, fetchPage(pid, null));
+		}
+		return fetchPage(pid, null);
+	}
+
+	/**
+	 * Returns true if B+ tree files lock the keys transactions read and write
+	 * rather than their pages, which they do under
+	 * IsolationLevel.SERIALIZABLE; see BTreeFile.
+	 */
+	boolean locksKeys() {
+		return isolation == IsolationLevel.SERIALIZABLE;
+	}
+
+	/** Returns true if tid was declared read-only with beginReadOnly(). */
+	boolean isReadOnly(TransactionId tid) {
+		return read_only.contains(tid);
+	}
+
+	/** Returns tid's snapshot, taking one if it has none yet. */
+	long snapshotOf(TransactionId tid) {
+		return versions.begin(tid);
+	}
+
+	/**
+	 * Grants tid a lock on key of the B+ tree tableId, S for READ_ONLY and X
+	 * for READ_WRITE, if it can be granted at once; a request that would
+	 * have to wait is withdrawn. Called while holding latches, which must
+	 * not be held while waiting for a lock.
+	 *
+	 * @param key the key, or null for the end of the index
+	 * @return false if the lock was not granted
+	 */
+	boolean tryLockKey(TransactionId tid, int tableId, Field key, Permissions perm) {
+		LockManager.LockRequest request;
+		while ((request = lock_manager.requestKeyLock(tid, tableId, key, perm)) != null) {
+			if (!lock_manager.cancelRequest(request)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Like {@link #tryLockKey(TransactionId, int, Field, Permissions)}, but
+	 * waits for the lock, holding no latch. If tid is picked as the victim
+	 * of a deadlock, it is aborted.
+	 */
+	void lockKey(TransactionId tid, int tableId, Field key, Permissions perm)
+			throws TransactionAbortedException, DbException {
+		LockManager.LockRequest request;
+		while ((request = lock_manager.requestKeyLock(tid, tableId, key, perm)) != null) {
+			awaitLock(tid, request);
+		}
+	}
+
+	/** Returns the mode tid holds the lock on key of the B+ tree tableId in, or null. */
+	LockManager.Mode getKeyLockMode(TransactionId tid, int tableId, Field key) {
+		return lock_manager.getKeyMode(tid, tableId, key);
+	}
+
+	/**
+	 * Puts tid's lock on key of the B+ tree tableId back to mode, or releases
+	 * it if mode is null, once the operation that needed it is done.
+	 */
+	void restoreKeyLock(TransactionId tid, int tableId, Field key, LockManager.Mode mode) {
+		lock_manager.restoreKeyLock(tid, tableId, key, mode);
+	}
+
+	/**
+	 * Returns the cached page pid, reading it from disk on a miss, without
+	 * locking it. A B+ tree that locks keys reads its pages this way, under
+	 * latches.
+	 */
+	Page getCurrentPage(PageId pid) throws DbException {
+		return fetchPage(pid, null);
+	}
+
+	/**
+	 * Marks page dirty by tid and makes it the cached page of its id, in case
+	 * it was evicted while it was clean. A B+ tree that locks keys calls this
+	 * for each page an operation changed, still holding the page's write
+	 * latch; the page then stays in the pool until it is written out.
+	 */
+	void cacheDirty(TransactionId tid, Page page) throws DbException {
+		page.markDirty(true, tid);
+		if (page_table.peek(page.getId()) != page) {
+			cache(page.getId(), page, null, true);
+		}
+	}
+
+	/**
+	 * Writes the cached page pid to disk if it is dirty, and marks it clean.
+	 * A B+ tree that locks keys writes the pages a transaction changed this
+	 * way when it commits or aborts, holding a latch that keeps the page from
+	 * changing.
+	 */
+	void writeCurrentPage(PageId pid) throws IOException {
+		Page page = page_table.peek(pid);
+		if (page != null && page.isDirty() != null) {
+			Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(page);
+			read_ahead.pageWritten(pid);
+			page.markDirty(false, null);
+			page.setBeforeImage();
+		}
+	}
+
+	/**
+	 * Notes that tid has changed the B+ tree tableId while it locks keys, so
+	 * that the tree hears of tid's commit or abort.
+	 */
+	void changedKeys(TransactionId tid, int tableId) {
+		KeySetView<Integer, Boolean> tables = key_writers.get(tid);
+		if (tables == null) {
+			KeySetView<Integer, Boolean> created = ConcurrentHashMap.newKeySet();
+			tables = key_writers.putIfAbsent(tid, created);
+			if (tables == null) {
+				tables = created;
+			}
+		}
+		tables.add(tableId);
+	}
+
+	/**
+	 * Tells the B+ trees tid changed while they lock keys that it commits or
+	 * aborts; they undo its changes on abort and write out the pages it
+	 * changed. Called without the pool's lock, since they take latches.
+	 *
+	 * @return the trees, or null if there were none
+	 */
+	private ArrayList<BTreeFile> keyFilesComplete(TransactionId tid, boolean commit) throws IOException {
+		Set<Integer> tables = key_writers.remove(tid);
+		if (tables == null) {
+			return null;
+		}
+		ArrayList<BTreeFile> files = new ArrayList<BTreeFile>();
+		for (int tableId : tables) {
+			BTreeFile file;
 			try {
-				Thread.sleep(100); // try to acquire lock every 0.1s 
-			}catch (InterruptedException e) {
+				file = (BTreeFile) Database.getCatalog().getDatabaseFile(tableId);
+			} catch (NoSuchElementException e) {
+				// the table was dropped
+				continue;
+			}
+			file.transactionComplete(tid, commit);
+			files.add(file);
+		}
+		return files;
+	}
+
+	/**
+	 * Returns true if tid's reads take locks, so that a writer that holds a
+	 * latch on a page holds a lock tid would wait for.
+	 */
+	boolean locksReads(TransactionId tid) {
+		return isolation != IsolationLevel.OPTIMISTIC && isolation != IsolationLevel.SNAPSHOT
+				&& !read_only.contains(tid);
+	}
+
+	// true if getPage locks pid for tid
+	private boolean locksPage(TransactionId tid, PageId pid, Permissions perm) {
+		if (isolation == IsolationLevel.OPTIMISTIC || read_only.contains(tid)) {
+			return false;
+		}
+		return isolation != IsolationLevel.SNAPSHOT || perm == Permissions.READ_WRITE
+				|| lock_manager.holdsLock(tid, pid);
+	}
+
+	/** Returns the cached page pid, reading it from disk on a miss. */
+	private Page fetchPage(PageId pid, BufferAccessStrategy strategy) throws DbException {
+		read_ahead.accessed(pid);
+		Page cached_page = page_table.get(pid);
+		if (cached_page != null) {
+			hits.increment();
+			return cached_page;
+		}
+		misses.increment();
+		Page page = read_ahead.take(pid);
+		if (page == null) {
+			DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+			page = file.readPage(pid);
+		}
+		// a concurrent reader may load the same page; the first one cached wins
+		return cache(pid, page, strategy, false);
+	}
+
+	/**
+	 * Waits for a queued lock request to be granted. A release hands the lock
+	 * over directly, so this returns as soon as the lock is free. If the lock
+	 * manager picked tid as the victim of a deadlock, tid is aborted.
+	 */
+	private void awaitLock(TransactionId tid, LockManager.LockRequest request)
+			throws TransactionAbortedException, DbException {
+		boolean granted = false;
+		try {
+			granted = request.await();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			throw new DbException("interupted");
+		} finally {
+			// also withdraws the request if the waiting thread is stopped
+			if (!granted) {
+				granted = lock_manager.cancelRequest(request);
+			}
+		}
+		if (!granted) {
+			try{
+				transactionComplete(tid, false);
+				throw new TransactionAbortedException();
+			}catch(IOException e) {
 				e.printStackTrace();
-				throw new DbException("interupted");
+				throw new DbException("");
 			}
-			lockGranted = lock_manager.acquireLock(tid, pid, perm);			
 		}
-		
-		if (bp_map.containsKey(pid)) {
-			return bp_map.get(pid);
+	}
+
+	/**
+	 * Caches page in the page table. In STEAL mode, if every cached page is
+	 * dirty, cleans some pages itself and retries rather than failing.
+	 *
+	 * @param replace whether to replace a cached version of the page
+	 * @return the page now cached under pid
+	 */
+	private Page cache(PageId pid, Page page, BufferAccessStrategy strategy, boolean replace)
+			throws DbException {
+		while (true) {
+			try {
+				if (replace) {
+					page_table.put(pid, page);
+					return page;
+				}
+				return page_table.putIfAbsent(pid, page, strategy);
+			} catch (DbException e) {
+				BackgroundWriter writer = bg_writer;
+				if (writer == null) {
+					throw e;
+				}
+				writer.wake();
+				try {
+					if (cleanDirtyPages(STEAL_BATCH) == 0) {
+						throw e; // every dirty page is a B+ tree page
+					}
+				} catch (IOException io) {
+					throw new DbException("could not write a dirty page: " + io.getMessage());
+				}
+			}
 		}
-		HeapFile hf = (HeapFile) Database.getCatalog().getDatabaseFile(pid.getTableId());
-		if (bp_map.size() >= MAX_PAGES) {
-			evictPage();
+	}
+
+	/** Returns the number of dirty pages in the pool. */
+	int countDirtyPages() {
+		int n = 0;
+		for (PageId pid : page_table.pageIds()) {
+			Page page = page_table.peek(pid);
+			if (page != null && page.isDirty() != null) {
+				n++;
+			}
 		}
-		HeapPage fetched_page = (HeapPage) hf.readPage(pid);
-		bp_map.put(pid, fetched_page);
-		return fetched_page;
+		return n;
+	}
+
+	/**
+	 * Writes up to max dirty heap file pages to disk, logging each one first,
+	 * and marks them clean.
+	 *
+	 * @return the number of pages written
+	 */
+	synchronized int cleanDirtyPages(int max) throws IOException {
+		int n = 0;
+		for (PageId pid : page_table.pageIds()) {
+			if (n >= max) {
+				break;
+			}
+			Page page = page_table.peek(pid);
+			if (page instanceof HeapPage && page.isDirty() != null && writeLogged((HeapPage) page)) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Writes a dirty page to disk after forcing an UPDATE record for it to the
+	 * log, and marks the page clean unless it was changed in the meantime.
+	 *
+	 * @return false if the page was clean
+	 */
+	private boolean writeLogged(HeapPage page) throws IOException {
+		TransactionId dirtier;
+		byte[] data;
+		int modCount;
+		HeapPage before;
+		synchronized (page) {
+			dirtier = page.isDirty();
+			if (dirtier == null) {
+				return false;
+			}
+			data = page.getPageData();
+			modCount = page.getModCount();
+			before = page.getBeforeImage();
+		}
+		HeapPage after = page.newPage(ByteBuffer.wrap(data));
+		// read-only transactions may read the page back from disk before
+		// dirtier commits
+		versions.save(before);
+		// WAL: the before image must be on disk before the page is
+		LogFile log = Database.getLogFile();
+		log.logWrite(dirtier, before, after);
+		log.force();
+		Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(after);
+		read_ahead.pageWritten(page.getId());
+		stolen.add(dirtier);
+		synchronized (page) {
+			if (page.getModCount() == modCount) {
+				page.markDirty(false, dirtier);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Hints that the caller will shortly read pid and then follow right
+	 * sibling pointers from it, as a B+ tree scan does, so that those pages
+	 * can be read ahead in the background. Heap file scans are detected
+	 * without hints.
+	 */
+	public void readAheadFrom(PageId pid) {
+		read_ahead.readAheadFrom(pid);
+	}
+
+	/**
+	 * Sets how many pages are read ahead of a sequential scan; 0 disables
+	 * read-ahead. Defaults to ReadAhead.DEFAULT_WINDOW.
+	 */
+	public void setReadAheadWindow(int pages) {
+		read_ahead.setWindow(pages);
+	}
+
+	public int getReadAheadWindow() {
+		return read_ahead.getWindow();
+	}
+
+	/** Returns the number of pages read ahead of time. */
+	public long getPrefetchCount() {
+		return read_ahead.getPrefetchCount();
+	}
+
+	/** Returns the number of misses served by a page read ahead of time. */
+	public long getPrefetchHitCount() {
+		return read_ahead.getHitCount();
+	}
+
+	/** Returns the number of pages read ahead of time but dropped unused. */
+	public long getPrefetchWasteCount() {
+		return read_ahead.getWasteCount();
 	}
 
 	/**
@@ -303,9 +825,17 @@ public class BufferPool {
 	public void releasePage(TransactionId tid, PageId pid) {
 		// some code goes here
 		// not necessary for lab1|lab2
-		if (lock_manager.holdsLock(tid, pid)) {
-			assert lock_manager.releaseLock(tid, pid) == true;
+		if (isolation == IsolationLevel.OPTIMISTIC) {
+			optimistic.release(tid, pid);
+			return;
+		}
+		if (lock_manager.holdsWriteLock(tid, pid)) {
+			Page page = page_table.peek(pid);
+			if (page == null || page.isDirty() == null) {
+				versions.released(pid);
+			}
 		}
+		lock_manager.releaseLock(tid, pid);
 		
 	}
 
@@ -327,9 +857,61 @@ public class BufferPool {
 		return lock_manager.holdsLock(tid, p);
 	}
 
+	/**
+	 * Under IsolationLevel.OPTIMISTIC, validates tid and installs the pages
+	 * it changed, so that they are committed by the transactionComplete call
+	 * that follows; if another transaction has committed a change to a page
+	 * tid read, tid is aborted instead. Does nothing under the other levels,
+	 * where the locks tid holds already guarantee it can commit.
+	 *
+	 * @throws TransactionAbortedException if tid failed validation
+	 */
+	public void validate(TransactionId tid) throws TransactionAbortedException, IOException {
+		if (isolation == IsolationLevel.OPTIMISTIC && !installOptimistic(tid)) {
+			transactionComplete(tid, false);
+			throw new TransactionAbortedException();
+		}
+	}
+
+	/**
+	 * Validates tid and, if it passes, installs its private copies in the
+	 * pool and writes them to disk. Holding the pool's lock keeps other
+	 * transactions from committing in between.
+	 *
+	 * @return false if tid failed validation
+	 */
+	private synchronized boolean installOptimistic(TransactionId tid) throws IOException {
+		ArrayList<Page> changed = optimistic.validate(tid);
+		if (changed == null) {
+			return false;
+		}
+		for (Page page : changed) {
+			Page old = page_table.peek(page.getId());
+			if (old instanceof HeapPage) {
+				// readers that still hold the replaced page must not see the
+				// write below through a memory-mapped view
+				((HeapPage) old).moveToHeap();
+			}
+			try {
+				cache(page.getId(), page, null, true);
+			} catch (DbException e) {
+				throw new IOException("could not install page " + page.getId() + ": " + e.getMessage());
+			}
+			flushPage(page.getId());
+			page.setBeforeImage();
+		}
+		optimistic.installed(changed);
+		optimistic.end(tid);
+		return true;
+	}
+
 	/**
 	 * Commit or abort a given transaction; release all locks associated to the
 	 * transaction.
+	 * <p>
+	 * Under IsolationLevel.OPTIMISTIC, a commit that was not validated with
+	 * validate() first is validated here; if that fails, tid is aborted and
+	 * an IOException is thrown.
 	 *
 	 * @param tid    the ID of the transaction requesting the unlock
 	 * @param commit a flag indicating whether we should commit or abort
@@ -338,35 +920,88 @@ public class BufferPool {
 		// some code goes here
 		// not necessary for lab1|lab2
 		
+		ArrayList<PageId> written = isolation == IsolationLevel.OPTIMISTIC
+				? optimistic.getWritePages(tid) : lock_manager.getXactWritePages(tid);
+		if (commit && isolation == IsolationLevel.OPTIMISTIC && !installOptimistic(tid)) {
+			optimistic.end(tid);
+			heapFilesComplete(tid, written, false);
+			throw new IOException("transaction " + tid.getId() + " failed validation and was aborted");
+		}
 		if (commit) { // if commit
 			flushPages(tid); // releasing done in flushPages
+			if (stolen.remove(tid) && Database.getLogFile().isLive(tid)) {
+				// not run through Transaction, which logs the commit itself
+				Database.getLogFile().logCommit(tid);
+			}
 		} else { // if abort
-			// set copy of bp_map to prevent concurrent modification exception
-// 			Set<Map.Entry<PageId, Page>> bpMapEntries = new HashSet<>(bp_map.entrySet()); 
-			
-// 			for(Map.Entry<PageId, Page> p: bpMapEntries) {
-// 				PageId pid = p.getKey();			
-// 				if (lock_manager.holdsLock(tid, pid)) { 
-// 					// if page is locked by this transaction, get the version on disk
-// 					// HeapFile hf = (HeapFile) Database.getCatalog().getDatabaseFile(pid.getTableId());
-// 					// bp_map.put(pid, hf.readPage(pid));
-// 					discardPage(pid);
-// 					// release the page
-// 					releasePage(tid, pid); 
-					
-// 				}
-// 			}
-			ArrayList<PageId> locked_pages = lock_manager.getXactPages(tid);
-			ArrayList<PageId> tempArr = new ArrayList<>();
-			for (PageId pid: locked_pages) {
-				tempArr.add(pid);
+			keyFilesComplete(tid, false);
+			discardXactPages(tid);
+		}
+		heapFilesComplete(tid, written, commit);
+		versions.end(tid);
+		optimistic.end(tid);
+		read_only.remove(tid);
+		lock_manager.transactionFinished(tid);
+	}
+
+	/**
+	 * Tells the heap files of the pages tid may have changed that it has
+	 * committed or aborted.
+	 */
+	private void heapFilesComplete(TransactionId tid, ArrayList<PageId> written, boolean commit) {
+		DbFile file = null;
+		for (PageId pid : written) {
+			// the pages of a table mostly come together
+			if (file == null || file.getId() != pid.getTableId()) {
+				try {
+					file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+				} catch (NoSuchElementException e) {
+					// the table was dropped
+					file = null;
+					continue;
+				}
 			}
-			for (PageId pid: tempArr) {
-				discardPage(pid);
-				releasePage(tid, pid);
+			if (file instanceof HeapFile) {
+				((HeapFile) file).transactionComplete(tid, pid.getPageNumber(), commit);
 			}
 		}
-		lock_manager.removeDependency(tid);
+	}
+
+	/**
+	 * Rolls back the changes of an aborting transaction that reached disk,
+	 * then drops its pages from the pool and releases its locks. Holding the
+	 * pool's lock keeps the background writer from stealing a page between
+	 * the rollback and the discard.
+	 */
+	private synchronized void discardXactPages(TransactionId tid) throws IOException {
+		if (stolen.remove(tid) && Database.getLogFile().isLive(tid)) {
+			// undo the changes that reached disk; Transaction.abort()
+			// has done this already
+			Database.getLogFile().logAbort(tid);
+		}
+		// set copy of bp_map to prevent concurrent modification exception
+// 		Set<Map.Entry<PageId, Page>> bpMapEntries = new HashSet<>(bp_map.entrySet()); 
+		
+// 		for(Map.Entry<PageId, Page> p: bpMapEntries) {
+// 			PageId pid = p.getKey();			
+// 			if (lock_manager.holdsLock(tid, pid)) { 
+// 				// if page is locked by this transaction, get the version on disk
+// 				// HeapFile hf = (HeapFile) Database.getCatalog().getDatabaseFile(pid.getTableId());
+// 				// bp_map.put(pid, hf.readPage(pid));
+// 				discardPage(pid);
+// 				// release the page
+// 				releasePage(tid, pid); 
+				
+// 			}
+// 		}
+		// only pages tid locked exclusively can hold its changes; the pages
+		// it only read stay cached
+		ArrayList<PageId> written = lock_manager.getXactWritePages(tid);
+		for (PageId pid : written) {
+			discardPage(pid);
+		}
+		versions.aborted(written);
+		lock_manager.releaseAll(tid);
 	}
 
 	/**
@@ -388,19 +1023,27 @@ public class BufferPool {
 			throws DbException, IOException, TransactionAbortedException {
 		// some code goes here
 		// not necessary for lab1
-		HeapFile file = (HeapFile) Database.getCatalog().getDatabaseFile(tableId);
+		DbFile file = Database.getCatalog().getDatabaseFile(tableId);
 		try {
 			ArrayList<Page> dirtied_pages = file.insertTuple(tid, t);
 			// replace all the affected pages by the new version
 			for (Page page : dirtied_pages) {
 				try {
-					
+					if (page instanceof BTreePage && locksKeys()) {
+						// cached and marked dirty already, under a latch
+						continue;
+					}
 					page.markDirty(true, tid);
+					if (isolation == IsolationLevel.OPTIMISTIC) {
+						// installed at commit; a new page is not buffered yet
+						optimistic.buffer(tid, page);
+						continue;
+					}
 					PageId pid = page.getId();
-					if (!bp_map.containsKey(pid)) {
+					if (!page_table.contains(pid)) {
 						getPage(tid, page.getId(), Permissions.READ_WRITE);
 					}
-					bp_map.put(pid, page);	
+					cache(pid, page, null, true);
 				}catch(TransactionAbortedException e) {
 					throw new TransactionAbortedException();
 				}catch(Exception e) {
@@ -430,15 +1073,23 @@ public class BufferPool {
 		// some code goes here
 		// not necessary for lab1
 		int table_id = t.getRecordId().getPageId().getTableId();
-		HeapFile file = (HeapFile) Database.getCatalog().getDatabaseFile(table_id);
+		DbFile file = Database.getCatalog().getDatabaseFile(table_id);
 		try {
 			ArrayList<Page> dirtied_pages = file.deleteTuple(tid, t);
 			for (Page page : dirtied_pages) {
+				if (page instanceof BTreePage && locksKeys()) {
+					// cached and marked dirty already, under a latch
+					continue;
+				}
 				page.markDirty(true, tid);
-				if (!bp_map.containsKey(page.getId())) {
+				if (isolation == IsolationLevel.OPTIMISTIC) {
+					optimistic.buffer(tid, page);
+					continue;
+				}
+				if (!page_table.contains(page.getId())) {
 						getPage(tid, page.getId(), Permissions.READ_WRITE);
 				}
-				bp_map.put(page.getId(), page);	
+				cache(page.getId(), page, null, true);
 			}
 		}catch(TransactionAbortedException e) {
 			throw new TransactionAbortedException();
@@ -454,10 +1105,8 @@ public class BufferPool {
 	public synchronized void flushAllPages() throws IOException {
 		// some code goes here
 		// not necessary for lab1
-		if (bp_map.size() > 0) {
-			for(Map.Entry<PageId, Page> p: bp_map.entrySet()) {
-				this.flushPage(p.getKey());
-			}
+		for (PageId pid : page_table.pageIds()) {
+			this.flushPage(pid);
 		}
 	}
 
@@ -472,9 +1121,8 @@ public class BufferPool {
 	public synchronized void discardPage(PageId pid) {
 		// some code goes here
 		// not necessary for lab1
-		if (bp_map.containsKey(pid)) {
-			bp_map.remove(pid);
-		}
+		page_table.remove(pid);
+		read_ahead.pageWritten(pid);
 	}
 
 	/**
@@ -484,60 +1132,68 @@ public class BufferPool {
 	 */
 	private synchronized void flushPage(PageId pid) throws IOException {
 		// some code goes here
-		if (bp_map.containsKey(pid)) {
-			HeapFile hf = (HeapFile) Database.getCatalog().getDatabaseFile(pid.getTableId());
-			HeapPage fetched_page = null;
-			for (Map.Entry<PageId, Page> p : bp_map.entrySet()) { // use entrySet to avoid ConcurrentModificationException for LinkedHeapMap
-				if(pid == p.getKey()) {
-					fetched_page = (HeapPage) p.getValue();
-				}
-			}
+		Page fetched_page = page_table.peek(pid);
+		if (fetched_page != null) {
+			DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
 			TransactionId tid = fetched_page.isDirty();
-			if (tid != null) {
-				hf.writePage(fetched_page);
+			if (tid != null && bg_writer != null && fetched_page instanceof HeapPage) {
+				writeLogged((HeapPage) fetched_page);
+			} else if (tid != null) {
+				file.writePage(fetched_page);
+				read_ahead.pageWritten(pid);
 				fetched_page.markDirty(false, tid);
 			}
-		} else {
-			throw new IOException("pid not in buffer");
 		}
+		// otherwise the page was evicted after the caller looked it up; only
+		// clean pages are evicted, so there is nothing to write
 	}
 
 	/**
 	 * Write all pages of the specified transaction to disk.
 	 */
-	public synchronized void flushPages(TransactionId tid) throws IOException {
-		// some code goes here
-		// not necessary for lab1|lab2
-		// All pages touched by tid are flushed and then released.
-		
-		for(Map.Entry<PageId, Page> p: bp_map.entrySet()) { // for each page in buffer
-			PageId pid = p.getKey();
-			if (lock_manager.holdsLock(tid, pid)) { // if page locked by this transaction
-				flushPage(pid);
-				releasePage(tid, pid);
-			}
-		}
+	public void flushPages(TransactionId tid) throws IOException {
+		// the B+ trees that lock keys write their pages under latches, which
+		// must not be waited for while holding the pool's lock
+		flushPages(tid, keyFilesComplete(tid, true));
 	}
 
 	/**
-	 * Discards a page from the buffer pool. Flushes the page to disk to ensure
-	 * dirty pages are updated on disk.
+	 * Writes the heap pages of tid and numbers its commit.
+	 *
+	 * @param keyFiles the B+ trees tid changed while they lock keys, or null
 	 */
-	private synchronized void evictPage() throws DbException {
+	private synchronized void flushPages(TransactionId tid, ArrayList<BTreeFile> keyFiles) throws IOException {
 		// some code goes here
-		for (Map.Entry<PageId, Page> p: bp_map.entrySet()) {
-			if (p.getValue().isDirty()==null) { // if page is clean
-				PageId pid = p.getKey();
-				try {
-					flushPage(pid);
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-				bp_map.remove(pid);
-				return;
+		// not necessary for lab1|lab2
+		// All pages touched by tid are flushed and then released. Only the
+		// pages tid locked are visited, so the cost does not grow with the pool.
+		
+		ArrayList<PageId> written = lock_manager.getXactWritePages(tid);
+		ArrayList<Page> cached = new ArrayList<Page>();
+		for (PageId pid : written) { // pages tid may have dirtied
+			flushPage(pid);
+			Page page = page_table.peek(pid);
+			if (page != null) {
+				cached.add(page);
+			}
+		}
+		if (keyFiles != null) {
+			// the changed tuples get the commit's number before it is
+			// counted, so that no snapshot that counts it misses them
+			long commit = versions.nextCommit();
+			for (BTreeFile file : keyFiles) {
+				file.committed(tid, commit);
+			}
+		}
+		// snapshots taken from now on see the new before-images
+		versions.committed(written, cached, keyFiles != null);
+		if (keyFiles != null) {
+			long horizon = versions.horizon();
+			for (BTreeFile file : keyFiles) {
+				file.pruneChanges(horizon);
 			}
 		}
-		throw new DbException("There is no page to evict");
+		lock_manager.releaseAll(tid);
 	}
 
 }
@@ -64,6 +64,7 @@ public class Catalog {
     	// check if the name or the id conflicts with an existing table	
     	for(int i=0; i<this.tableList.size(); i++) {
     		if(this.tableList.get(i).tableId == file.getId() || this.tableList.get(i).tableName.equals(name)) {
+    			close(this.tableList.get(i).file, file);
     			this.tableList.set(i, new Table(file, name , pkeyField));
     			return;
     		}
@@ -177,11 +178,24 @@ public class Catalog {
     /** Delete all tables from the catalog */
     public void clear() {
         // some code goes here
+    	for (Table table : this.tableList) {
+    		close(table.file, null);
+    	}
     	this.tableList.clear();
     }
+
+    /** Closes the files of a table's DbFile that replacement does not take over. */
+    private static void close(DbFile file, DbFile replacement) {
+    	if (file != replacement && file instanceof HeapFile) {
+    		((HeapFile) file).close();
+    	}
+    }
     
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * Each line describes a table as <code>name (field type, field type, ...)</code>,
+     * optionally followed by the table's format: <code>heap</code>, the default,
+     * for a HeapFile, or <code>slotted</code> for a SlottedHeapFile.
      * @param catalogFile
      */
     public void loadSchema(String catalogFile) {
@@ -195,6 +209,11 @@ public class Catalog {
                 String name = line.substring(0, line.indexOf("(")).trim();
                 //System.out.println("TABLE NAME: " + name);
                 String fields = line.substring(line.indexOf("(") + 1, line.indexOf(")")).trim();
+                String format = line.substring(line.indexOf(")") + 1).trim().toLowerCase();
+                if (!format.equals("") && !format.equals("heap") && !format.equals("slotted")) {
+                    System.out.println("Unknown table format " + format);
+                    System.exit(0);
+                }
                 String[] els = fields.split(",");
                 ArrayList<String> names = new ArrayList<String>();
                 ArrayList<Type> types = new ArrayList<Type>();
@@ -222,7 +241,9 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                File tabFile = new File(baseFolder+"/"+name + ".dat");
+                HeapFile tabHf = format.equals("slotted")
+                        ? new SlottedHeapFile(tabFile, t) : new HeapFile(tabFile, t);
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
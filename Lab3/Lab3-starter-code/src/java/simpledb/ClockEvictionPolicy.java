@@ -0,0 +1,57 @@
+package simpledb;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * CLOCK (second chance) eviction. Every frame has a reference bit that is set
+ * on each hit; a clock hand sweeps the frames, clearing set bits and choosing
+ * the first evictable frame whose bit is already clear.
+ * <p>
+ * Hits only set a bit and the hand is an AtomicInteger, so neither hits nor
+ * concurrent victim searches take a lock. This is the default policy.
+ *
+ * @Threadsafe
+ */
+public class ClockEvictionPolicy implements EvictionPolicy {
+
+    private AtomicIntegerArray referenced;
+    private final AtomicInteger hand = new AtomicInteger(0);
+    private int numFrames;
+
+    public void init(int numFrames) {
+        this.numFrames = numFrames;
+        this.referenced = new AtomicIntegerArray(numFrames);
+    }
+
+    public void frameFilled(int frame, PageId pid) {
+        referenced.set(frame, 1);
+    }
+
+    public void frameAccessed(int frame) {
+        // avoid dirtying the cache line when the bit is already set
+        if (referenced.get(frame) == 0) {
+            referenced.set(frame, 1);
+        }
+    }
+
+    public void frameCleared(int frame) {
+        referenced.set(frame, 0);
+    }
+
+    public int chooseVictim(FrameFilter evictable) {
+        // two sweeps: the first may only clear reference bits
+        for (int step = 0; step < 2 * numFrames; step++) {
+            int frame = Math.floorMod(hand.getAndIncrement(), numFrames);
+            if (!evictable.canEvict(frame)) {
+                continue;
+            }
+            if (referenced.get(frame) == 1) {
+                referenced.set(frame, 0);
+                continue;
+            }
+            return frame;
+        }
+        return -1;
+    }
+}
@@ -19,11 +19,15 @@ public class Database {
     private final BufferPool _bufferpool;
 
     private final static String LOGFILENAME = "log";
+    private final static String POOL_BYTES_PROPERTY = "simpledb.bufferpool.bytes";
+    private final static String POOL_OFFHEAP_PROPERTY = "simpledb.bufferpool.offheap";
     private final LogFile _logfile;
 
     private Database() {
         _catalog = new Catalog();
-        _bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES);
+        long poolBytes = Long.getLong(POOL_BYTES_PROPERTY, BufferPool.DEFAULT_POOL_BYTES);
+        _bufferpool = new BufferPool(BufferPool.pagesFor(poolBytes), new ClockEvictionPolicy(),
+                Boolean.getBoolean(POOL_OFFHEAP_PROPERTY));
         LogFile tmp = null;
         try {
             tmp = new LogFile(new File(LOGFILENAME));
@@ -55,11 +59,33 @@ public class Database {
      * return it
      */
     public static BufferPool resetBufferPool(int pages) {
+        return resetBufferPool(pages, new ClockEvictionPolicy());
+    }
+
+    /**
+     * Method used for testing -- create a new instance of the buffer pool
+     * with the given eviction policy and return it
+     */
+    public static BufferPool resetBufferPool(int pages, EvictionPolicy policy) {
+        return setBufferPool(new BufferPool(pages, policy));
+    }
+
+    /**
+     * Method used for testing -- create a new instance of the buffer pool
+     * holding poolBytes bytes of pages, on or off the heap, and return it
+     */
+    public static BufferPool resetBufferPool(long poolBytes, boolean offHeap) {
+        return setBufferPool(new BufferPool(BufferPool.pagesFor(poolBytes), new ClockEvictionPolicy(), offHeap));
+    }
+
+    private static BufferPool setBufferPool(BufferPool bufferPool) {
+        // stop the old pool's writer thread, if any
+        _instance.get()._bufferpool.setStealEnabled(false);
         java.lang.reflect.Field bufferPoolF=null;
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
-            bufferPoolF.set(_instance.get(), new BufferPool(pages));
+            bufferPoolF.set(_instance.get(), bufferPool);
         } catch (NoSuchFieldException e) {
             e.printStackTrace();
         } catch (SecurityException e) {
@@ -75,7 +101,9 @@ public class Database {
 
     // reset the database, used for unit tests only.
     public static void reset() {
-        _instance.set(new Database());
+        Database old = _instance.getAndSet(new Database());
+        old._bufferpool.setStealEnabled(false);
+        old._catalog.clear();
     }
 
 }
@@ -0,0 +1,38 @@
+package simpledb;
+
+/**
+ * DeadlockPolicy selects how the buffer pool's lock manager keeps
+ * transactions that wait for each other's locks from waiting forever.
+ * <p>
+ * The two prevention policies compare transactions by {@link TransactionId}:
+ * a smaller id is an older transaction. They never build a wait-for graph
+ * or search it, so the cost of a conflict does not grow with the number of
+ * waiting transactions, but they abort some transactions that were not
+ * deadlocked. A transaction restarted under a new TransactionId becomes
+ * the youngest one again.
+ *
+ * @see BufferPool#setDeadlockPolicy(DeadlockPolicy)
+ */
+public enum DeadlockPolicy {
+
+    /**
+     * Let any request wait, and search the wait-for graph for a cycle
+     * whenever a request is queued; the youngest transaction on a cycle is
+     * aborted. This is the default.
+     */
+    DETECT,
+
+    /**
+     * An older transaction waits for a younger one; a younger transaction
+     * that would wait for an older one is aborted instead ("dies").
+     */
+    WAIT_DIE,
+
+    /**
+     * A younger transaction waits for an older one; an older transaction
+     * that would wait for a younger one aborts it instead ("wounds" it).
+     * A wounded transaction that is waiting for a lock is aborted at once;
+     * one that is running is aborted at its next lock request.
+     */
+    WOUND_WAIT
+}
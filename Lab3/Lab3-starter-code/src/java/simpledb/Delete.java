@@ -78,6 +78,8 @@ public class Delete extends Operator {
 			try {
 				bp.deleteTuple(this.transactionId, tup);
 				this.cnt+=1;
+			}catch(TransactionAbortedException e) {
+				throw e;
 			}catch(Exception e) {
 				throw new DbException("Db exception");
 			}
@@ -0,0 +1,64 @@
+package simpledb;
+
+/**
+ * EvictionPolicy decides which buffer pool frame to give up when the pool is
+ * full. The buffer pool keeps pages in a fixed set of frames numbered
+ * 0..numFrames-1 and reports every fill, hit and removal to its policy; the
+ * policy only has to rank frames.
+ * <p>
+ * An EvictionPolicy instance belongs to a single BufferPool, which calls
+ * {@link #init(int)} once before any other method. Implementations must be
+ * thread safe, since the buffer pool calls them from concurrent getPage()s.
+ *
+ * @see BufferPool#BufferPool(int, EvictionPolicy)
+ * @see ClockEvictionPolicy
+ * @see LruKEvictionPolicy
+ * @see TwoQueueEvictionPolicy
+ */
+public interface EvictionPolicy {
+
+    /** Tells the policy whether the page currently in a frame may be evicted. */
+    public interface FrameFilter {
+        /** @return true if the frame holds a page that may be evicted now */
+        public boolean canEvict(int frame);
+    }
+
+    /**
+     * Prepares the policy to track numFrames frames.
+     *
+     * @param numFrames the number of frames in the buffer pool
+     */
+    public void init(int numFrames);
+
+    /**
+     * Called after a page has been read into a previously empty frame.
+     *
+     * @param frame the frame that now holds the page
+     * @param pid the id of the page
+     */
+    public void frameFilled(int frame, PageId pid);
+
+    /**
+     * Called on every buffer pool hit.
+     *
+     * @param frame the frame that holds the requested page
+     */
+    public void frameAccessed(int frame);
+
+    /**
+     * Called after a page has been evicted from or discarded out of a frame.
+     *
+     * @param frame the frame that is now empty
+     */
+    public void frameCleared(int frame);
+
+    /**
+     * Chooses a frame to evict among the frames accepted by evictable. The
+     * frame is not considered cleared until {@link #frameCleared(int)} is
+     * called, since the buffer pool may lose a race for it and ask again.
+     *
+     * @param evictable filter for frames whose page may be evicted
+     * @return the frame to evict, or -1 if no frame is evictable
+     */
+    public int chooseVictim(FrameFilter evictable);
+}
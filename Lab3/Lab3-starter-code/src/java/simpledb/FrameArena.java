@@ -0,0 +1,64 @@
+package simpledb;
+
+import java.nio.ByteBuffer;
+
+/**
+ * FrameArena is a fixed block of off-heap memory divided into page-sized
+ * frames, one per buffer pool slot. Pages cached in an off-heap buffer pool
+ * keep their bytes in their frame, so the pool's contents are invisible to
+ * the garbage collector and do not count against the Java heap.
+ * <p>
+ * The arena is allocated as direct ByteBuffers of at most MAX_CHUNK_BYTES
+ * each, since a single ByteBuffer cannot exceed 2GB. Direct memory is limited
+ * by -XX:MaxDirectMemorySize, which defaults to the maximum heap size.
+ *
+ * @Threadsafe
+ */
+class FrameArena {
+
+    /** Largest single direct allocation. */
+    static final int MAX_CHUNK_BYTES = 1 << 30;
+
+    private final ByteBuffer[] frames;
+    private final int frameSize;
+
+    /**
+     * @param numFrames the number of frames
+     * @param frameSize the size of each frame, in bytes
+     */
+    public FrameArena(int numFrames, int frameSize) {
+        this.frames = new ByteBuffer[numFrames];
+        this.frameSize = frameSize;
+        int framesPerChunk = Math.max(1, MAX_CHUNK_BYTES / frameSize);
+        for (int first = 0; first < numFrames; first += framesPerChunk) {
+            int n = Math.min(framesPerChunk, numFrames - first);
+            ByteBuffer chunk = ByteBuffer.allocateDirect(n * frameSize);
+            for (int i = 0; i < n; i++) {
+                chunk.limit((i + 1) * frameSize);
+                chunk.position(i * frameSize);
+                frames[first + i] = chunk.slice();
+            }
+        }
+    }
+
+    /**
+     * Returns the buffer of the given frame. The same buffer is returned on
+     * every call; callers must use absolute access or a duplicate.
+     */
+    public ByteBuffer frame(int slot) {
+        return frames[slot];
+    }
+
+    public int numFrames() {
+        return frames.length;
+    }
+
+    public int frameSize() {
+        return frameSize;
+    }
+
+    /** Returns the total size of the arena, in bytes. */
+    public long sizeBytes() {
+        return (long) frames.length * frameSize;
+    }
+}
@@ -0,0 +1,267 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.IntPredicate;
+
+/**
+ * FreeSpaceMap records roughly how much room each page of a HeapFile has
+ * left, so that inserts can go straight to a page with room instead of
+ * trying the pages of the file in order.
+ * <p>
+ * The map is kept in a file of its own next to the heap file, named after it
+ * with ".fsm" appended, so that the format of heap files does not change.
+ * It holds one byte per heap page, and so is made of summary pages that each
+ * cover BufferPool.getPageSize() heap pages. A byte of 0 means the room on
+ * the page is not known, which is how pages the map has not seen yet start
+ * out; otherwise it is one more than the page's category, from 0 for a full
+ * page to CATEGORIES - 1 for an empty one. Only changes of category are
+ * written, so a page is not rewritten on every insert.
+ * <p>
+ * The map is a hint, and is not logged. Changes made by a transaction are
+ * kept in memory until it commits, when HeapFile has the bytes of the pages
+ * it changed written; if it aborts, those pages go back to the room recorded
+ * for them before. A page the map does not record as full is checked for
+ * room before it is used, so the only lasting harm a wrong byte could do is
+ * keep inserts away from a page that is not full, and bytes that reach the
+ * file describe committed pages only. A map that covers more pages than its
+ * heap file has cannot belong to that file, and is dropped when opened;
+ * whatever replaces a heap file has to remove its map, as HeapFileEncoder
+ * does.
+ *
+ * @Threadsafe
+ */
+class FreeSpaceMap {
+
+	/** The number of categories the room on a page is rounded to. */
+	static final int CATEGORIES = 16;
+
+	private static final byte UNKNOWN = 0;
+	private static final byte FULL = 1;
+
+	private final File file;
+	// opened on the first write, and after close(); null until then
+	private FileChannel channel;
+	// one byte per heap page, including changes not committed yet; guarded
+	// by this
+	private byte[] pages;
+	// the bytes as in the file; guarded by this
+	private byte[] saved;
+	// the number of heap pages the map covers; guarded by this
+	private int covered;
+	// pages with room, or whose room is not known
+	private final ConcurrentSkipListSet<Integer> candidates = new ConcurrentSkipListSet<Integer>();
+	// where the next search for a candidate starts, so that inserters are
+	// spread over the candidates rather than all sent to the first one
+	private volatile int cursor;
+
+	/**
+	 * Opens the free-space map of the heap file f, reading it if it exists
+	 * and may belong to f.
+	 */
+	FreeSpaceMap(File f) {
+		this.file = getFile(f);
+		byte[] stored = new byte[0];
+		if (file.exists()) {
+			try (FileChannel c = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				ByteBuffer buf = ByteBuffer.allocate((int) c.size());
+				while (buf.hasRemaining() && c.read(buf, buf.position()) >= 0) {
+					// keep reading
+				}
+				stored = Arrays.copyOf(buf.array(), buf.position());
+			} catch (IOException e) {
+				// start over; the map is only a hint
+				e.printStackTrace();
+			}
+			long heapPages = (f.length() + BufferPool.getPageSize() - 1) / BufferPool.getPageSize();
+			if (stored.length > heapPages) {
+				// left over from an earlier file of the same name
+				stored = new byte[0];
+				file.delete();
+			}
+		}
+		this.pages = stored.clone();
+		this.saved = stored;
+	}
+
+	/** Returns the file the map of the heap file f is kept in. */
+	static File getFile(File f) {
+		return new File(f.getPath() + ".fsm");
+	}
+
+	/** Returns the category of a page with free of slots empty slots. */
+	static int category(int free, int slots) {
+		if (free <= 0 || slots <= 0) {
+			return 0;
+		}
+		// any room at all is at least category 1
+		return Math.max(1, free * (CATEGORIES - 1) / slots);
+	}
+
+	/**
+	 * Makes the map cover the first numPages pages of the heap file. Pages
+	 * it did not cover yet become candidates, as their room is not known.
+	 */
+	synchronized void cover(int numPages) {
+		if (numPages <= covered) {
+			return;
+		}
+		if (pages.length < numPages) {
+			pages = Arrays.copyOf(pages, Math.max(numPages, pages.length * 2));
+		}
+		for (int p = covered; p < numPages; p++) {
+			if (pages[p] != FULL) {
+				candidates.add(p);
+			}
+		}
+		covered = numPages;
+	}
+
+	/**
+	 * Returns a page among the first numPages that may have room, or -1 if
+	 * the map knows of none. The search starts after the page the previous
+	 * search returned and goes round the file; it passes over pages for
+	 * which busy is true, such as pages another inserter holds, unless
+	 * every candidate it looks at is busy.
+	 */
+	int candidate(int numPages, IntPredicate busy) {
+		final int tries = 16;
+		int fallback = -1;
+		int looked = 0;
+		int start = cursor;
+		Iterator<Integer> it = candidates.tailSet(start).iterator();
+		boolean wrapped = false;
+		while (looked < tries) {
+			if (!it.hasNext()) {
+				if (wrapped || start == 0) {
+					break;
+				}
+				it = candidates.headSet(start).iterator();
+				wrapped = true;
+				continue;
+			}
+			int p = it.next();
+			if (p >= numPages) {
+				continue;
+			}
+			looked++;
+			if (!busy.test(p)) {
+				cursor = p + 1;
+				return p;
+			}
+			if (fallback < 0) {
+				fallback = p;
+			}
+		}
+		if (fallback >= 0) {
+			cursor = fallback + 1;
+		}
+		return fallback;
+	}
+
+	/** Returns true unless the map records page pageNo as full. */
+	synchronized boolean mayHaveRoom(int pageNo) {
+		return pageNo >= pages.length || pages[pageNo] != FULL;
+	}
+
+	/**
+	 * Records that page pageNo has free of its slots slots empty. The map's
+	 * file is not written until committed(pageNo) is called.
+	 */
+	void update(int pageNo, int free, int slots) {
+		byte value = (byte) (category(free, slots) + 1);
+		synchronized (this) {
+			cover(pageNo + 1);
+			set(pageNo, value);
+		}
+	}
+
+	private void set(int pageNo, byte value) {
+		pages[pageNo] = value;
+		if (value == FULL) {
+			candidates.remove(pageNo);
+		} else {
+			candidates.add(pageNo);
+		}
+	}
+
+	private byte savedValue(int pageNo) {
+		return pageNo < saved.length ? saved[pageNo] : UNKNOWN;
+	}
+
+	/**
+	 * Called when the room last recorded for page pageNo is that of a
+	 * committed page. Writes the page's byte to the map's file if it changed.
+	 */
+	synchronized void committed(int pageNo) {
+		if (pageNo >= covered || pages[pageNo] == savedValue(pageNo)) {
+			return;
+		}
+		try {
+			write(pageNo, pages[pageNo]);
+			if (saved.length <= pageNo) {
+				saved = Arrays.copyOf(saved, Math.max(pageNo + 1, saved.length * 2));
+			}
+			saved[pageNo] = pages[pageNo];
+		} catch (IOException e) {
+			// the map is only a hint; the byte is written at the next commit
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Called when a transaction that may have changed page pageNo aborts.
+	 * The page goes back to the room recorded for it at the last commit.
+	 */
+	synchronized void aborted(int pageNo) {
+		if (pageNo < covered) {
+			set(pageNo, savedValue(pageNo));
+		}
+	}
+
+	/**
+	 * Closes the map's file. The map stays usable, and opens the file again
+	 * on its next write.
+	 */
+	synchronized void close() {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			channel = null;
+		}
+	}
+
+	/** Writes the byte of page pageNo to the map's file; caller holds this. */
+	private void write(int pageNo, byte value) throws IOException {
+		ByteBuffer b = ByteBuffer.wrap(new byte[] { value });
+		while (b.hasRemaining()) {
+			if (channel == null || !channel.isOpen()) {
+				channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+						StandardOpenOption.READ, StandardOpenOption.WRITE);
+			}
+			try {
+				channel.write(b, pageNo);
+			} catch (ClosedByInterruptException e) {
+				throw e;
+			} catch (ClosedChannelException e) {
+				// closed under another thread; reopen and retry
+			}
+		}
+	}
+
+	/** Returns the file the map is kept in. */
+	File getFile() {
+		return file;
+	}
+}
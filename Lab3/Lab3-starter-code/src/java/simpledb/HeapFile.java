@@ -1,7 +1,14 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntPredicate;
 
 /**
  * HeapFile is an implementation of a DbFile that stores a collection of tuples
@@ -18,6 +25,27 @@ public class HeapFile implements DbFile {
 	private File _f;
 	private TupleDesc _td;
 	private int table_id;
+	// opened on first use and shared by all readers and writers; positional
+	// reads and writes leave the channel's own position alone
+	private volatile FileChannel channel;
+	// non-null while pages are read through a memory mapping of the file
+	private volatile MappedPages mapped;
+	// opened on the first insert or delete
+	private volatile FreeSpaceMap fsm;
+	// the number of pages in use, or -1 until first needed; pages past it
+	// up to allocated_pages have been allocated on disk ahead of use
+	private volatile int num_pages = -1;
+	private volatile int allocated_pages = 0;
+
+	/** The number of pages the file grows by when it runs out of pages. */
+	public static final int EXTENT_PAGES = 32;
+	// the page each transaction last inserted into, which it keeps filling,
+	// until it completes
+	private final Map<TransactionId, Integer> lastInsert =
+			Collections.synchronizedMap(new WeakHashMap<TransactionId, Integer>());
+	// the transaction that last inserted into each page, until it completes
+	private final ConcurrentHashMap<Integer, TransactionId> inserters =
+			new ConcurrentHashMap<Integer, TransactionId>();
 	
     /**
      * Constructs a heap file backed by the specified file.
@@ -69,18 +97,82 @@ public class HeapFile implements DbFile {
         // throw new UnsupportedOperationException("implement this");
     }
 
+    /**
+     * Selects whether readPage() serves pages from a memory mapping of the
+     * file, as read-only views that are copied only when a page is first
+     * changed, rather than reading each page into a new array. Suits tables
+     * that are mostly read and fit in the operating system's page cache. A
+     * page read this way reflects writes made to the file while it is
+     * unchanged, which the locks held on it, or the snapshot it was read
+     * for, keep from happening while it is in use. Off by default.
+     */
+    public void setMemoryMapped(boolean on) {
+        mapped = on ? new MappedPages(0, BufferPool.getPageSize()) : null;
+    }
+
+    public boolean isMemoryMapped() {
+        return mapped != null;
+    }
+
+    /**
+     * Returns the channel to the file, opening it if it is not open. A
+     * channel closed under another thread, which happens when a thread is
+     * interrupted in the middle of I/O on it, is replaced.
+     */
+    private FileChannel channel(FileChannel closed) throws IOException {
+        FileChannel c = channel;
+        if (c != null && c != closed && c.isOpen()) {
+            return c;
+        }
+        synchronized (this) {
+            c = channel;
+            if (c == null || !c.isOpen()) {
+                c = FileChannel.open(_f.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+                channel = c;
+            }
+            return c;
+        }
+    }
+
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
         // some code goes here
     	Page page = null;
     	int page_size = BufferPool.getPageSize();
-    	byte[] data = new byte[page_size];
+    	MappedPages m = mapped;
+    	if (m != null && m.getPageSize() == page_size) {
+    		try {
+    			ByteBuffer view = m.page(channel(null), pid.getPageNumber());
+    			if (view != null) {
+    				return newPage((HeapPageId)pid, view);
+    			}
+    		} catch (IOException e) {
+    			e.printStackTrace();
+    		}
+    		// past the end of the file; read it as below
+    	}
+    	ByteBuffer data = ByteBuffer.allocate(page_size);
+    	long offset = (long) pid.getPageNumber() * page_size;
     	try {
-    		RandomAccessFile raf = new RandomAccessFile(this._f, "r");
-    		raf.seek(pid.getPageNumber() * BufferPool.getPageSize());
-    		raf.read(data);
-    		raf.close();
-    		page = new HeapPage((HeapPageId)pid, data);
+    		FileChannel c = channel(null);
+    		while (data.hasRemaining()) {
+    			int n;
+    			try {
+    				n = c.read(data, offset + data.position());
+    			} catch (ClosedByInterruptException e) {
+    				throw e;
+    			} catch (ClosedChannelException e) {
+    				c = channel(c);
+    				continue;
+    			}
+    			if (n < 0) {
+    				// past the end of the file; the rest of the page is empty
+    				break;
+    			}
+    		}
+    		data.clear();
+    		page = newPage((HeapPageId)pid, data);
     	}
     	catch (IOException e){
     		e.printStackTrace();
@@ -88,26 +180,164 @@ public class HeapFile implements DbFile {
         return page;
     }
 
+    /**
+     * Returns a page of this file's format that is a view over the page
+     * image in data.
+     */
+    HeapPage newPage(HeapPageId pid, ByteBuffer data) throws IOException {
+        return new HeapPage(pid, data);
+    }
+
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
         // some code goes here
         // not necessary for lab1
-        try (RandomAccessFile raf = new RandomAccessFile(this._f, "rw")) {
-            raf.seek(page.getId().getPageNumber() * BufferPool.getPageSize());
-            byte[] data = page.getPageData();
-            raf.write(data);
-            raf.close();
+        ByteBuffer data = ByteBuffer.wrap(page.getPageData());
+        long offset = (long) page.getId().getPageNumber() * BufferPool.getPageSize();
+        try {
+            FileChannel c = channel(null);
+            while (data.hasRemaining()) {
+                try {
+                    c.write(data, offset + data.position());
+                } catch (ClosedByInterruptException e) {
+                    throw e;
+                } catch (ClosedChannelException e) {
+                    c = channel(c);
+                }
+            }
         }catch(IOException e) {
         	e.printStackTrace();
         }
+        int pageNo = page.getId().getPageNumber();
+        if (pageNo >= numPages()) {
+            pageWritten(pageNo);
+        }
+    }
+
+    /** Counts the pages up to pageNo, which was written past the last page. */
+    private synchronized void pageWritten(int pageNo) {
+        if (num_pages <= pageNo) {
+            num_pages = pageNo + 1;
+        }
+        if (allocated_pages <= pageNo) {
+            allocated_pages = pageNo + 1;
+        }
     }
 
     /**
      * Returns the number of pages in this HeapFile.
+     * <p>
+     * The count is taken from the length of the file when first needed, and
+     * kept in memory from then on, since the length includes the pages
+     * allocated ahead of use. Pages written past the end through writePage()
+     * are counted; whatever appends pages to the file by other means has to
+     * call refreshNumPages(). close() cuts the pages allocated ahead of use
+     * off the file, so a file opened again counts only the pages that were in
+     * use; a file that was not closed still has them, and they count as empty
+     * pages.
      */
     public int numPages() {
         // some code goes here
-        return (int) Math.ceil((double)_f.length() / (double) BufferPool.getPageSize());
+        int n = num_pages;
+        if (n >= 0) {
+            return n;
+        }
+        return refreshNumPages();
+    }
+
+    /**
+     * Brings the page count up to the length of the file, and returns it.
+     * For pages appended to the file without going through this HeapFile.
+     */
+    synchronized int refreshNumPages() {
+        int on_disk = (int) Math.ceil((double)_f.length() / (double) BufferPool.getPageSize());
+        if (num_pages < on_disk) {
+            num_pages = on_disk;
+        }
+        if (allocated_pages < on_disk) {
+            allocated_pages = on_disk;
+        }
+        return num_pages;
+    }
+
+    /**
+     * Adds a page to the end of the file and returns its number. When there
+     * are no pages allocated ahead of use left, the file is first grown by
+     * EXTENT_PAGES empty pages with a single write, so that appending pages
+     * does not extend the file once per page.
+     */
+    private synchronized int allocatePage() throws IOException {
+        int n = numPages();
+        if (n >= allocated_pages) {
+            int page_size = BufferPool.getPageSize();
+            ByteBuffer extent = ByteBuffer.allocate(EXTENT_PAGES * page_size);
+            long offset = (long) n * page_size;
+            FileChannel c = channel(null);
+            while (extent.hasRemaining()) {
+                try {
+                    c.write(extent, offset + extent.position());
+                } catch (ClosedByInterruptException e) {
+                    throw e;
+                } catch (ClosedChannelException e) {
+                    c = channel(c);
+                }
+            }
+            allocated_pages = n + EXTENT_PAGES;
+        }
+        num_pages = n + 1;
+        return n;
+    }
+
+    /**
+     * Truncates the file after the last page in use, giving back the pages
+     * allocatePage() allocated ahead of use that are still unused.
+     */
+    private synchronized void trimAllocated() throws IOException {
+        int n = num_pages;
+        if (n < 0 || allocated_pages <= n) {
+            return;
+        }
+        long size = (long) n * BufferPool.getPageSize();
+        FileChannel c = channel(null);
+        while (true) {
+            try {
+                c.truncate(size);
+                break;
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (ClosedChannelException e) {
+                c = channel(c);
+            }
+        }
+        allocated_pages = n;
+    }
+
+    /** Returns the free-space map of this file, opening it if need be. */
+    FreeSpaceMap getFreeSpaceMap() {
+        FreeSpaceMap m = fsm;
+        if (m == null) {
+            synchronized (this) {
+                m = fsm;
+                if (m == null) {
+                    m = new FreeSpaceMap(_f);
+                    fsm = m;
+                }
+            }
+        }
+        return m;
+    }
+
+    /**
+     * Returns true for the pages another transaction is inserting into,
+     * judging by whether the last transaction to insert there still holds
+     * its lock on the page.
+     */
+    private IntPredicate busy(TransactionId tid) {
+        return p -> {
+            TransactionId owner = inserters.get(p);
+            return owner != null && !owner.equals(tid)
+                    && Database.getBufferPool().holdsLock(owner, new HeapPageId(table_id, p));
+        };
     }
 
     // see DbFile.java for javadocs
@@ -118,35 +348,102 @@ public class HeapFile implements DbFile {
     		
     	// The array to return
     	ArrayList<Page> pageArr = new ArrayList<>();
+    	BufferPool bp = Database.getBufferPool();
+    	FreeSpaceMap m = getFreeSpaceMap();
+    	int num_pages = numPages();
+    	m.cover(num_pages);
     	
-    	// find a page with empty slot to insert if there is any	
-    	for (int i=0; i < numPages(); i++) {
-    		HeapPageId curr_pid = new HeapPageId(table_id, i);
-    		HeapPage curr_page = (HeapPage) Database.getBufferPool().getPage(tid, curr_pid, Permissions.READ_WRITE);
-    		if (curr_page.getNumEmptySlots()>0) {
+    	// keep filling the page tid inserted into last, if it has room;
+    	// otherwise ask the free-space map for a page with room
+    	Integer last = lastInsert.get(tid);
+    	int page_no = last != null && last < num_pages && m.mayHaveRoom(last)
+    			? last : m.candidate(num_pages, busy(tid));
+    	// pages with some room, but not enough for t, stay candidates
+    	Set<Integer> tried = new HashSet<Integer>();
+    	while (page_no >= 0 && tried.add(page_no)) {
+    		HeapPageId curr_pid = new HeapPageId(table_id, page_no);
+    		boolean held = bp.holdsLock(tid, curr_pid);
+    		HeapPage curr_page = (HeapPage) bp.getPage(tid, curr_pid, Permissions.READ_WRITE);
+    		if (curr_page.hasRoomFor(t)) {
     			curr_page.insertTuple(t);
     			curr_page.markDirty(true, tid);
+    			m.update(page_no, curr_page.getFreeSpace(), curr_page.getCapacity());
+    			lastInsert.put(tid, page_no);
+    			inserters.put(page_no, tid);
     			pageArr.add(curr_page);
     			return pageArr;
     		}
+    		// the map was out of date
+    		m.update(page_no, curr_page.getFreeSpace(), curr_page.getCapacity());
 		// A lock on curr_page is granted to tid upon creation, so if we do not
-    		// use the page then the lock should be released.
-    		else {
-    			Database.getBufferPool().releasePage(tid, curr_page.getId());
+    		// use the page then the lock should be released, unless tid held
+    		// it already.
+    		if (!held && curr_page.isDirty() == null) {
+    			// no one has changed the page since it was committed
+    			m.committed(page_no);
+    			bp.releasePage(tid, curr_pid);
     		}
+    		page_no = m.candidate(num_pages, busy(tid));
     	}
     	
-    	// create a new page since all are full or there is no page
-    	// num_pages = num_pages + 1;
-    	HeapPageId new_pid = new HeapPageId(table_id, this.numPages());
-		HeapPage new_page = new HeapPage(new_pid, HeapPage.createEmptyPageData());
+    	// add a page since all are full or there is no page; it is empty on
+    	// disk, and is read and locked through the buffer pool like any other
+    	HeapPageId new_pid = new HeapPageId(table_id, allocatePage());
+		HeapPage new_page = (HeapPage) bp.getPage(tid, new_pid, Permissions.READ_WRITE);
 		new_page.insertTuple(t);
 		new_page.markDirty(true, tid);
-		writePage(new_page);
+		m.update(new_pid.getPageNumber(), new_page.getFreeSpace(), new_page.getCapacity());
+		lastInsert.put(tid, new_pid.getPageNumber());
+		inserters.put(new_pid.getPageNumber(), tid);
     	pageArr.add(new_page);
 		return pageArr;
     }
 
+    /**
+     * Called by BufferPool when tid, which may have changed page pageNo of
+     * this file, commits or aborts. Forgets tid's inserts, and brings the
+     * free-space map's record of the page up to date with the page as
+     * committed.
+     */
+    void transactionComplete(TransactionId tid, int pageNo, boolean commit) {
+        inserters.remove(pageNo, tid);
+        lastInsert.remove(tid);
+        FreeSpaceMap m = fsm;
+        if (m == null) {
+            return;
+        }
+        if (commit) {
+            m.committed(pageNo);
+        } else {
+            m.aborted(pageNo);
+        }
+    }
+
+    /**
+     * Closes the files this HeapFile keeps open, first cutting off the pages
+     * allocated ahead of use that are still unused. It stays usable, and
+     * opens them again when next needed.
+     */
+    public void close() {
+        try {
+            trimAllocated();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        FileChannel c = channel;
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        FreeSpaceMap m = fsm;
+        if (m != null) {
+            m.close();
+        }
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
@@ -162,6 +459,7 @@ public class HeapFile implements DbFile {
   		HeapPage target_page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
   		target_page.deleteTuple(t);
     	target_page.markDirty(true, tid);
+    	getFreeSpaceMap().update(pid.getPageNumber(), target_page.getFreeSpace(), target_page.getCapacity());
     	pageArr.add(target_page);
     	return pageArr;
     	
@@ -179,8 +477,12 @@ public class HeapFile implements DbFile {
     	
     	private TransactionId _tid;
     	private int page_idx;
+    	// numPages() when last checked; checked again only on reaching it
+    	private int page_count;
     	private Iterator<Tuple> heap_page_iter;
     	private BufferPool bp;
+    	// keeps a scan of a large file from flushing the rest of the buffer pool
+    	private BufferAccessStrategy strategy;
     	   	
 		public HeapFileIterator(TransactionId tid) {
     		this._tid = tid;
@@ -191,8 +493,10 @@ public class HeapFile implements DbFile {
     	 // Do not use readPage but use BufferPool.getPage()
     	 public void open() throws DbException, TransactionAbortedException{
     		 page_idx = 0;
+    		 page_count = numPages();
+    		 strategy = bp.getScanStrategy(page_count);
     		 HeapPageId pid = new HeapPageId(table_id, page_idx);
-    		 HeapPage hp = (HeapPage) bp.getPage(_tid, pid, Permissions.READ_ONLY);
+    		 HeapPage hp = (HeapPage) bp.getPage(_tid, pid, Permissions.READ_ONLY, strategy);
     		 heap_page_iter = hp.iterator();
     	 }
     	 
@@ -202,21 +506,22 @@ public class HeapFile implements DbFile {
 //        		 if(page_idx == null) {
 //        			 return false;
 //        		 }
-        		 if(heap_page_iter.hasNext()) {
-        			 return true;
-        		 }else {
-        			 if (++page_idx < (numPages())) {
+        		 // pages left empty by deletes or aborted inserts are skipped
+        		 while (!heap_page_iter.hasNext()) {
+        			 if (++page_idx < page_count || page_idx < (page_count = numPages())) {
 //        				 page_idx += 1;
         				 HeapPageId pid = new HeapPageId(table_id, page_idx);
-        				 HeapPage hp = (HeapPage) bp.getPage(_tid, pid, Permissions.READ_ONLY);
+        				 HeapPage hp = (HeapPage) bp.getPage(_tid, pid, Permissions.READ_ONLY, strategy);
         				 heap_page_iter = hp.iterator();
-        				 return heap_page_iter.hasNext();
+        			 } else {
+        				 return false;
         			 }
 //        			 }else {
 //        				 page_idx = null;
 //        				 return false;
 //        			 }
         		 }
+        		 return true;
     		 }
     		 return false;
 
@@ -240,6 +545,7 @@ public class HeapFile implements DbFile {
     	 public void close() {
 //    		 bp = null;
     		 heap_page_iter = null;
+    		 strategy = null;
 //    		 page_idx = null;
     	 }
     }
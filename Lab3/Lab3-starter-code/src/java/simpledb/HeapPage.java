@@ -2,10 +2,16 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * A HeapPage is a view over the raw bytes of the page; tuples are decoded
+ * when the page is iterated and encoded into the page when inserted. The
+ * bytes live either in a heap buffer or, when the buffer pool keeps its pages
+ * off heap, in the pool's frame for this page.
  *
  * @see HeapFile
  * @see BufferPool
@@ -15,9 +21,11 @@ public class HeapPage implements Page {
 
     final HeapPageId pid;
     final TupleDesc td;
-    final byte header[];
-    final Tuple tuples[];
+    final int headerSize;
     final int numSlots;
+    // the page image; only absolute get/put are used on it, so readers need
+    // not coordinate buffer positions
+    volatile ByteBuffer data;
     Dirty dirty;
     
     public class Dirty {
@@ -30,9 +38,27 @@ public class HeapPage implements Page {
     	}
     }
 
+    // number of inserts and deletes, so a writer can tell whether the page
+    // changed while it was being written; guarded by this
+    int modCount = 0;
+
+    // null while the page is unchanged since setBeforeImage(), in which case
+    // the before image is the current page data
     byte[] oldData;
     private final Byte oldDataLock=new Byte((byte)0);
 
+    /**
+     * The page image the iterators opened since the last change to the page
+     * read. It is null while the page is unchanged, and they read the page
+     * itself; the change that ends that sets it to a copy of the page as it
+     * was before.
+     */
+    private static class Snapshot {
+        volatile ByteBuffer image;
+    }
+    // shared by the iterators opened since the last change; guarded by this
+    private Snapshot iterated;
+
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
      * The format of a HeapPage is a set of header bytes indicating
@@ -50,34 +76,44 @@ public class HeapPage implements Page {
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data.clone()));
+    }
+
+    /**
+     * Create a HeapPage that is a view over the page image in data, without
+     * copying it. The caller hands data over to the page.
+     */
+    HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
+        this(id, data, getNumTuples(tupleDesc(id)), getHeaderSize(tupleDesc(id)));
+    }
+
+    /**
+     * Create a page with numSlots slots after a header of headerSize bytes
+     * over the page image in data; subclasses with a page format of their
+     * own choose these.
+     */
+    HeapPage(HeapPageId id, ByteBuffer data, int numSlots, int headerSize) throws IOException {
         this.pid = id;
-        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
-        this.numSlots = getNumTuples();
+        this.td = tupleDesc(id);
+        this.numSlots = numSlots;
+        this.headerSize = headerSize;
         this.dirty = new Dirty(false, null); 
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
+        if (data.capacity() < BufferPool.getPageSize())
+            throw new IOException("short page " + id);
+        this.data = data;
 
         setBeforeImage();
     }
 
+    /** Returns the TupleDesc of the table page id belongs to. */
+    static TupleDesc tupleDesc(HeapPageId id) {
+        return Database.getCatalog().getTupleDesc(id.getTableId());
+    }
+
     /** Retrieve the number of tuples on this page.
         @return the number of tuples on this page
     */
-    private int getNumTuples() {        
+    private static int getNumTuples(TupleDesc td) {        
         // some code goes here
         return (int) Math.floor((BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1));    
     }
@@ -86,9 +122,9 @@ public class HeapPage implements Page {
      * Computes the number of bytes in the header of a page in a HeapFile with each tuple occupying tupleSize bytes
      * @return the number of bytes in the header of a page in a HeapFile with each tuple occupying tupleSize bytes
      */
-    private int getHeaderSize() {   
+    private static int getHeaderSize(TupleDesc td) {   
     	// some code goes here
-        return (int) Math.ceil(getNumTuples() / 8.0);                 
+        return (int) Math.ceil(getNumTuples(td) / 8.0);                 
     }
     
     /** Return a view of this page before it was modified
@@ -96,11 +132,17 @@ public class HeapPage implements Page {
     public HeapPage getBeforeImage(){
         try {
             byte[] oldDataRef = null;
-            synchronized(oldDataLock)
-            {
-                oldDataRef = oldData;
+            // changes save the before image holding this, so the page
+            // cannot change between finding none saved and copying the data
+            synchronized (this) {
+                synchronized(oldDataLock)
+                {
+                    oldDataRef = oldData;
+                }
+                if (oldDataRef == null)
+                    oldDataRef = getPageData();
             }
-            return new HeapPage(pid,oldDataRef);
+            return newPage(ByteBuffer.wrap(oldDataRef));
         } catch (IOException e) {
             e.printStackTrace();
             //should never happen -- we parsed it OK before!
@@ -112,7 +154,33 @@ public class HeapPage implements Page {
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        oldData = null;
+        }
+    }
+
+    /**
+     * Returns a page of the same kind and id as this one that is a view over
+     * the page image in data.
+     */
+    HeapPage newPage(ByteBuffer data) throws IOException {
+        return new HeapPage(pid, data);
+    }
+
+    /** Saves the before image, if not saved yet, ahead of a change to the page. */
+    void saveBeforeImage() {
+        synchronized(oldDataLock)
+        {
+        if (oldData == null)
+            oldData = getPageData();
+        }
+        if (iterated != null) {
+            // open iterators go on reading the page as it is now
+            iterated.image = ByteBuffer.wrap(getPageData());
+            iterated = null;
+        }
+        if (data.isReadOnly()) {
+            // a view of a memory-mapped file; changes go to a copy
+            data = ByteBuffer.wrap(getPageData());
         }
     }
 
@@ -125,39 +193,33 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * Decodes the tuple in slot slotId of the page image in image. Each field
+     * is read straight from its offset in the slot.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
-        }
-
-        // read fields in the tuple
+    Tuple readTuple(ByteBuffer image, int slotId) {
         Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
+        t.setRecordId(new RecordId(pid, slotId));
+        for (int j=0; j<td.numFields(); j++) {
+            int at = fieldOffset(image, slotId, j);
+            if (td.getFieldType(j) == Type.STRING_TYPE) {
+                int len = Math.max(0, Math.min(image.getInt(at), Type.STRING_LEN));
+                byte[] bs = new byte[len];
+                ByteBuffer src = image.duplicate();
+                src.position(at + Type.INT_TYPE.getLen());
+                src.get(bs);
+                t.setField(j, new StringField(new String(bs), Type.STRING_LEN));
+            } else {
+                t.setField(j, new IntField(image.getInt(at)));
             }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
         }
-
         return t;
     }
 
+    /** Returns the offset of field j of the tuple in slot slotId of image. */
+    int fieldOffset(ByteBuffer image, int slotId, int j) {
+        return slotOffset(slotId) + td.getFieldOffset(j);
+    }
+
     /**
      * Generates a byte array representing the contents of this page.
      * Used to serialize this page to disk.
@@ -169,65 +231,48 @@ public class HeapPage implements Page {
      * @see #HeapPage
      * @return A byte array correspond to the bytes of this page.
      */
-    public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
+    public synchronized byte[] getPageData() {
+        byte[] bytes = new byte[BufferPool.getPageSize()];
+        ByteBuffer view = data.duplicate();
+        view.position(0);
+        view.get(bytes);
+        return bytes;
+    }
 
-                }
-                continue;
-            }
+    /** Returns the offset of slot i in the page image. */
+    private int slotOffset(int i) {
+        return headerSize + i * td.getSize();
+    }
 
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-                
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
+    /**
+     * Copies the page image to the heap if it currently lives in a buffer
+     * pool frame, so that the frame can be reused while this object is still
+     * referenced, or in a memory-mapped file, so that later writes to the
+     * file do not show through.
+     */
+    synchronized void moveToHeap() {
+        if (data.isDirect())
+            data = ByteBuffer.wrap(getPageData());
+    }
 
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    /** Copies the page image into frame and makes this page a view over it. */
+    synchronized void moveToFrame(ByteBuffer frame) {
+        if (frame == data)
+            return;
+        ByteBuffer dst = frame.duplicate();
+        dst.position(0);
+        dst.put(getPageData());
+        data = frame;
+    }
 
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    /** Returns the number of changes made to this page so far. */
+    synchronized int getModCount() {
+        return modCount;
+    }
 
-        return baos.toByteArray();
+    /** Returns true if the page image lives in frame. */
+    boolean isViewOf(ByteBuffer frame) {
+        return data == frame;
     }
 
     /**
@@ -251,20 +296,24 @@ public class HeapPage implements Page {
      *         already empty.
      * @param t The tuple to delete
      */
-    public void deleteTuple(Tuple t) throws DbException {
+    public synchronized void deleteTuple(Tuple t) throws DbException {
         // some code goes here
         // not necessary for lab1
     	RecordId rid = t.getRecordId();
     	PageId page_id = rid.getPageId();
     	int tup_num = rid.getTupleNumber();
-    	if (page_id != pid || rid.getTupleNumber() >= numSlots) {
+    	if (!pid.equals(page_id) || rid.getTupleNumber() >= numSlots) {
     		throw new DbException("Tuple not on this page.");
     	}
     	if (!isSlotUsed(tup_num)) {
     		throw new DbException("Tuple slot already empty.");
     	}
-    	tuples[rid.getTupleNumber()] = null;
+    	saveBeforeImage();
+    	modCount++;
     	markSlotUsed(tup_num, false); 
+    	ByteBuffer slot = data.duplicate();
+    	slot.position(slotOffset(tup_num));
+    	slot.put(new byte[td.getSize()]);
     }
 
     /**
@@ -274,7 +323,7 @@ public class HeapPage implements Page {
      *         is mismatch.
      * @param t The tuple to add.
      */
-    public void insertTuple(Tuple t) throws DbException {
+    public synchronized void insertTuple(Tuple t) throws DbException {
         // some code goes here
         // not necessary for lab1
     	if (getNumEmptySlots()==0) {
@@ -283,12 +332,27 @@ public class HeapPage implements Page {
     	if (!t.getTupleDesc().equals(td)) {
     		throw new DbException("Tuple schema mismatch.");
     	}
+    	// encode the tuple before touching the page
+    	ByteArrayOutputStream baos = new ByteArrayOutputStream(td.getSize());
+    	DataOutputStream dos = new DataOutputStream(baos);
+    	try {
+    		for (int j=0; j<td.numFields(); j++) {
+    			t.getField(j).serialize(dos);
+    		}
+    		dos.flush();
+    	} catch (IOException e) {
+    		throw new DbException("could not encode tuple: " + e.getMessage());
+    	}
     	// find an empty slot
     	for (int i=0; i<numSlots; i++) {
     		if(!isSlotUsed(i)) {
+    			saveBeforeImage();
+    			modCount++;
+    			ByteBuffer slot = data.duplicate();
+    			slot.position(slotOffset(i));
+    			slot.put(baos.toByteArray()); // add tuple to page
     			markSlotUsed(i, true); // mark slot as used
     			t.setRecordId(new RecordId(pid, i));  // change rid	
-    	    	tuples[i] = t;    	   // add tuple to page
     			break;
     		}
     	}
@@ -333,14 +397,37 @@ public class HeapPage implements Page {
         return cnt;
     }
 
+    /** Returns true if there is room on this page for t. */
+    boolean hasRoomFor(Tuple t) {
+        return getNumEmptySlots() > 0;
+    }
+
+    /**
+     * Returns how much room is left on this page, in the units of
+     * getCapacity(); used by the free-space map.
+     */
+    int getFreeSpace() {
+        return getNumEmptySlots();
+    }
+
+    /** Returns how much room an empty page has, in the units of getFreeSpace(). */
+    int getCapacity() {
+        return numSlots;
+    }
+
     /**
      * Returns true if associated slot on this page is filled.
      */
     public boolean isSlotUsed(int i) {
         // some code goes here
+    	return isSlotUsed(data, i);
+    }
+
+    /** Returns true if slot i is filled in the page image in image. */
+    boolean isSlotUsed(ByteBuffer image, int i) {
     	int header_byte = (int) Math.floor(i / 8);
     	int header_bit = i - (header_byte * 8);
-    	return ((header[header_byte] >> header_bit) & 1) == 1;
+    	return ((image.get(header_byte) >> header_bit) & 1) == 1;
     }
 
     /**
@@ -351,17 +438,18 @@ public class HeapPage implements Page {
         // not necessary for lab1
     	int header_byte = (int) Math.floor(i / 8);
     	int header_bit = i - (header_byte * 8);
-    	int current_bit = ((header[header_byte] >> header_bit) & 1);
+    	byte header = data.get(header_byte);
+    	int current_bit = ((header >> header_bit) & 1);
     	// if we are marking it as used
     	if(value) {
     		if (current_bit==0){
-    			header[header_byte] = (byte) (header[header_byte] + (1<<header_bit));
+    			data.put(header_byte, (byte) (header + (1<<header_bit)));
     		}
     	} 
     	// if we are marking it as unused
     	else {
     		if (current_bit==1){
-    			header[header_byte] = (byte) (header[header_byte] - (1<<header_bit));    		
+    			data.put(header_byte, (byte) (header - (1<<header_bit)));    		
     		}	
     	}   	
     }
@@ -372,16 +460,67 @@ public class HeapPage implements Page {
      */
     public Iterator<Tuple> iterator() {
         // some code goes here
-    	ArrayList<Tuple> TupleArray= new ArrayList<Tuple>();
-    	for (int i=0; i<tuples.length; i++)
-    	{
-    		if(isSlotUsed(i))
-    		{
-    			TupleArray.add(tuples[i]);	
-    		}
-    	}
-        return TupleArray.iterator();
+        // reads the page in place and decodes each tuple only on reaching
+        // it; the first change to the page after this hands the iterators
+        // still reading it a copy of the page as it was
+        final Snapshot s;
+        synchronized (this) {
+            if (iterated == null)
+                iterated = new Snapshot();
+            s = iterated;
+        }
+        return new Iterator<Tuple>() {
+            private int slot = 0;
+            private Tuple next;
+
+            /** Returns the tuple in the next used slot from slot on, or null. */
+            private Tuple find() {
+                ByteBuffer image = s.image;
+                if (image == null) {
+                    synchronized (HeapPage.this) {
+                        // the page has not changed, nor can it while its
+                        // monitor is held, and its frame stays put
+                        if (s.image == null)
+                            return find(data);
+                        image = s.image;
+                    }
+                }
+                return find(image);
+            }
+
+            private Tuple find(ByteBuffer image) {
+                int limit = slotLimit(image);
+                while (slot < limit) {
+                    int i = slot++;
+                    if (isSlotUsed(image, i))
+                        return readTuple(image, i);
+                }
+                return null;
+            }
+
+            public boolean hasNext() {
+                if (next == null)
+                    next = find();
+                return next != null;
+            }
+
+            public Tuple next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                Tuple t = next;
+                next = null;
+                return t;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
     }
 
-}
+    /** Returns the number of slots of image an iterator looks at. */
+    int slotLimit(ByteBuffer image) {
+        return numSlots;
+    }
 
+}
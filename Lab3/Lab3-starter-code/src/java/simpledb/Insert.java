@@ -80,6 +80,8 @@ public class Insert extends Operator {
 			try {
 				bp.insertTuple(this.transactionId, this.tid, tup);
 				cnt+=1;
+			}catch(TransactionAbortedException e) {
+				throw e;
 			}catch(Exception e) {
 				throw new DbException("Db exception");
 			}
@@ -0,0 +1,40 @@
+package simpledb;
+
+/**
+ * IsolationLevel selects how the buffer pool keeps concurrent transactions
+ * from seeing each other's uncommitted changes.
+ *
+ * @see BufferPool#setIsolationLevel(IsolationLevel)
+ */
+public enum IsolationLevel {
+
+    /**
+     * Every page a transaction reads or writes is locked until it commits
+     * or aborts (strict two-phase locking). Readers wait for writers and
+     * writers wait for readers. This is the default.
+     */
+    SERIALIZABLE,
+
+    /**
+     * A transaction reads every page as of the last commit before it
+     * started, without taking a lock, so readers and writers never wait for
+     * each other. Writes still lock pages exclusively. A transaction that
+     * writes a page some other transaction has changed and committed since
+     * its snapshot is aborted (first committer wins). Two transactions that
+     * each read what the other writes may both commit, which serializable
+     * execution would not allow.
+     */
+    SNAPSHOT,
+
+    /**
+     * Optimistic concurrency control: transactions take no locks. Reads
+     * record the version of each page, and writes go to private copies of
+     * the pages. At commit, a transaction whose reads are all still current
+     * installs its copies in the pool; otherwise it is aborted. Suits short
+     * transactions that rarely touch the same pages. Only heap files can be
+     * written at this level.
+     *
+     * @see BufferPool#validate(TransactionId)
+     */
+    OPTIMISTIC
+}
@@ -0,0 +1,707 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * LockManager keeps the page, key and table locks of the transactions using
+ * a BufferPool, and decides which requests wait and which transactions abort
+ * to break deadlocks.
+ */
+class LockManager {
+	
+	/**
+	 * Lock modes. Pages and index keys are locked S or X; tables are locked
+	 * IS or IX by transactions that go on to lock some of their pages or
+	 * keys, and S or X by transactions that lock the whole table at once,
+	 * after escalation.
+	 */
+	enum Mode {
+		IS, IX, S, X;
+		
+		// true if a holder of this mode and a holder of other can coexist
+		boolean compatible(Mode other) {
+			switch (this) {
+			case IS: return other != X;
+			case IX: return other == IS || other == IX;
+			case S: return other == IS || other == S;
+			default: return false;
+			}
+		}
+		
+		// true if holding this mode gives every right other gives
+		boolean covers(Mode other) {
+			switch (this) {
+			case X: return true;
+			case S: return other == S || other == IS;
+			case IX: return other == IX || other == IS;
+			default: return other == IS;
+			}
+		}
+		
+		// the weakest mode that covers both; there is no SIX, so S and IX
+		// combine to X
+		Mode combine(Mode other) {
+			if (covers(other)) {
+				return this;
+			}
+			if (other.covers(this)) {
+				return other;
+			}
+			return X;
+		}
+	}
+	
+	/** Key of the lock on a whole table, as opposed to one of its pages. */
+	static final class TableKey {
+		final int tableId;
+		
+		TableKey(int tableId) {
+			this.tableId = tableId;
+		}
+		
+		public boolean equals(Object o) {
+			return o instanceof TableKey && ((TableKey) o).tableId == tableId;
+		}
+		
+		public int hashCode() {
+			return tableId;
+		}
+	}
+	
+	/**
+	 * Key of the lock on one key value of a B+ tree, which covers every tuple
+	 * with that key and the gap below it, down to the previous key; the end
+	 * of the index is the null key. Key values are locked rather than
+	 * RecordIds because a tuple's RecordId changes whenever the tree shifts,
+	 * splits or merges the leaf it is in.
+	 */
+	static final class IndexKey {
+		final int tableId;
+		final Field key;
+		
+		IndexKey(int tableId, Field key) {
+			this.tableId = tableId;
+			this.key = key;
+		}
+		
+		public boolean equals(Object o) {
+			if (!(o instanceof IndexKey)) {
+				return false;
+			}
+			IndexKey other = (IndexKey) o;
+			if (other.tableId != tableId) {
+				return false;
+			}
+			// Field.equals() does not take null
+			return key == null || other.key == null ? key == other.key : key.equals(other.key);
+		}
+		
+		public int hashCode() {
+			return 31 * tableId + (key == null ? 0 : key.hashCode());
+		}
+	}
+	
+	/**
+	 * A request for a lock that could not be granted at once. The requesting
+	 * thread waits on the request itself, so that a release wakes only the
+	 * requests it grants, or the request it picks as a deadlock victim.
+	 */
+	static class LockRequest {
+		final TransactionId tid;
+		final Object key;
+		final Mode mode;
+		private boolean granted = false; // guarded by this
+		private boolean aborted = false; // guarded by this
+		
+		LockRequest(TransactionId tid, Object key, Mode mode) {
+			this.tid = tid;
+			this.key = key;
+			this.mode = mode;
+		}
+		
+		synchronized void grant() {
+			granted = true;
+			notifyAll();
+		}
+		
+		synchronized void abort() {
+			aborted = true;
+			notifyAll();
+		}
+		
+		synchronized boolean isGranted() {
+			return granted;
+		}
+		
+		synchronized boolean isAborted() {
+			return aborted;
+		}
+		
+		/**
+		 * Waits until the request is granted, or withdrawn because its
+		 * transaction was chosen as a deadlock victim.
+		 *
+		 * @return true if the request was granted
+		 */
+		synchronized boolean await() throws InterruptedException {
+			while (!granted && !aborted) {
+				wait();
+			}
+			return granted;
+		}
+	}
+	
+	/** The holders of a page or table lock and the requests waiting for it. */
+	static class LockEntry {
+		final Object key;
+		final HashMap<TransactionId, Mode> holders = new HashMap<>();
+		// requests waiting for this lock, in the order they are granted
+		final LinkedList<LockRequest> waiters = new LinkedList<>();
+		
+		LockEntry(Object key) {
+			this.key = key;
+		}
+		
+		// true if tid may hold mode alongside the other holders
+		boolean compatible(TransactionId tid, Mode mode) {
+			for (Map.Entry<TransactionId, Mode> h : holders.entrySet()) {
+				if (!h.getKey().equals(tid) && !h.getValue().compatible(mode)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		
+		// true if tid already holds a mode at least as strong as mode
+		boolean covers(TransactionId tid, Mode mode) {
+			Mode held = holders.get(tid);
+			return held != null && held.covers(mode);
+		}
+	}
+	
+	/** Default number of page and key locks in one table after which a transaction locks the whole table. */
+	static final int DEFAULT_ESCALATION_THRESHOLD = 1000;
+	
+	// page, key and table locks, by PageId, IndexKey and TableKey
+	private ConcurrentHashMap<Object, LockEntry> lockTable;
+	// page, key and table locks each transaction holds, and the pages it has
+	// asked to write, so that commit and abort visit only those
+	private ConcurrentHashMap<TransactionId, LinkedHashSet<Object>> transactionTable;
+	private ConcurrentHashMap<TransactionId, LinkedHashSet<PageId>> writeTable;
+	// number of page and key locks each transaction holds in each table
+	private HashMap<TransactionId, HashMap<Integer, Integer>> pageCounts;
+	// queued requests of each waiting transaction; these, together with the
+	// locks they wait on, are the edges of the wait-for graph
+	private HashMap<TransactionId, ArrayList<LockRequest>> waiting;
+	// transactions wounded under WOUND_WAIT that have not finished yet
+	private HashSet<TransactionId> wounded;
+	private DeadlockPolicy policy = DeadlockPolicy.DETECT;
+	private int escalationThreshold = DEFAULT_ESCALATION_THRESHOLD;
+	
+	public LockManager() {
+		lockTable = new ConcurrentHashMap<>();
+		transactionTable = new ConcurrentHashMap<>();
+		writeTable = new ConcurrentHashMap<>();
+		pageCounts = new HashMap<>();
+		waiting = new HashMap<>();
+		wounded = new HashSet<>();
+	}
+	
+	public synchronized void setPolicy(DeadlockPolicy policy) {
+		this.policy = policy;
+	}
+	
+	public synchronized DeadlockPolicy getPolicy() {
+		return policy;
+	}
+	
+	public synchronized void setEscalationThreshold(int pages) {
+		escalationThreshold = pages;
+	}
+	
+	public synchronized int getEscalationThreshold() {
+		return escalationThreshold;
+	}
+	
+	// forgets tid once it has committed or aborted
+	public synchronized void transactionFinished(TransactionId tid) {
+		wounded.remove(tid);
+	}
+	
+	/**
+	 * Grants tid the right to access pid with perm if it can be granted at
+	 * once. Otherwise queues a request and returns it; the caller waits on
+	 * it with {@link LockRequest#await()} and then calls this again, until
+	 * it returns null.
+	 * <p>
+	 * A page is reached through its table: tid first takes an IS (to read)
+	 * or IX (to write) lock on the table, then an S or X lock on the page.
+	 * A transaction that holds S or X on the table needs no page locks.
+	 * Once a transaction holds more than the escalation threshold of page
+	 * locks in one table, its table lock is converted to S or X, if that can
+	 * be done without waiting, and its page locks there are released.
+	 *
+	 * @return null if the access was granted
+	 */
+	public synchronized LockRequest requestLock(TransactionId tid, PageId pid, Permissions perm) {
+		boolean write = perm == Permissions.READ_WRITE;
+		LockRequest request = requestInTable(tid, pid, pid.getTableId(), write);
+		if (request == null && write) {
+			addToTable(writeTable, tid, pid);
+		}
+		return request;
+	}
+	
+	/**
+	 * Like {@link #requestLock(TransactionId, PageId, Permissions)}, but for
+	 * a key of the B+ tree tableId rather than a page: READ_ONLY asks for S
+	 * on the key, READ_WRITE for X. Key locks count toward escalation like
+	 * page locks.
+	 *
+	 * @param key the key, or null for the end of the index
+	 * @return null if the lock was granted
+	 */
+	public synchronized LockRequest requestKeyLock(TransactionId tid, int tableId, Field key, Permissions perm) {
+		return requestInTable(tid, new IndexKey(tableId, key), tableId, perm == Permissions.READ_WRITE);
+	}
+	
+	// takes IS or IX on the table, then S or X on key, one of its pages or keys
+	private LockRequest requestInTable(TransactionId tid, Object key, int tableId, boolean write) {
+		TableKey table = new TableKey(tableId);
+		LockEntry tl = lockTable.get(table);
+		if (tl == null || !tl.covers(tid, write ? Mode.IX : Mode.IS)) {
+			LockRequest request = requestLock(tid, table, write ? Mode.IX : Mode.IS);
+			if (request != null) {
+				return request;
+			}
+			tl = lockTable.get(table);
+		}
+		if (!tl.covers(tid, write ? Mode.X : Mode.S)) {
+			LockRequest request = requestLock(tid, key, write ? Mode.X : Mode.S);
+			if (request != null) {
+				return request;
+			}
+			escalate(tid, tl);
+		}
+		return null;
+	}
+	
+	/**
+	 * Grants tid a lock on key in mode if it can be granted at once.
+	 * Otherwise queues a request behind the holders and earlier requests and
+	 * returns it. Requests are granted in FIFO order, except that a holder
+	 * asking for a stronger mode goes ahead of the other waiters, since it
+	 * only waits for the other holders to leave.
+	 * <p>
+	 * Queueing a request is the only way a wait-for cycle can form, so
+	 * deadlocks are handled here, as the DeadlockPolicy says. Under DETECT
+	 * the wait-for graph is searched for a path from tid back to itself,
+	 * and the youngest transaction on a cycle is chosen as the victim; if
+	 * it is not tid, its queued requests are aborted and its own thread
+	 * aborts it. Under WAIT_DIE and WOUND_WAIT the new wait is checked only
+	 * against the transactions it waits for.
+	 *
+	 * @return null if the lock was granted, otherwise the queued request,
+	 *         which is already aborted if tid has to abort
+	 */
+	private LockRequest requestLock(TransactionId tid, Object key, Mode mode) {
+		if (wounded.contains(tid)) {
+			LockRequest request = new LockRequest(tid, key, mode);
+			request.abort();
+			return request;
+		}
+		LockEntry lock = lockTable.get(key);
+		if (lock == null) {
+			// No lock has been granted for the page or table
+			lock = new LockEntry(key);
+			lockTable.put(key, lock);
+			grant(lock, tid, mode);
+			return null;
+		}
+		if (lock.covers(tid, mode)) {
+			return null;
+		}
+		Mode held = lock.holders.get(tid);
+		Mode wanted = held == null ? mode : held.combine(mode);
+		boolean upgrade = held != null;
+		if (lock.compatible(tid, wanted) && (upgrade || lock.waiters.isEmpty())) {
+			grant(lock, tid, wanted);
+			return null;
+		}
+		LockRequest request = new LockRequest(tid, key, wanted);
+		if (upgrade) {
+			lock.waiters.addFirst(request);
+		} else {
+			lock.waiters.addLast(request);
+		}
+		ArrayList<LockRequest> pending = waiting.get(tid);
+		if (pending == null) {
+			pending = new ArrayList<>();
+			waiting.put(tid, pending);
+		}
+		pending.add(request);
+		if (policy == DeadlockPolicy.DETECT) {
+			resolveDeadlocks(tid);
+		} else {
+			preventDeadlocks(lock, request, upgrade);
+		}
+		return request;
+	}
+	
+	/**
+	 * Converts tid's intention lock on a table to S or X once it holds more
+	 * page and key locks there than the threshold, and drops those locks. The
+	 * conversion is only made if it can be granted at once, so escalation
+	 * never makes a transaction wait.
+	 */
+	private void escalate(TransactionId tid, LockEntry tl) {
+		int tableId = ((TableKey) tl.key).tableId;
+		HashMap<Integer, Integer> counts = pageCounts.get(tid);
+		if (counts == null || counts.getOrDefault(tableId, 0) <= escalationThreshold) {
+			return;
+		}
+		Mode target = tl.holders.get(tid) == Mode.IS ? Mode.S : Mode.X;
+		if (!tl.compatible(tid, target) || !tl.waiters.isEmpty()) {
+			return;
+		}
+		tl.holders.put(tid, target);
+		for (Object key : new ArrayList<>(transactionTable.get(tid))) {
+			Integer table = tableOf(key);
+			if (table != null && table == tableId) {
+				releaseLock(tid, key);
+			}
+		}
+	}
+	
+	/**
+	 * Applies WAIT_DIE or WOUND_WAIT to a newly queued request. An upgrade
+	 * goes ahead of queued requests that did not wait for it before, so
+	 * those new waits are checked too.
+	 */
+	private void preventDeadlocks(LockEntry lock, LockRequest request, boolean upgrade) {
+		for (TransactionId blocker : blockers(request)) {
+			if (request.isAborted()) {
+				return;
+			}
+			conflict(request, blocker);
+		}
+		if (upgrade && !request.isAborted()) {
+			for (LockRequest behind : new ArrayList<>(lock.waiters)) {
+				if (behind != request && !behind.tid.equals(request.tid) && !behind.mode.compatible(request.mode)) {
+					conflict(behind, request.tid);
+				}
+			}
+		}
+	}
+	
+	// request waits for blocker; abort whichever of the two the policy says
+	private void conflict(LockRequest request, TransactionId blocker) {
+		boolean older = request.tid.getId() < blocker.getId();
+		if (policy == DeadlockPolicy.WAIT_DIE && !older) {
+			// die
+			withdraw(request);
+			request.abort();
+		} else if (policy == DeadlockPolicy.WOUND_WAIT && older) {
+			// wound
+			wounded.add(blocker);
+			ArrayList<LockRequest> pending = waiting.get(blocker);
+			if (pending != null) {
+				for (LockRequest r : new ArrayList<>(pending)) {
+					withdraw(r);
+					r.abort();
+				}
+			}
+		}
+	}
+	
+	// breaks every cycle through tid by aborting the youngest transaction on it
+	private void resolveDeadlocks(TransactionId tid) {
+		ArrayList<TransactionId> cycle;
+		while ((cycle = findCycle(tid)) != null) {
+			TransactionId victim = cycle.get(0);
+			for (TransactionId t : cycle) {
+				if (t.getId() > victim.getId()) {
+					victim = t;
+				}
+			}
+			for (LockRequest r : new ArrayList<>(waiting.get(victim))) {
+				withdraw(r);
+				r.abort();
+			}
+			if (victim.equals(tid)) {
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Searches the wait-for graph from tid for a path back to tid.
+	 *
+	 * @return the transactions on the cycle, starting with tid, or null
+	 */
+	private ArrayList<TransactionId> findCycle(TransactionId tid) {
+		ArrayList<TransactionId> path = new ArrayList<>();
+		path.add(tid);
+		HashSet<TransactionId> visited = new HashSet<>();
+		visited.add(tid);
+		return findCycle(tid, tid, visited, path) ? path : null;
+	}
+	
+	private boolean findCycle(TransactionId from, TransactionId start, HashSet<TransactionId> visited,
+			ArrayList<TransactionId> path) {
+		ArrayList<LockRequest> pending = waiting.get(from);
+		if (pending == null) {
+			return false;
+		}
+		for (LockRequest r : pending) {
+			for (TransactionId blocker : blockers(r)) {
+				if (blocker.equals(start)) {
+					return true;
+				}
+				if (visited.add(blocker)) {
+					path.add(blocker);
+					if (findCycle(blocker, start, visited, path)) {
+						return true;
+					}
+					path.remove(path.size() - 1);
+				}
+			}
+		}
+		return false;
+	}
+	
+	// a queued request waits for the incompatible holders and for the
+	// incompatible requests queued ahead of it
+	private ArrayList<TransactionId> blockers(LockRequest request) {
+		ArrayList<TransactionId> blockers = new ArrayList<>();
+		LockEntry lock = lockTable.get(request.key);
+		for (Map.Entry<TransactionId, Mode> h : lock.holders.entrySet()) {
+			if (!h.getKey().equals(request.tid) && !h.getValue().compatible(request.mode)) {
+				blockers.add(h.getKey());
+			}
+		}
+		for (LockRequest ahead : lock.waiters) {
+			if (ahead == request) {
+				break;
+			}
+			if (!ahead.tid.equals(request.tid) && !ahead.mode.compatible(request.mode)) {
+				blockers.add(ahead.tid);
+			}
+		}
+		return blockers;
+	}
+	
+	/**
+	 * Withdraws a request that has not been granted, as when its transaction
+	 * aborts while waiting.
+	 *
+	 * @return true if the request had been granted already
+	 */
+	public synchronized boolean cancelRequest(LockRequest request) {
+		if (request.isGranted()) {
+			return true;
+		}
+		withdraw(request);
+		return false;
+	}
+	
+	// removes a queued request from its lock's queue and from waiting
+	private void withdraw(LockRequest request) {
+		LockEntry lock = lockTable.get(request.key);
+		if (lock != null && lock.waiters.remove(request)) {
+			// requests behind it may be grantable now
+			grantWaiters(lock);
+		}
+		stopWaiting(request);
+	}
+	
+	private void stopWaiting(LockRequest request) {
+		ArrayList<LockRequest> pending = waiting.get(request.tid);
+		if (pending != null) {
+			pending.remove(request);
+			if (pending.isEmpty()) {
+				waiting.remove(request.tid);
+			}
+		}
+	}
+	
+	// record tid as a holder of the lock in mode; caller checked compatibility
+	private void grant(LockEntry lock, TransactionId tid, Mode mode) {
+		if (lock.holders.put(tid, mode) == null) {
+			addToTable(transactionTable, tid, lock.key);
+			Integer table = tableOf(lock.key);
+			if (table != null) {
+				countPage(tid, table, 1);
+			}
+		}
+	}
+	
+	// grant queued requests from the front for as long as they are compatible
+	private void grantWaiters(LockEntry lock) {
+		while (!lock.waiters.isEmpty()) {
+			LockRequest next = lock.waiters.getFirst();
+			if (!lock.compatible(next.tid, next.mode)) {
+				break;
+			}
+			lock.waiters.removeFirst();
+			grant(lock, next.tid, next.mode);
+			stopWaiting(next);
+			next.grant();
+		}
+		if (lock.holders.isEmpty() && lock.waiters.isEmpty()) {
+			lockTable.remove(lock.key);
+		}
+	}
+	
+	// the table of a page or key lock, or null for a table lock
+	private static Integer tableOf(Object key) {
+		if (key instanceof PageId) {
+			return ((PageId) key).getTableId();
+		}
+		if (key instanceof IndexKey) {
+			return ((IndexKey) key).tableId;
+		}
+		return null;
+	}
+	
+	private void countPage(TransactionId tid, int tableId, int delta) {
+		HashMap<Integer, Integer> counts = pageCounts.get(tid);
+		if (counts == null) {
+			counts = new HashMap<>();
+			pageCounts.put(tid, counts);
+		}
+		int n = counts.getOrDefault(tableId, 0) + delta;
+		if (n > 0) {
+			counts.put(tableId, n);
+		} else {
+			counts.remove(tableId);
+			if (counts.isEmpty()) {
+				pageCounts.remove(tid);
+			}
+		}
+	}
+	
+	/**
+	 * Releases tid's lock on a page. A page covered by a table lock has no
+	 * lock of its own, and stays accessible until the table lock is released.
+	 */
+	public synchronized boolean releaseLock(TransactionId tid, PageId pid) {
+		removeFromTable(writeTable, tid, pid);
+		return releaseLock(tid, (Object) pid);
+	}
+	
+	private boolean releaseLock(TransactionId tid, Object key) {
+		// Remove transaction table
+		removeFromTable(transactionTable, tid, key);
+		
+		// Remove lock table
+		LockEntry lock = lockTable.get(key);
+		if (lock != null && lock.holders.remove(tid) != null) {
+			Integer table = tableOf(key);
+			if (table != null) {
+				countPage(tid, table, -1);
+			}
+			// hand the lock to the requests waiting for it; the entry is
+			// removed from the table once no one holds or wants it
+			grantWaiters(lock);
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Puts tid's lock on a key of the B+ tree tableId back to mode, or
+	 * releases it if mode is null, after tid held it for the duration of one
+	 * operation; see BTreeFile. Does nothing if tid no longer holds the lock,
+	 * as after escalation.
+	 */
+	synchronized void restoreKeyLock(TransactionId tid, int tableId, Field key, Mode mode) {
+		IndexKey k = new IndexKey(tableId, key);
+		LockEntry lock = lockTable.get(k);
+		if (lock == null || !lock.holders.containsKey(tid)) {
+			return;
+		}
+		if (mode == null) {
+			releaseLock(tid, k);
+		} else {
+			lock.holders.put(tid, mode);
+			grantWaiters(lock);
+		}
+	}
+	
+	/** Releases every page, key and table lock tid holds. */
+	public synchronized void releaseAll(TransactionId tid) {
+		LinkedHashSet<Object> keys = transactionTable.get(tid);
+		if (keys != null) {
+			for (Object key : new ArrayList<>(keys)) {
+				releaseLock(tid, key);
+			}
+		}
+		writeTable.remove(tid);
+		pageCounts.remove(tid);
+	}
+	
+	/** Returns true if tid holds a lock on pid, or on its whole table. */
+	public synchronized boolean holdsLock(TransactionId tid, PageId pid) {
+		LockEntry lock = lockTable.get(pid);
+		if (lock != null && lock.holders.containsKey(tid)) {
+			return true;
+		}
+		LockEntry tl = lockTable.get(new TableKey(pid.getTableId()));
+		return tl != null && tl.covers(tid, Mode.S);
+	}
+	
+	/** Returns true if tid holds a lock on pid itself, rather than through its table. */
+	public synchronized boolean holdsPageLock(TransactionId tid, PageId pid) {
+		LockEntry lock = lockTable.get(pid);
+		return lock != null && lock.holders.containsKey(tid);
+	}
+	
+	/** Returns true if tid has asked to write pid and still holds its lock. */
+	public synchronized boolean holdsWriteLock(TransactionId tid, PageId pid) {
+		LinkedHashSet<PageId> pages = writeTable.get(tid);
+		return pages != null && pages.contains(pid);
+	}
+	
+	/** Returns the mode tid holds the lock on a key of the B+ tree tableId in, or null. */
+	synchronized Mode getKeyMode(TransactionId tid, int tableId, Field key) {
+		LockEntry lock = lockTable.get(new IndexKey(tableId, key));
+		return lock == null ? null : lock.holders.get(tid);
+	}
+	
+	/** Returns the mode tid holds the lock on a table in, or null. */
+	synchronized Mode getTableMode(TransactionId tid, int tableId) {
+		LockEntry tl = lockTable.get(new TableKey(tableId));
+		return tl == null ? null : tl.holders.get(tid);
+	}
+	
+	private static <K> void addToTable(ConcurrentHashMap<TransactionId, LinkedHashSet<K>> table,
+			TransactionId tid, K key) {
+		LinkedHashSet<K> keys = table.get(tid);
+		if (keys == null) {
+			// no entry tid
+			keys = new LinkedHashSet<K>();
+			table.put(tid, keys);
+		}
+		keys.add(key);
+	}
+	
+	private static <K> void removeFromTable(ConcurrentHashMap<TransactionId, LinkedHashSet<K>> table,
+			TransactionId tid, K key) {
+		LinkedHashSet<K> keys = table.get(tid);
+		if (keys != null) {
+			keys.remove(key);
+			if (keys.isEmpty()) {
+				table.remove(tid);
+			}
+		}
+	}
+	
+	// return a copy of the list of pages tid has asked to write; these are
+	// the only pages tid can have dirtied
+	public synchronized ArrayList<PageId> getXactWritePages(TransactionId tid){
+		LinkedHashSet<PageId> pages = writeTable.get(tid);
+		return pages == null ? new ArrayList<PageId>() : new ArrayList<PageId>(pages);
+	}
+}
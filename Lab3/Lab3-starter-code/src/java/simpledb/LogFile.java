@@ -2,7 +2,14 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.lang.reflect.*;
 
 /**
@@ -71,6 +78,18 @@ for each active transaction.
 
 */
 
+/**
+<u> Group commit: </u>
+<p>
+
+logCommit() does not force the log itself.  It appends the COMMIT
+record, leaves the monitor, and waits until a flush covers the record.
+A single flusher thread forces the log once for all the commits
+appended since its last force, so that concurrent committers share one
+fsync.  setGroupCommitDelay() makes the flusher wait a little before
+forcing, so that more commits join each batch.
+*/
+
 public class LogFile {
 
     final File logFile;
@@ -93,6 +112,32 @@ public class LogFile {
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
 
+    // shared by all log files, like the read-ahead executor, so that
+    // resetting the database in tests does not leak threads
+    private static final ExecutorService FLUSHER = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "simpledb-logflusher");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    /** Default time the flusher waits for more commits, in microseconds. */
+    public static final long DEFAULT_GROUP_COMMIT_DELAY_MICROS = 0;
+
+    // number of appends; unlike offsets it survives truncation
+    long appendSeq = 0; //protected by this
+
+    private final Object durableLock = new Object();
+    private long durableSeq = 0; //protected by durableLock
+    private long failedSeq = 0; //protected by durableLock
+    private IOException flushFailure; //protected by durableLock
+    private boolean flushScheduled = false; //protected by durableLock
+    private volatile long groupCommitDelayMicros = DEFAULT_GROUP_COMMIT_DELAY_MICROS;
+
+    private final LongAdder forces = new LongAdder();
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -125,6 +170,7 @@ public class LogFile {
     // the log.
     void preAppend() throws IOException {
         totalRecords++;
+        appendSeq++;
         if(recoveryUndecided){
             recoveryUndecided = false;
             raf.seek(0);
@@ -169,21 +215,143 @@ public class LogFile {
     }
 
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and force the log to disk.  Returns once a flush shared with
+        other committers has made the record durable; see the group
+        commit note above.
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+    public void logCommit(TransactionId tid) throws IOException {
+        long seq;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            raf.writeInt(COMMIT_RECORD);
+            raf.writeLong(tid.getId());
+            raf.writeLong(currentOffset);
+            currentOffset = raf.getFilePointer();
+            tidToFirstLogRecord.remove(tid.getId());
+            seq = appendSeq;
+        }
+        if (Thread.holdsLock(this)) {
+            // the flusher cannot get in while the caller holds the monitor
+            force();
+        } else {
+            awaitDurable(seq);
+        }
+    }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    /** Sets how long the flusher waits for more commits to join a
+        batch before it forces the log.  0, the default, forces as soon
+        as a commit arrives; commits that arrive during a force still
+        share the next one.
+
+        @param micros The delay, in microseconds
+    */
+    public void setGroupCommitDelay(long micros) {
+        if (micros < 0)
+            throw new IllegalArgumentException("group commit delay must not be negative");
+        groupCommitDelayMicros = micros;
+    }
+
+    public long getGroupCommitDelay() {
+        return groupCommitDelayMicros;
+    }
+
+    /** Returns the number of times the log has been forced to disk. */
+    public long getForceCount() {
+        return forces.sum();
+    }
+
+    /** Waits until every record up to append number seq is on disk,
+        scheduling a flush if none is under way. */
+    private void awaitDurable(long seq) throws IOException {
+        synchronized (durableLock) {
+            while (durableSeq < seq) {
+                if (failedSeq >= seq)
+                    throw new IOException("could not force the log: " + flushFailure.getMessage());
+                if (!flushScheduled) {
+                    flushScheduled = true;
+                    FLUSHER.execute(new Runnable() {
+                        public void run() { flushBatch(); }
+                    });
+                }
+                try {
+                    durableLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted waiting for group commit");
+                }
+            }
+        }
+    }
+
+    /** Runs on the flusher thread: forces the log once for every
+        commit appended so far and wakes their committers. */
+    private void flushBatch() {
+        long delay = groupCommitDelayMicros;
+        if (delay > 0) {
+            try {
+                TimeUnit.MICROSECONDS.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            forceUnlocked();
+        } catch (IOException e) {
+            // fail everyone waiting now; later commits try again. The
+            // monitor is taken first: force() holds it while it takes
+            // durableLock
+            long seq;
+            synchronized (this) {
+                seq = appendSeq;
+            }
+            synchronized (durableLock) {
+                failedSeq = Math.max(failedSeq, seq);
+                flushFailure = e;
+            }
+        } finally {
+            synchronized (durableLock) {
+                flushScheduled = false;
+                durableLock.notifyAll();
+            }
+        }
+    }
+
+    /** Forces the log without holding the monitor during the fsync, so
+        that other transactions can keep appending meanwhile. */
+    private void forceUnlocked() throws IOException {
+        while (true) {
+            long seq;
+            FileChannel channel;
+            synchronized (this) {
+                seq = appendSeq;
+                channel = raf.getChannel();
+                if (!channel.isOpen())
+                    throw new ClosedChannelException();
+            }
+            try {
+                channel.force(true);
+            } catch (ClosedChannelException e) {
+                // logTruncate() replaced the file; force the new one
+                continue;
+            }
+            forces.increment();
+            markDurable(seq);
+            return;
+        }
+    }
+
+    private void markDurable(long seq) {
+        synchronized (durableLock) {
+            if (seq > durableSeq) {
+                durableSeq = seq;
+                durableLock.notifyAll();
+            }
+        }
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -207,6 +375,11 @@ public class LogFile {
            after page data
            start offset
         */
+        // a transaction that never logged BEGIN (e.g. one whose pages are
+        // stolen by the buffer pool) is live from its first update on
+        if (!tidToFirstLogRecord.containsKey(tid.getId()))
+            tidToFirstLogRecord.put(tid.getId(), currentOffset);
+
         raf.writeInt(UPDATE_RECORD);
         raf.writeLong(tid.getId());
 
@@ -246,6 +419,22 @@ public class LogFile {
         //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
+    /** Skips over page data written by writePageData, without parsing it. */
+    void skipPageData(RandomAccessFile raf) throws IOException {
+        raf.readUTF();
+        raf.readUTF();
+        int numIdArgs = raf.readInt();
+        raf.skipBytes(numIdArgs * INT_SIZE);
+        int pageSize = raf.readInt();
+        raf.skipBytes(pageSize);
+    }
+
+    /** Returns true if the specified transaction has log records and has
+        not committed or aborted yet. */
+    public synchronized boolean isLive(TransactionId tid) {
+        return tidToFirstLogRecord.containsKey(tid.getId());
+    }
+
     Page readPageData(RandomAccessFile raf) throws IOException {
         PageId pid;
         Page newPage = null;
@@ -275,7 +464,7 @@ public class LogFile {
             pageArgs[0] = pid;
             pageArgs[1] = pageData;
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+            newPage = (Page)pageDataConstructor(pageConsts).newInstance(pageArgs);
 
             //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
         } catch (ClassNotFoundException e){
@@ -295,6 +484,16 @@ public class LogFile {
 
     }
 
+    /** Returns the constructor that builds a page from its id and a byte array. */
+    private static Constructor<?> pageDataConstructor(Constructor<?>[] consts) {
+        for (Constructor<?> c : consts) {
+            Class<?>[] params = c.getParameterTypes();
+            if (params.length == 2 && params[1] == byte[].class)
+                return c;
+        }
+        return consts[0];
+    }
+
     /** Write a BEGIN record for the specified transaction
         @param tid The transaction that is beginning
 
@@ -467,6 +666,40 @@ public class LogFile {
             synchronized(this) {
                 preAppend();
                 // some code goes here
+                Long first = tidToFirstLogRecord.get(tid.getId());
+                if (first == null)
+                    return; // nothing logged, so nothing reached disk
+
+                // the earliest before image of each page is its state before
+                // the transaction touched it
+                HashSet<PageId> restored = new HashSet<PageId>();
+                raf.seek(first);
+                while (raf.getFilePointer() < currentOffset) {
+                    int type = raf.readInt();
+                    long record_tid = raf.readLong();
+                    switch (type) {
+                    case UPDATE_RECORD:
+                        if (record_tid == tid.getId()) {
+                            Page before = readPageData(raf);
+                            skipPageData(raf);
+                            if (restored.add(before.getId())) {
+                                Database.getCatalog().getDatabaseFile(
+                                        before.getId().getTableId()).writePage(before);
+                                Database.getBufferPool().discardPage(before.getId());
+                            }
+                        } else {
+                            skipPageData(raf);
+                            skipPageData(raf);
+                        }
+                        break;
+                    case CHECKPOINT_RECORD:
+                        int numXactions = raf.readInt();
+                        raf.skipBytes(numXactions * 2 * LONG_SIZE);
+                        break;
+                    }
+                    raf.readLong(); // start offset of the record
+                }
+                raf.seek(currentOffset);
             }
         }
     }
@@ -505,6 +738,8 @@ public class LogFile {
 
     public  synchronized void force() throws IOException {
         raf.getChannel().force(true);
+        forces.increment();
+        markDurable(appendSeq);
     }
 
 }
@@ -0,0 +1,89 @@
+package simpledb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * MappedPages maps the pages of a file into memory, read-only, so that
+ * files can serve page reads as views of the operating system's page cache
+ * instead of copying each page into a new array.
+ * <p>
+ * The file is mapped in regions of a fixed number of pages, each mapped when
+ * one of its pages is first read. A region is mapped up to the end of the
+ * file at that time; a read past that end maps the region again, so the
+ * mapping grows with the file. Pages are numbered from 0 starting at a fixed
+ * offset into the file.
+ *
+ * @Threadsafe
+ */
+class MappedPages {
+
+	/** Pages per region; regions are mapped whole once the file is that long. */
+	static final int REGION_PAGES = 1 << 12;
+
+	private final long base;
+	private final int pageSize;
+	// replaced, never changed in place, whenever a region is mapped
+	private volatile MappedByteBuffer[] regions = new MappedByteBuffer[0];
+
+	/**
+	 * @param base     the offset in the file of page 0
+	 * @param pageSize the size of a page, in bytes
+	 */
+	MappedPages(long base, int pageSize) {
+		this.base = base;
+		this.pageSize = pageSize;
+	}
+
+	/** Returns the page size this mapping was made for. */
+	int getPageSize() {
+		return pageSize;
+	}
+
+	/**
+	 * Returns a read-only view of page pageNo, or null if the file, which c
+	 * is open on, ends before the end of the page. The view reflects later
+	 * writes to the page through c.
+	 */
+	ByteBuffer page(FileChannel c, int pageNo) throws IOException {
+		int r = pageNo / REGION_PAGES;
+		int offset = (pageNo % REGION_PAGES) * pageSize;
+		MappedByteBuffer[] mapped = regions;
+		MappedByteBuffer region = r < mapped.length ? mapped[r] : null;
+		if (region == null || region.capacity() < offset + pageSize) {
+			region = map(c, r, offset + pageSize);
+			if (region == null) {
+				return null;
+			}
+		}
+		ByteBuffer view = region.duplicate();
+		view.position(offset);
+		view.limit(offset + pageSize);
+		return view.slice();
+	}
+
+	/**
+	 * Maps region r of the file as far as the file goes, if that is at
+	 * least needed bytes; returns null otherwise.
+	 */
+	private synchronized MappedByteBuffer map(FileChannel c, int r, int needed) throws IOException {
+		MappedByteBuffer[] mapped = regions;
+		if (r < mapped.length && mapped[r] != null && mapped[r].capacity() >= needed) {
+			return mapped[r]; // mapped by another reader meanwhile
+		}
+		long start = base + (long) r * REGION_PAGES * pageSize;
+		long available = c.size() - start;
+		if (available < needed) {
+			return null;
+		}
+		long length = Math.min((long) REGION_PAGES * pageSize, available / pageSize * pageSize);
+		MappedByteBuffer region = c.map(FileChannel.MapMode.READ_ONLY, start, length);
+		mapped = Arrays.copyOf(mapped, Math.max(mapped.length, r + 1));
+		mapped[r] = region;
+		regions = mapped;
+		return region;
+	}
+}
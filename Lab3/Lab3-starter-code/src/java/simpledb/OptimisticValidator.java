@@ -0,0 +1,134 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * OptimisticValidator keeps the read and write sets of transactions running
+ * under the OPTIMISTIC isolation level of BufferPool, and validates them at
+ * commit.
+ * <p>
+ * Every commit that changes pages is numbered, and each page carries the
+ * number of the last commit that changed it as its version. A transaction
+ * records the version of every page it reads and writes into private copies
+ * of the pages, so the cached pages are never changed in place. It passes
+ * validation if none of the pages it read has a newer version by the time it
+ * commits (backward validation); BufferPool then installs its copies in the
+ * pool and gives them a new version, while holding off other commits.
+ *
+ * @Threadsafe
+ */
+class OptimisticValidator {
+
+	/** The read and write sets of one transaction; used by its own thread only. */
+	private static class Xact {
+		// version of each page when the transaction first read it
+		final HashMap<PageId, Long> reads = new HashMap<PageId, Long>();
+		// private copies of the pages the transaction may write
+		final LinkedHashMap<PageId, Page> writes = new LinkedHashMap<PageId, Page>();
+	}
+
+	private final ConcurrentHashMap<TransactionId, Xact> xacts = new ConcurrentHashMap<TransactionId, Xact>();
+	// the last commit that changed each page; a page not listed has version 0
+	private final HashMap<PageId, Long> versions = new HashMap<PageId, Long>();
+	private long lastCommit = 0;
+
+	private Xact xact(TransactionId tid) {
+		Xact x = xacts.get(tid);
+		if (x == null) {
+			x = new Xact();
+			xacts.put(tid, x);
+		}
+		return x;
+	}
+
+	/** Returns the current version of pid. */
+	synchronized long version(PageId pid) {
+		Long v = versions.get(pid);
+		return v == null ? 0 : v;
+	}
+
+	/** Returns tid's private copy of pid, or null if it has none. */
+	Page buffered(TransactionId tid, PageId pid) {
+		Xact x = xacts.get(tid);
+		return x == null ? null : x.writes.get(pid);
+	}
+
+	/** Records that tid read pid at the given version. */
+	void read(TransactionId tid, PageId pid, long version) {
+		Xact x = xact(tid);
+		if (!x.reads.containsKey(pid)) {
+			x.reads.put(pid, version);
+		}
+	}
+
+	/**
+	 * Makes page tid's private copy of its page. A page tid appended to its
+	 * file rather than read did not exist before, so it is recorded as read
+	 * at version 0; two transactions that append the same page conflict.
+	 */
+	void buffer(TransactionId tid, Page page) {
+		PageId pid = page.getId();
+		read(tid, pid, 0);
+		xact(tid).writes.put(pid, page);
+	}
+
+	/** Forgets tid's private copy of pid if tid has not changed it. */
+	void release(TransactionId tid, PageId pid) {
+		Xact x = xacts.get(tid);
+		if (x != null) {
+			Page copy = x.writes.get(pid);
+			if (copy != null && copy.isDirty() == null) {
+				x.writes.remove(pid);
+			}
+		}
+	}
+
+	/** Returns the pages tid has private copies of. */
+	ArrayList<PageId> getWritePages(TransactionId tid) {
+		Xact x = xacts.get(tid);
+		return x == null ? new ArrayList<PageId>() : new ArrayList<PageId>(x.writes.keySet());
+	}
+
+	/**
+	 * Validates tid's reads.
+	 *
+	 * @return the copies tid changed, to be installed before install() is
+	 *         called, or null if another transaction has committed a change
+	 *         to a page tid read
+	 */
+	synchronized ArrayList<Page> validate(TransactionId tid) {
+		ArrayList<Page> changed = new ArrayList<Page>();
+		Xact x = xacts.get(tid);
+		if (x == null) {
+			return changed;
+		}
+		for (Map.Entry<PageId, Long> read : x.reads.entrySet()) {
+			if (version(read.getKey()) != read.getValue()) {
+				return null;
+			}
+		}
+		for (Page copy : x.writes.values()) {
+			if (copy.isDirty() != null) {
+				changed.add(copy);
+			}
+		}
+		return changed;
+	}
+
+	/** Gives the pages a validated transaction installed a new version. */
+	synchronized void installed(Collection<Page> pages) {
+		if (pages.isEmpty()) {
+			return;
+		}
+		long commit = ++lastCommit;
+		for (Page page : pages) {
+			versions.put(page.getId(), commit);
+		}
+	}
+
+	/** Forgets tid's read and write sets. */
+	void end(TransactionId tid) {
+		xacts.remove(tid);
+	}
+}
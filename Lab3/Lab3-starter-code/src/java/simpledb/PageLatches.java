@@ -0,0 +1,109 @@
+package simpledb;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * PageLatches keeps short-term latches on the pages of one file. Unlike the
+ * locks of the LockManager, a latch says nothing about transactions: it is
+ * held by a thread only while that thread reads or changes a page in
+ * memory, and is released when the operation that took it is done.
+ * <p>
+ * The deadlock detector cannot see latches, so they are used under two
+ * rules. A thread waits for a read latch only by way of a lock (see
+ * {@link #tryReadLatch(PageId)}), and never waits for a lock while it holds
+ * a read latch. A thread takes a write latch only on a page its transaction
+ * has locked for writing, so it waits for readers alone, and they never
+ * wait.
+ * <p>
+ * A B+ tree that locks keys rather than pages (see BTreeFile) protects its
+ * pages with latches alone, under other rules: an operation that finds a
+ * latch busy releases every latch it holds and waits for that one with
+ * {@link #await(PageId, boolean)}, and only the one operation that splits or
+ * merges pages at a time waits for latches while holding others.
+ */
+class PageLatches {
+
+	private final ConcurrentHashMap<PageId, ReentrantReadWriteLock> latches =
+			new ConcurrentHashMap<PageId, ReentrantReadWriteLock>();
+
+	private ReentrantReadWriteLock latch(PageId pid) {
+		ReentrantReadWriteLock latch = latches.get(pid);
+		if (latch == null) {
+			ReentrantReadWriteLock created = new ReentrantReadWriteLock();
+			latch = latches.putIfAbsent(pid, created);
+			if (latch == null) {
+				latch = created;
+			}
+		}
+		return latch;
+	}
+
+	/**
+	 * Takes a read latch on pid unless another thread holds its write latch.
+	 *
+	 * @return false if the write latch is held; the caller may then wait
+	 *         for the writer's lock on pid, holding no latch
+	 */
+	boolean tryReadLatch(PageId pid) {
+		return latch(pid).readLock().tryLock();
+	}
+
+	/** Takes a read latch on pid, waiting for a thread that holds its write latch. */
+	void readLatch(PageId pid) {
+		latch(pid).readLock().lock();
+	}
+
+	/** Releases a read latch the current thread holds on pid, if any. */
+	void readUnlatch(PageId pid) {
+		ReentrantReadWriteLock latch = latches.get(pid);
+		if (latch != null && latch.getReadHoldCount() > 0) {
+			latch.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Takes the write latch on pid, waiting for its readers to leave, unless
+	 * the current thread holds it already.
+	 */
+	void writeLatch(PageId pid) {
+		ReentrantReadWriteLock latch = latch(pid);
+		if (!latch.isWriteLockedByCurrentThread()) {
+			latch.writeLock().lock();
+		}
+	}
+
+	/**
+	 * Takes the write latch on pid unless another thread holds a latch on it;
+	 * succeeds at once if the current thread holds the write latch already.
+	 */
+	boolean tryWriteLatch(PageId pid) {
+		ReentrantReadWriteLock latch = latch(pid);
+		return latch.isWriteLockedByCurrentThread() || latch.writeLock().tryLock();
+	}
+
+	/**
+	 * Waits until the latch on pid that an operation found busy is free, by
+	 * taking and releasing it. The caller holds no latch.
+	 *
+	 * @param write whether the operation wanted the write latch
+	 */
+	void await(PageId pid, boolean write) {
+		ReentrantReadWriteLock latch = latch(pid);
+		if (write) {
+			latch.writeLock().lock();
+			latch.writeLock().unlock();
+		} else {
+			latch.readLock().lock();
+			latch.readLock().unlock();
+		}
+	}
+
+	/** Releases the write latch the current thread holds on pid, if any. */
+	void writeUnlatch(PageId pid) {
+		ReentrantReadWriteLock latch = latches.get(pid);
+		if (latch != null && latch.isWriteLockedByCurrentThread()) {
+			latch.writeLock().unlock();
+		}
+	}
+}
@@ -0,0 +1,355 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * PageTable is the page cache behind BufferPool. Cached pages live in a fixed
+ * array of frames; the mapping from PageId to frame is split into hash
+ * partitions, each guarded by its own monitor, so that lookups of pages in
+ * different partitions never contend with each other.
+ * <p>
+ * Which frame to give up when the table is full is decided by an
+ * {@link EvictionPolicy}. A frame is claimed with a CAS on the frame array,
+ * and the victim's partition is only locked for the instant its mapping is
+ * removed, so concurrent misses do not queue on a pool-wide lock.
+ * <p>
+ * Lock order is partition, then policy: policy callbacks may be made while a
+ * partition is locked, and the policy must not call back into the table
+ * except through the FrameFilter passed to chooseVictim.
+ * <p>
+ * If the table is given a {@link FrameArena}, each HeapPage it caches is
+ * moved into the arena frame of its slot and becomes a view over that frame.
+ * A page that leaves the table is copied back to the heap first, since a
+ * caller may still hold it after its frame has been reused. Other page types
+ * stay on the heap.
+ *
+ * @Threadsafe
+ */
+class PageTable {
+
+	/** One cached page. */
+	static class Frame {
+		final PageId pid;
+		final int slot;
+		volatile Page page;
+
+		Frame(PageId pid, int slot, Page page) {
+			this.pid = pid;
+			this.slot = slot;
+			this.page = page;
+		}
+	}
+
+	/** A hash partition of the PageId -> Frame mapping. */
+	private static class Partition {
+		final HashMap<PageId, Frame> frames = new HashMap<>();
+	}
+
+	/** Placeholder stored in a frame slot while a claimed frame is being filled. */
+	private static final Frame RESERVED = new Frame(null, -1, null);
+
+	/** How many times to ask the policy for a victim before giving up. */
+	private static final int MAX_EVICTION_ATTEMPTS = 8;
+
+	private final Partition[] partitions;
+	private final int partitionMask;
+	private final AtomicReferenceArray<Frame> slots;
+	private final ConcurrentLinkedQueue<Integer> freeSlots;
+	private final EvictionPolicy policy;
+	private final EvictionPolicy.FrameFilter evictable;
+	private final int capacity;
+	private final FrameArena arena;
+
+	/**
+	 * @param capacity the maximum number of pages held by the table
+	 * @param numPartitions the number of lock partitions, rounded up to a power of two
+	 * @param policy the eviction policy; it is initialized by this constructor
+	 */
+	public PageTable(int capacity, int numPartitions, EvictionPolicy policy) {
+		this(capacity, numPartitions, policy, null);
+	}
+
+	/**
+	 * @param capacity the maximum number of pages held by the table
+	 * @param numPartitions the number of lock partitions, rounded up to a power of two
+	 * @param policy the eviction policy; it is initialized by this constructor
+	 * @param arena frames to keep cached pages in, or null to keep them on the heap
+	 */
+	public PageTable(int capacity, int numPartitions, EvictionPolicy policy, FrameArena arena) {
+		if (arena != null && arena.numFrames() < capacity) {
+			throw new IllegalArgumentException("arena has fewer frames than the table");
+		}
+		this.arena = arena;
+		int n = 1;
+		while (n < numPartitions) {
+			n <<= 1;
+		}
+		this.partitions = new Partition[n];
+		for (int i = 0; i < n; i++) {
+			partitions[i] = new Partition();
+		}
+		this.partitionMask = n - 1;
+		this.capacity = capacity;
+		this.slots = new AtomicReferenceArray<>(capacity);
+		this.freeSlots = new ConcurrentLinkedQueue<>();
+		for (int i = 0; i < capacity; i++) {
+			freeSlots.add(i);
+		}
+		this.policy = policy;
+		policy.init(capacity);
+		this.evictable = new EvictionPolicy.FrameFilter() {
+			public boolean canEvict(int slot) {
+				Frame f = slots.get(slot);
+				// NO STEAL: dirty pages stay in the pool until their transaction completes
+				return f != null && f != RESERVED && f.page.isDirty() == null;
+			}
+		};
+	}
+
+	private Partition partitionFor(PageId pid) {
+		int h = pid.hashCode();
+		h ^= (h >>> 16);
+		return partitions[h & partitionMask];
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+
+	public int numPartitions() {
+		return partitions.length;
+	}
+
+	public EvictionPolicy getPolicy() {
+		return policy;
+	}
+
+	/** Returns the arena cached pages are kept in, or null if they are kept on the heap. */
+	public FrameArena getArena() {
+		return arena;
+	}
+
+	/** Makes page a view over the arena frame of slot, if it can be. */
+	private void moveToFrame(Page page, int slot) {
+		if (arena != null && page instanceof HeapPage) {
+			((HeapPage) page).moveToFrame(arena.frame(slot));
+		}
+	}
+
+	/** Detaches a page that is leaving the table from its arena frame. */
+	private void moveToHeap(Page page) {
+		if (arena != null && page instanceof HeapPage) {
+			((HeapPage) page).moveToHeap();
+		}
+	}
+
+	/**
+	 * Returns the cached page with the given id, or null if it is not cached.
+	 * Counts as a reference for eviction purposes.
+	 */
+	public Page get(PageId pid) {
+		Partition p = partitionFor(pid);
+		Frame f;
+		synchronized (p) {
+			f = p.frames.get(pid);
+		}
+		if (f == null) {
+			return null;
+		}
+		policy.frameAccessed(f.slot);
+		return f.page;
+	}
+
+	/**
+	 * Returns the cached page with the given id, or null if it is not cached,
+	 * without counting as a reference for eviction purposes.
+	 */
+	public Page peek(PageId pid) {
+		Partition p = partitionFor(pid);
+		synchronized (p) {
+			Frame f = p.frames.get(pid);
+			return f == null ? null : f.page;
+		}
+	}
+
+	/** Returns true if a page with the given id is cached. */
+	public boolean contains(PageId pid) {
+		Partition p = partitionFor(pid);
+		synchronized (p) {
+			return p.frames.containsKey(pid);
+		}
+	}
+
+	/**
+	 * Caches page under pid unless a page with that id is already cached, in
+	 * which case the cached version is kept. Evicts a clean page if the table
+	 * is full.
+	 *
+	 * @return the page now cached under pid
+	 * @throws DbException if the table is full and every cached page is dirty
+	 */
+	public Page putIfAbsent(PageId pid, Page page) throws DbException {
+		return install(pid, page, false, null);
+	}
+
+	/**
+	 * Like {@link #putIfAbsent(PageId, Page)}, but if the page has to be added
+	 * and the strategy's ring is full, reuses the frame of the oldest page in
+	 * the ring instead of asking the eviction policy for a victim.
+	 *
+	 * @param strategy the ring of frames of the reading scan, or null
+	 */
+	public Page putIfAbsent(PageId pid, Page page, BufferAccessStrategy strategy) throws DbException {
+		return install(pid, page, false, strategy);
+	}
+
+	/**
+	 * Caches page under pid, replacing any cached version. Evicts a clean page
+	 * if the table is full.
+	 *
+	 * @throws DbException if the table is full and every cached page is dirty
+	 */
+	public void put(PageId pid, Page page) throws DbException {
+		install(pid, page, true, null);
+	}
+
+	private Page install(PageId pid, Page page, boolean replace, BufferAccessStrategy strategy)
+			throws DbException {
+		Partition p = partitionFor(pid);
+		synchronized (p) {
+			Frame f = p.frames.get(pid);
+			if (f != null) {
+				return update(f, page, replace);
+			}
+		}
+		// claim a frame without holding our own partition, since claiming may
+		// need to lock the partition of the victim
+		int slot = claimFrame(strategy);
+		synchronized (p) {
+			Frame f = p.frames.get(pid);
+			if (f != null) {
+				// another thread cached the page while we were claiming
+				releaseFrame(slot);
+				return update(f, page, replace);
+			}
+			moveToFrame(page, slot);
+			f = new Frame(pid, slot, page);
+			p.frames.put(pid, f);
+			slots.set(slot, f);
+			policy.frameFilled(slot, pid);
+			if (strategy != null) {
+				strategy.loaded(slot, pid);
+			}
+			return page;
+		}
+	}
+
+	private Page update(Frame f, Page page, boolean replace) {
+		if (replace && f.page != page) {
+			moveToHeap(f.page);
+			moveToFrame(page, f.slot);
+			f.page = page;
+		}
+		policy.frameAccessed(f.slot);
+		return f.page;
+	}
+
+	/**
+	 * Reserves a frame: the strategy's oldest frame if it can be reused, else
+	 * an empty frame, else the eviction policy's victim.
+	 *
+	 * @return the index of the reserved frame
+	 * @throws DbException if the policy finds nothing to evict
+	 */
+	private int claimFrame(BufferAccessStrategy strategy) throws DbException {
+		if (strategy != null && strategy.nextVictimPage() != null) {
+			int slot = strategy.nextVictimFrame();
+			if (evict(slot, strategy.nextVictimPage())) {
+				return slot;
+			}
+		}
+		Integer free;
+		while ((free = freeSlots.poll()) != null) {
+			if (slots.compareAndSet(free, null, RESERVED)) {
+				return free;
+			}
+		}
+		for (int attempt = 0; attempt < MAX_EVICTION_ATTEMPTS; attempt++) {
+			int slot = policy.chooseVictim(evictable);
+			if (slot >= 0 && evict(slot, null)) {
+				return slot;
+			}
+		}
+		throw new DbException("There is no page to evict");
+	}
+
+	/**
+	 * Evicts the page in slot and leaves the slot reserved, unless another
+	 * thread got to it first or the page was dirtied in the meantime.
+	 *
+	 * @param expected if not null, only evict if the slot still holds this page
+	 */
+	private boolean evict(int slot, PageId expected) {
+		Frame f = slots.get(slot);
+		if (f == null || f == RESERVED || (expected != null && !expected.equals(f.pid))) {
+			return false;
+		}
+		Partition victim = partitionFor(f.pid);
+		synchronized (victim) {
+			if (victim.frames.get(f.pid) == f && f.page.isDirty() == null
+					&& slots.compareAndSet(slot, f, RESERVED)) {
+				victim.frames.remove(f.pid);
+				policy.frameCleared(slot);
+				moveToHeap(f.page);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** Returns a reserved but unused frame to the free list. */
+	private void releaseFrame(int slot) {
+		slots.set(slot, null);
+		freeSlots.add(slot);
+	}
+
+	/** Removes the page with the given id from the table, if cached. */
+	public void remove(PageId pid) {
+		Partition p = partitionFor(pid);
+		synchronized (p) {
+			Frame f = p.frames.remove(pid);
+			if (f != null && slots.compareAndSet(f.slot, f, RESERVED)) {
+				policy.frameCleared(f.slot);
+				moveToHeap(f.page);
+				releaseFrame(f.slot);
+			}
+		}
+	}
+
+	/** Returns the number of cached pages. */
+	public int size() {
+		int n = 0;
+		for (Partition p : partitions) {
+			synchronized (p) {
+				n += p.frames.size();
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Returns a snapshot of the ids of all cached pages. Pages cached or
+	 * evicted after the snapshot is taken may or may not be reflected.
+	 */
+	public List<PageId> pageIds() {
+		ArrayList<PageId> ids = new ArrayList<>();
+		for (Partition p : partitions) {
+			synchronized (p) {
+				ids.addAll(p.frames.keySet());
+			}
+		}
+		return ids;
+	}
+}
@@ -0,0 +1,291 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * ReadAhead reads pages a scan is about to ask for on a background I/O
+ * executor, so that the scan's next miss finds its page already read.
+ * <p>
+ * Sequential access to a heap file is detected per file from the page
+ * numbers passed to {@link #accessed(PageId)}: once two consecutive pages
+ * have been read, the following window pages are prefetched. B+ tree leaves
+ * are not laid out in page order, so the B+ tree iterators instead name the
+ * right sibling of the leaf they are on with {@link #readAheadFrom(PageId)},
+ * and the prefetch follows right sibling pointers from there.
+ * <p>
+ * Prefetched pages are kept in a small staging area rather than put in the
+ * page table, so that read-ahead neither evicts pages nor bypasses the ring
+ * of a large scan; BufferPool takes a page from the staging area on a miss
+ * and caches it as if it had read it itself. A staged page is discarded if
+ * a page of its file is written or discarded after the prefetch started,
+ * since it may then be stale.
+ *
+ * @Threadsafe
+ */
+class ReadAhead {
+
+	/** Default number of pages read ahead of a sequential scan. */
+	static final int DEFAULT_WINDOW = 8;
+
+	private static final int IO_THREADS = 2;
+
+	// shared by all buffer pools, so that resetting the pool in tests does
+	// not leak threads
+	private static final ExecutorService IO_EXECUTOR = Executors.newFixedThreadPool(IO_THREADS,
+			new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "simpledb-readahead");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	/** Sequential access state of one heap file. */
+	private static class Stream {
+		// not -1, so that reading page 0 alone does not look sequential
+		int lastPage = -2;
+		int nextToPrefetch = 0;
+	}
+
+	/** A page being read or read ahead of time. */
+	private class Prefetch implements Callable<Page> {
+		final DbFile file;
+		final PageId pid;
+		// number of leaves to prefetch, following right siblings from pid
+		final int chain;
+		final FutureTask<Page> task = new FutureTask<Page>(this);
+		// set by whichever of the I/O thread and a taker gets to the page
+		// first; FutureTask.cancel cannot tell whether the read has started
+		final AtomicBoolean claimed = new AtomicBoolean();
+		// write epoch of the page's file when the read started
+		volatile long epoch;
+		// set once the page has been read from disk
+		volatile boolean read;
+
+		Prefetch(DbFile file, PageId pid, int chain) {
+			this.file = file;
+			this.pid = pid;
+			this.chain = chain;
+		}
+
+		public Page call() {
+			return claimed.compareAndSet(false, true) ? read(this) : null;
+		}
+	}
+
+	private final PageTable page_table;
+	private volatile int window = DEFAULT_WINDOW;
+
+	private final ConcurrentHashMap<Integer, Stream> streams = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<Integer, AtomicLong> epochs = new ConcurrentHashMap<>();
+	// guarded by itself; insertion order is the order prefetches were issued
+	private final LinkedHashMap<PageId, Prefetch> staged = new LinkedHashMap<>();
+
+	private final LongAdder prefetched = new LongAdder();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder wasted = new LongAdder();
+
+	ReadAhead(PageTable page_table) {
+		this.page_table = page_table;
+	}
+
+	void setWindow(int pages) {
+		if (pages < 0) {
+			throw new IllegalArgumentException("read-ahead window must not be negative");
+		}
+		window = pages;
+	}
+
+	int getWindow() {
+		return window;
+	}
+
+	/** Returns the number of pages read ahead of time. */
+	long getPrefetchCount() {
+		return prefetched.sum();
+	}
+
+	/** Returns the number of prefetched pages a later miss used. */
+	long getHitCount() {
+		return hits.sum();
+	}
+
+	/** Returns the number of prefetched pages dropped unused. */
+	long getWasteCount() {
+		return wasted.sum();
+	}
+
+	void resetStats() {
+		prefetched.reset();
+		hits.reset();
+		wasted.reset();
+	}
+
+	private AtomicLong epochOf(int tableId) {
+		AtomicLong e = epochs.get(tableId);
+		if (e == null) {
+			AtomicLong fresh = new AtomicLong();
+			e = epochs.putIfAbsent(tableId, fresh);
+			if (e == null) {
+				e = fresh;
+			}
+		}
+		return e;
+	}
+
+	/**
+	 * Records a read of pid by a transaction, and if it continues a
+	 * sequential scan of a heap file, prefetches the pages that follow.
+	 */
+	void accessed(PageId pid) {
+		int w = window;
+		if (w == 0 || !(pid instanceof HeapPageId)) {
+			return;
+		}
+		int tableId = pid.getTableId();
+		Stream s = streams.get(tableId);
+		if (s == null) {
+			Stream fresh = new Stream();
+			s = streams.putIfAbsent(tableId, fresh);
+			if (s == null) {
+				s = fresh;
+			}
+		}
+		int page = pid.getPageNumber();
+		int from, to;
+		synchronized (s) {
+			boolean sequential = page == s.lastPage + 1;
+			s.lastPage = page;
+			if (!sequential) {
+				s.nextToPrefetch = page + 1;
+				return;
+			}
+			from = Math.max(s.nextToPrefetch, page + 1);
+			to = page + w;
+			s.nextToPrefetch = Math.max(s.nextToPrefetch, to + 1);
+		}
+		DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+		if (!(file instanceof HeapFile)) {
+			return;
+		}
+		to = Math.min(to, ((HeapFile) file).numPages() - 1);
+		for (int p = from; p <= to; p++) {
+			schedule(file, new HeapPageId(tableId, p), 1);
+		}
+	}
+
+	/**
+	 * Hints that the caller is about to read pid and then follow right
+	 * sibling pointers from it; prefetches up to the window's worth of
+	 * leaves starting at pid.
+	 */
+	void readAheadFrom(PageId pid) {
+		int w = window;
+		if (w == 0 || pid == null) {
+			return;
+		}
+		schedule(Database.getCatalog().getDatabaseFile(pid.getTableId()), pid, w);
+	}
+
+	private void schedule(DbFile file, PageId pid, int chain) {
+		if (page_table.contains(pid)) {
+			return;
+		}
+		Prefetch prefetch = new Prefetch(file, pid, chain);
+		synchronized (staged) {
+			if (staged.containsKey(pid)) {
+				return;
+			}
+			staged.put(pid, prefetch);
+			trimStaged();
+		}
+		IO_EXECUTOR.execute(prefetch.task);
+	}
+
+	private Page read(Prefetch p) {
+		if (page_table.contains(p.pid)) {
+			return null;
+		}
+		p.epoch = epochOf(p.pid.getTableId()).get();
+		Page page = p.file.readPage(p.pid);
+		p.read = true;
+		prefetched.increment();
+		if (p.chain > 1 && page instanceof BTreeLeafPage) {
+			BTreePageId next = ((BTreeLeafPage) page).getRightSiblingId();
+			if (next != null) {
+				schedule(p.file, next, p.chain - 1);
+			}
+		}
+		return page;
+	}
+
+	/** Drops the oldest staged pages once the staging area is full; caller holds staged. */
+	private void trimStaged() {
+		int limit = Math.max(4 * window, IO_THREADS * 4);
+		Iterator<Prefetch> it = staged.values().iterator();
+		while (staged.size() > limit && it.hasNext()) {
+			Prefetch old = it.next();
+			it.remove();
+			drop(old);
+		}
+	}
+
+	private void drop(Prefetch p) {
+		if (!p.claimed.compareAndSet(false, true) && p.read) {
+			wasted.increment();
+		}
+	}
+
+	/**
+	 * Returns the prefetched copy of pid and removes it from the staging
+	 * area, or null if the page was not prefetched or its copy may be stale.
+	 * Waits if the prefetch is under way, but not if it has not started.
+	 */
+	Page take(PageId pid) {
+		Prefetch p;
+		synchronized (staged) {
+			p = staged.remove(pid);
+		}
+		if (p == null || p.claimed.compareAndSet(false, true)) {
+			return null;
+		}
+		Page page;
+		try {
+			page = p.task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			wasted.increment();
+			return null;
+		}
+		if (page == null) {
+			return null;
+		}
+		if (p.epoch != epochOf(pid.getTableId()).get()) {
+			wasted.increment();
+			return null;
+		}
+		hits.increment();
+		return page;
+	}
+
+	/**
+	 * Records that pid was written to disk or dropped from the pool, which
+	 * invalidates every prefetch of its file that is staged or under way.
+	 */
+	void pageWritten(PageId pid) {
+		epochOf(pid.getTableId()).incrementAndGet();
+		Prefetch p;
+		synchronized (staged) {
+			p = staged.remove(pid);
+		}
+		if (p != null) {
+			drop(p);
+		}
+	}
+}
@@ -0,0 +1,38 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * SlottedHeapFile is a HeapFile whose pages are SlottedHeapPages, which
+ * store each tuple in only as many bytes as its strings need. It suits
+ * tables with string fields that are mostly much shorter than
+ * Type.STRING_LEN, which then take a fraction of the pages, and of the
+ * reads to scan them, that a HeapFile takes. Everything else about it is as
+ * for a HeapFile.
+ * <p>
+ * The two formats are not compatible: a file written by one cannot be read
+ * by the other. Catalog.loadSchema opens a table as a SlottedHeapFile when
+ * its schema line ends with "slotted".
+ *
+ * @see SlottedHeapPage
+ * @see Catalog#loadSchema
+ */
+public class SlottedHeapFile extends HeapFile {
+
+    /**
+     * Constructs a slotted heap file backed by the specified file.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     */
+    public SlottedHeapFile(File f, TupleDesc td) {
+        super(f, td);
+    }
+
+    @Override
+    HeapPage newPage(HeapPageId pid, ByteBuffer data) throws IOException {
+        return new SlottedHeapPage(pid, data);
+    }
+}
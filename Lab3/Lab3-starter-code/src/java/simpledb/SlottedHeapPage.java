@@ -0,0 +1,309 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * SlottedHeapPage is a page of a SlottedHeapFile. Unlike a HeapPage, whose
+ * slots are all as wide as the widest tuple, it stores each tuple in as many
+ * bytes as the tuple needs, so that short strings do not take up
+ * Type.STRING_LEN bytes each.
+ * <p>
+ * The page starts with a header of two unsigned shorts: the number of
+ * entries in the slot directory, and the offset at which the tuples begin,
+ * where 0 stands for the end of the page. The slot directory follows, with
+ * an entry of two unsigned shorts per slot: the offset of the slot's tuple
+ * in the page and its length, which is 0 for an empty slot. The tuples are
+ * packed from the end of the page towards the directory. An integer field
+ * takes four bytes, and a string field an unsigned short holding its length
+ * followed by that many bytes. A page of zeros is an empty page.
+ * <p>
+ * The number of a slot does not change while its tuple is on the page, so a
+ * RecordId stays valid when the page is compacted to make room for an insert.
+ *
+ * @see SlottedHeapFile
+ */
+public class SlottedHeapPage extends HeapPage {
+
+    private static final int HEADER_SIZE = 4;
+    private static final int ENTRY_SIZE = 4;
+    private static final int SHORT_SIZE = 2;
+
+    // the size of the smallest tuple of the table, in bytes
+    private final int minTupleSize;
+
+    /**
+     * Create a SlottedHeapPage from the bytes of a page read from disk.
+     */
+    public SlottedHeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data.clone()));
+    }
+
+    /**
+     * Create a SlottedHeapPage that is a view over the page image in data,
+     * without copying it. The caller hands data over to the page.
+     */
+    SlottedHeapPage(HeapPageId id, ByteBuffer data) throws IOException {
+        super(id, data, getMaxTuples(tupleDesc(id)), HEADER_SIZE);
+        this.minTupleSize = getMinTupleSize(td);
+    }
+
+    /** Returns the size of the smallest tuple matching td, in bytes. */
+    private static int getMinTupleSize(TupleDesc td) {
+        int size = 0;
+        for (int i = 0; i < td.numFields(); i++) {
+            size += td.getFieldType(i) == Type.STRING_TYPE ? SHORT_SIZE : td.getFieldType(i).getLen();
+        }
+        return size;
+    }
+
+    /** Returns the number of the smallest tuples matching td a page holds. */
+    private static int getMaxTuples(TupleDesc td) {
+        return (BufferPool.getPageSize() - HEADER_SIZE) / (ENTRY_SIZE + getMinTupleSize(td));
+    }
+
+    @Override
+    HeapPage newPage(ByteBuffer data) throws IOException {
+        return new SlottedHeapPage(pid, data);
+    }
+
+    private int getShort(int offset) {
+        return data.getShort(offset) & 0xffff;
+    }
+
+    private void putShort(int offset, int value) {
+        data.putShort(offset, (short) value);
+    }
+
+    /** Returns the number of entries in the slot directory. */
+    private int getNumEntries() {
+        return getShort(0);
+    }
+
+    /** Returns the offset at which the tuples on the page begin. */
+    private int getTuplesStart() {
+        int start = getShort(SHORT_SIZE);
+        return start == 0 ? BufferPool.getPageSize() : start;
+    }
+
+    private int getTupleOffset(int slot) {
+        return getShort(HEADER_SIZE + slot * ENTRY_SIZE);
+    }
+
+    private int getTupleLength(int slot) {
+        return getShort(HEADER_SIZE + slot * ENTRY_SIZE + SHORT_SIZE);
+    }
+
+    private void setEntry(int slot, int offset, int length) {
+        putShort(HEADER_SIZE + slot * ENTRY_SIZE, offset);
+        putShort(HEADER_SIZE + slot * ENTRY_SIZE + SHORT_SIZE, length);
+    }
+
+    /** Returns the number of bytes not taken by the directory or tuples. */
+    @Override
+    synchronized int getFreeSpace() {
+        int n = getNumEntries();
+        int used = HEADER_SIZE + n * ENTRY_SIZE;
+        for (int i = 0; i < n; i++) {
+            used += getTupleLength(i);
+        }
+        return BufferPool.getPageSize() - used;
+    }
+
+    @Override
+    int getCapacity() {
+        return BufferPool.getPageSize() - HEADER_SIZE;
+    }
+
+    /** Returns the number of empty entries in the slot directory. */
+    private int getNumEmptyEntries() {
+        int n = getNumEntries();
+        int empty = 0;
+        for (int i = 0; i < n; i++) {
+            if (getTupleLength(i) == 0)
+                empty++;
+        }
+        return empty;
+    }
+
+    /**
+     * Returns the number of tuples of the smallest size that would still fit
+     * on this page.
+     */
+    @Override
+    public synchronized int getNumEmptySlots() {
+        int free = getFreeSpace();
+        // empty directory entries are reused before new ones are added
+        int reused = Math.min(getNumEmptyEntries(), free / minTupleSize);
+        free -= reused * minTupleSize;
+        return reused + free / (ENTRY_SIZE + minTupleSize);
+    }
+
+    @Override
+    public boolean isSlotUsed(int i) {
+        return isSlotUsed(data, i);
+    }
+
+    @Override
+    synchronized boolean hasRoomFor(Tuple t) {
+        int needed = getTupleSize(t);
+        if (getNumEmptyEntries() == 0) {
+            if (getNumEntries() == numSlots)
+                return false;
+            needed += ENTRY_SIZE;
+        }
+        return needed <= getFreeSpace();
+    }
+
+    /** Returns the number of bytes t takes on a page. */
+    private int getTupleSize(Tuple t) {
+        int size = 0;
+        for (int j = 0; j < td.numFields(); j++) {
+            Field f = t.getField(j);
+            if (f instanceof StringField) {
+                size += SHORT_SIZE + Math.min(((StringField) f).getValue().length(), Type.STRING_LEN);
+            } else {
+                size += f.getType().getLen();
+            }
+        }
+        return size;
+    }
+
+    /** Encodes t as it is stored on a page. */
+    private byte[] encode(Tuple t) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(getTupleSize(t));
+        DataOutputStream dos = new DataOutputStream(baos);
+        for (int j = 0; j < td.numFields(); j++) {
+            Field f = t.getField(j);
+            if (f instanceof StringField) {
+                String s = ((StringField) f).getValue();
+                if (s.length() > Type.STRING_LEN)
+                    s = s.substring(0, Type.STRING_LEN);
+                dos.writeShort(s.length());
+                dos.writeBytes(s);
+            } else {
+                f.serialize(dos);
+            }
+        }
+        dos.flush();
+        return baos.toByteArray();
+    }
+
+    /** Decodes the tuple in slot i of the page image in page. */
+    @Override
+    Tuple readTuple(ByteBuffer page, int i) {
+        Tuple t = new Tuple(td);
+        t.setRecordId(new RecordId(pid, i));
+        int offset = page.getShort(HEADER_SIZE + i * ENTRY_SIZE) & 0xffff;
+        for (int j = 0; j < td.numFields(); j++) {
+            if (td.getFieldType(j) == Type.STRING_TYPE) {
+                int len = page.getShort(offset) & 0xffff;
+                byte[] bs = new byte[len];
+                ByteBuffer src = page.duplicate();
+                src.position(offset + SHORT_SIZE);
+                src.get(bs);
+                t.setField(j, new StringField(new String(bs), Type.STRING_LEN));
+                offset += SHORT_SIZE + len;
+            } else {
+                t.setField(j, new IntField(page.getInt(offset)));
+                offset += Type.INT_TYPE.getLen();
+            }
+        }
+        return t;
+    }
+
+    @Override
+    boolean isSlotUsed(ByteBuffer page, int i) {
+        return i >= 0 && i < slotLimit(page)
+                && (page.getShort(HEADER_SIZE + i * ENTRY_SIZE + SHORT_SIZE) & 0xffff) != 0;
+    }
+
+    /** Returns the number of entries in the slot directory of page. */
+    @Override
+    int slotLimit(ByteBuffer page) {
+        return page.getShort(0) & 0xffff;
+    }
+
+    /**
+     * Moves the tuples on the page together at the end of the page, so that
+     * all of its free space lies between the directory and the tuples.
+     */
+    private void compact() {
+        byte[] image = getPageData();
+        int end = BufferPool.getPageSize();
+        int n = getNumEntries();
+        for (int i = 0; i < n; i++) {
+            int len = getTupleLength(i);
+            if (len == 0)
+                continue;
+            end -= len;
+            ByteBuffer dst = data.duplicate();
+            dst.position(end);
+            dst.put(image, getTupleOffset(i), len);
+            setEntry(i, end, len);
+        }
+        int dirEnd = HEADER_SIZE + n * ENTRY_SIZE;
+        ByteBuffer gap = data.duplicate();
+        gap.position(dirEnd);
+        gap.put(new byte[end - dirEnd]);
+        putShort(SHORT_SIZE, end);
+    }
+
+    @Override
+    public synchronized void deleteTuple(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        int slot = rid.getTupleNumber();
+        if (!pid.equals(rid.getPageId()) || slot >= numSlots) {
+            throw new DbException("Tuple not on this page.");
+        }
+        if (!isSlotUsed(slot)) {
+            throw new DbException("Tuple slot already empty.");
+        }
+        saveBeforeImage();
+        modCount++;
+        ByteBuffer tuple = data.duplicate();
+        tuple.position(getTupleOffset(slot));
+        tuple.put(new byte[getTupleLength(slot)]);
+        setEntry(slot, 0, 0);
+        // drop empty entries from the end of the directory
+        int n = getNumEntries();
+        while (n > 0 && getTupleLength(n - 1) == 0)
+            n--;
+        putShort(0, n);
+        if (n == 0)
+            putShort(SHORT_SIZE, 0);
+    }
+
+    @Override
+    public synchronized void insertTuple(Tuple t) throws DbException {
+        if (!t.getTupleDesc().equals(td)) {
+            throw new DbException("Tuple schema mismatch.");
+        }
+        if (!hasRoomFor(t)) {
+            throw new DbException("Page is full. No room for tuple.");
+        }
+        byte[] bytes;
+        try {
+            bytes = encode(t);
+        } catch (IOException e) {
+            throw new DbException("could not encode tuple: " + e.getMessage());
+        }
+        int n = getNumEntries();
+        int slot = 0;
+        while (slot < n && getTupleLength(slot) != 0)
+            slot++;
+        int entries = Math.max(n, slot + 1);
+        saveBeforeImage();
+        modCount++;
+        if (getTuplesStart() - bytes.length < HEADER_SIZE + entries * ENTRY_SIZE)
+            compact();
+        int offset = getTuplesStart() - bytes.length;
+        ByteBuffer dst = data.duplicate();
+        dst.position(offset);
+        dst.put(bytes);
+        putShort(0, entries);
+        putShort(SHORT_SIZE, offset);
+        setEntry(slot, offset, bytes.length);
+        t.setRecordId(new RecordId(pid, slot));
+    }
+}
@@ -9,28 +9,68 @@ import java.io.*;
 
 public class Transaction {
     private final TransactionId tid;
+    private final boolean readOnly;
     volatile boolean started = false;
 
     public Transaction() {
+        this(false);
+    }
+
+    /**
+     * Creates a transaction that, if readOnly is true, may only read. A
+     * read-only transaction writes no log records and takes no locks: it
+     * reads the database as of the moment it starts.
+     *
+     * @see BufferPool#beginReadOnly(TransactionId)
+     */
+    public Transaction(boolean readOnly) {
         tid = new TransactionId();
+        this.readOnly = readOnly;
     }
 
-    /** Start the transaction running */
+    /**
+     * Start the transaction running. Under snapshot isolation, and for a
+     * read-only transaction, this is also when the transaction takes its
+     * snapshot.
+     */
     public void start() {
         started = true;
+        if (readOnly) {
+            Database.getBufferPool().beginReadOnly(tid);
+            return;
+        }
         try {
             Database.getLogFile().logXactionBegin(tid);
         } catch (IOException e) {
             e.printStackTrace();
         }
+        Database.getBufferPool().beginSnapshot(tid);
     }
 
     public TransactionId getId() {
         return tid;
     }
 
-    /** Finish the transaction */
-    public void commit() throws IOException {
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * Finish the transaction
+     *
+     * @throws TransactionAbortedException if the transaction runs under
+     *         optimistic concurrency control and fails validation; it has
+     *         then been aborted
+     */
+    public void commit() throws IOException, TransactionAbortedException {
+        if (started) {
+            try {
+                Database.getBufferPool().validate(tid);
+            } catch (TransactionAbortedException e) {
+                transactionComplete(true);
+                throw e;
+            }
+        }
         transactionComplete(false);
     }
 
@@ -42,7 +82,11 @@ public class Transaction {
     /** Handle the details of transaction commit / abort */
     public void transactionComplete(boolean abort) throws IOException {
 
-        if (started) {
+        if (started && readOnly) {
+            // nothing to log or flush; this closes the snapshot
+            Database.getBufferPool().transactionComplete(tid, !abort);
+            started = false;
+        } else if (started) {
             //write commit / abort records
             if (abort) {
                 Database.getLogFile().logAbort(tid); //does rollback too
@@ -11,6 +11,9 @@ public class TupleDesc implements Serializable {
 	
 	private ArrayList<TDItem> TDArray;
 	private int numFields;
+	// the offset of each field in a tuple, then the size of a tuple; worked
+	// out when first needed
+	private transient volatile int[] offsets;
 	
 	
     /**
@@ -183,11 +186,35 @@ public class TupleDesc implements Serializable {
      */
     public int getSize() {
         // some code goes here
-    	int size = 0;
-        for(TDItem item : this.TDArray) {
-        	size += item.fieldType.getLen();
-        }
-        return size;
+        return offsets()[numFields];
+    }
+
+    /**
+     * Returns the offset of the ith field in a tuple stored with each field
+     * taking the length of its type, as on a HeapPage.
+     *
+     * @param i
+     *            The index of the field. It must be a valid index.
+     * @throws NoSuchElementException
+     *             if i is not a valid field reference.
+     */
+    public int getFieldOffset(int i) throws NoSuchElementException {
+    	if(i < this.numFields && i>=0) {
+    		return offsets()[i];
+    	}
+        throw new NoSuchElementException();
+    }
+
+    private int[] offsets() {
+    	int[] o = offsets;
+    	if (o == null) {
+    		o = new int[numFields + 1];
+    		for(int i=0; i<numFields; i++) {
+    			o[i+1] = o[i] + TDArray.get(i).fieldType.getLen();
+    		}
+    		offsets = o;
+    	}
+    	return o;
     }
 
     /**
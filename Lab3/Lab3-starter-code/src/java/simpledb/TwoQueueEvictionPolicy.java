@@ -0,0 +1,113 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * 2Q eviction (Johnson and Shasha, full version). Newly read pages enter a
+ * FIFO queue A1in; pages that are referenced again after falling out of A1in
+ * are promoted to an LRU queue Am. A1out remembers the ids (not the contents)
+ * of pages recently evicted from A1in, so that a second reference can be
+ * recognized.
+ * <p>
+ * A large sequential scan only ever cycles through A1in, so it cannot push
+ * the hot pages in Am out of the pool. All queue operations are O(1); a
+ * victim search is O(1) amortized unless many frames at the head of a queue
+ * are dirty. All methods synchronize on the policy.
+ *
+ * @Threadsafe
+ */
+public class TwoQueueEvictionPolicy implements EvictionPolicy {
+
+    /** Default share of the frames reserved for A1in. */
+    public static final double DEFAULT_IN_FRACTION = 0.25;
+    /** Default size of A1out, as a fraction of the number of frames. */
+    public static final double DEFAULT_OUT_FRACTION = 0.5;
+
+    private final double inFraction;
+    private final double outFraction;
+    private int kin;
+    private int kout;
+
+    private LinkedHashSet<Integer> a1in;
+    private LinkedHashSet<Integer> am;
+    private LinkedHashSet<PageId> a1out;
+    private PageId[] pages;
+
+    public TwoQueueEvictionPolicy() {
+        this(DEFAULT_IN_FRACTION, DEFAULT_OUT_FRACTION);
+    }
+
+    /**
+     * @param inFraction the fraction of frames A1in may hold before it is
+     *        preferred for eviction
+     * @param outFraction the number of evicted page ids A1out remembers, as a
+     *        fraction of the number of frames
+     */
+    public TwoQueueEvictionPolicy(double inFraction, double outFraction) {
+        this.inFraction = inFraction;
+        this.outFraction = outFraction;
+    }
+
+    public synchronized void init(int numFrames) {
+        kin = Math.max(1, (int) (numFrames * inFraction));
+        kout = Math.max(1, (int) (numFrames * outFraction));
+        a1in = new LinkedHashSet<>();
+        am = new LinkedHashSet<>();
+        a1out = new LinkedHashSet<>();
+        pages = new PageId[numFrames];
+    }
+
+    public synchronized void frameFilled(int frame, PageId pid) {
+        pages[frame] = pid;
+        if (a1out.remove(pid)) {
+            am.add(frame);
+        } else {
+            a1in.add(frame);
+        }
+    }
+
+    public synchronized void frameAccessed(int frame) {
+        // hits in A1in are deliberately ignored: they are usually correlated
+        // references from the same scan
+        if (am.remove(frame)) {
+            am.add(frame);
+        }
+    }
+
+    public synchronized void frameCleared(int frame) {
+        if (a1in.remove(frame)) {
+            a1out.add(pages[frame]);
+            if (a1out.size() > kout) {
+                Iterator<PageId> it = a1out.iterator();
+                it.next();
+                it.remove();
+            }
+        } else {
+            am.remove(frame);
+        }
+        pages[frame] = null;
+    }
+
+    public synchronized int chooseVictim(FrameFilter evictable) {
+        int victim = -1;
+        if (a1in.size() > kin || am.isEmpty()) {
+            victim = firstEvictable(a1in, evictable);
+        }
+        if (victim == -1) {
+            victim = firstEvictable(am, evictable);
+        }
+        if (victim == -1) {
+            victim = firstEvictable(a1in, evictable);
+        }
+        return victim;
+    }
+
+    private static int firstEvictable(LinkedHashSet<Integer> queue, FrameFilter evictable) {
+        for (Integer frame : queue) {
+            if (evictable.canEvict(frame)) {
+                return frame;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,247 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * VersionStore keeps the committed images of pages that snapshot
+ * transactions may still read, for the SNAPSHOT isolation level of
+ * BufferPool and for read-only transactions.
+ * <p>
+ * Commits that change pages are numbered in order. A transaction's snapshot
+ * is the number of the last such commit when it started, and it reads every
+ * page as that commit left it. Versions are kept per page, so that the page
+ * formats on disk do not change. Until a writer commits, the page itself
+ * keeps the committed image as its before-image, and snapshots read that.
+ * When the writer commits while snapshots are open, the committed image is
+ * saved, stamped with the number of that commit, and kept for as long as a
+ * snapshot older than it is open. The image is saved ahead of the commit
+ * where the page may not be cached by then: when a SNAPSHOT writer is
+ * granted its exclusive lock, and when the pool writes out a page it has
+ * not committed. B+ trees that lock keys keep no page images here; they
+ * keep the tuples their writers changed instead (see BTreeChanges), and a
+ * commit that changed such a tree is numbered like one that wrote pages.
+ *
+ * @Threadsafe
+ */
+class VersionStore {
+
+	/** An image of a page, and the commit that replaced it. */
+	private static class Version {
+		final long replacedBy;
+		final Page image;
+
+		Version(long replacedBy, Page image) {
+			this.replacedBy = replacedBy;
+			this.image = image;
+		}
+	}
+
+	/** The saved images of one page. */
+	private static class PageVersions {
+		// the committed image, saved ahead of the commit of a writer that
+		// holds the page
+		Page pending;
+		// images replaced by commits, oldest first
+		final ArrayList<Version> old = new ArrayList<Version>();
+		// the last commit that changed the page
+		long lastCommit;
+	}
+
+	private long lastCommit = 0;
+	private final HashMap<PageId, PageVersions> pages = new HashMap<PageId, PageVersions>();
+	private final HashMap<TransactionId, Long> snapshots = new HashMap<TransactionId, Long>();
+	// open snapshots, with the number of transactions that share each one
+	private final TreeMap<Long, Integer> open = new TreeMap<Long, Integer>();
+
+	/**
+	 * Returns tid's snapshot, taking one if tid does not have one yet.
+	 */
+	synchronized long begin(TransactionId tid) {
+		Long snapshot = snapshots.get(tid);
+		if (snapshot == null) {
+			snapshot = lastCommit;
+			snapshots.put(tid, snapshot);
+			Integer n = open.get(snapshot);
+			open.put(snapshot, n == null ? 1 : n + 1);
+		}
+		return snapshot;
+	}
+
+	/** Closes tid's snapshot, if it has one. */
+	synchronized void end(TransactionId tid) {
+		Long snapshot = snapshots.remove(tid);
+		if (snapshot == null) {
+			return;
+		}
+		int n = open.get(snapshot);
+		if (n > 1) {
+			open.put(snapshot, n - 1);
+		} else {
+			open.remove(snapshot);
+			if (open.isEmpty() || open.firstKey() > snapshot) {
+				prune();
+			}
+		}
+	}
+
+	/**
+	 * Returns page as tid's snapshot sees it. current is the cached page,
+	 * which tid has not locked.
+	 */
+	synchronized Page read(TransactionId tid, Page current) {
+		long snapshot = begin(tid);
+		PageVersions v = pages.get(current.getId());
+		if (v != null) {
+			for (Version old : v.old) {
+				if (old.replacedBy > snapshot) {
+					return old.image;
+				}
+			}
+			if (v.pending != null) {
+				return v.pending;
+			}
+		}
+		// no writer holds the page, and the last commit to change it has
+		// already made the before-image its committed image
+		return current.getBeforeImage();
+	}
+
+	/**
+	 * Called when tid has been granted an exclusive lock on page. Saves the
+	 * committed image of the page for snapshot readers.
+	 *
+	 * @return false if another transaction committed a change to the page
+	 *         after tid's snapshot, in which case tid has to abort
+	 */
+	synchronized boolean lockedForWrite(TransactionId tid, Page page) {
+		long snapshot = begin(tid);
+		PageVersions v = pages.get(page.getId());
+		if (v == null) {
+			v = new PageVersions();
+			pages.put(page.getId(), v);
+		} else if (v.lastCommit > snapshot) {
+			return false;
+		}
+		if (v.pending == null) {
+			v.pending = page.getBeforeImage();
+		}
+		return true;
+	}
+
+	/**
+	 * Called when the pool writes out a page whose changes are not committed
+	 * yet, after which the page may be evicted and read back with them.
+	 * Saves image, the committed image of the page, without taking a
+	 * snapshot for the writer.
+	 */
+	synchronized void save(Page image) {
+		PageVersions v = pages.get(image.getId());
+		if (v == null) {
+			v = new PageVersions();
+			pages.put(image.getId(), v);
+		}
+		if (v.pending == null) {
+			v.pending = image;
+		}
+	}
+
+	/**
+	 * Called when a transaction that wrote pids commits, after they have been
+	 * flushed and before its locks are released. cached are the pages of
+	 * pids still in the pool, whose new images become their before-images
+	 * here, so that no snapshot read sees them before the commit is numbered.
+	 *
+	 * @param keys whether the transaction also changed B+ trees that lock
+	 *        keys, which numbers the commit even if pids is empty
+	 */
+	synchronized void committed(Collection<PageId> pids, Collection<Page> cached, boolean keys) {
+		if (pids.isEmpty() && !keys) {
+			return;
+		}
+		long commit = ++lastCommit;
+		for (Page page : cached) {
+			if (!open.isEmpty()) {
+				// the snapshots open now still read the committed image
+				save(page.getBeforeImage());
+			}
+			// later transactions log their changes against this version
+			page.setBeforeImage();
+		}
+		for (PageId pid : pids) {
+			PageVersions v = pages.get(pid);
+			if (v == null || v.pending == null) {
+				continue;
+			}
+			if (open.isEmpty()) {
+				// every later snapshot sees this commit
+				pages.remove(pid);
+				continue;
+			}
+			v.old.add(new Version(commit, v.pending));
+			v.pending = null;
+			v.lastCommit = commit;
+		}
+	}
+
+	/** Returns the number the next commit that changes pages or keys gets. */
+	synchronized long nextCommit() {
+		return lastCommit + 1;
+	}
+
+	/**
+	 * Returns the oldest snapshot still open, or the last commit if there is
+	 * none: every snapshot open now or taken later sees the commits up to it.
+	 */
+	synchronized long horizon() {
+		return oldestSnapshot();
+	}
+
+	/** Called when a transaction that wrote pids aborts. */
+	synchronized void aborted(Collection<PageId> pids) {
+		for (PageId pid : pids) {
+			dropPending(pid);
+		}
+	}
+
+	/**
+	 * Called when a writer releases its lock on pid without having changed
+	 * the page, whose committed image then stays the page's before-image.
+	 */
+	synchronized void released(PageId pid) {
+		dropPending(pid);
+	}
+
+	private void dropPending(PageId pid) {
+		PageVersions v = pages.get(pid);
+		if (v != null) {
+			v.pending = null;
+			if (v.old.isEmpty() && v.lastCommit <= oldestSnapshot()) {
+				pages.remove(pid);
+			}
+		}
+	}
+
+	/** Returns the number of pages with saved images; for tests. */
+	synchronized int size() {
+		return pages.size();
+	}
+
+	private long oldestSnapshot() {
+		return open.isEmpty() ? lastCommit : open.firstKey();
+	}
+
+	/** Drops the images no open snapshot can read any more. */
+	private void prune() {
+		long oldest = oldestSnapshot();
+		Iterator<PageVersions> it = pages.values().iterator();
+		while (it.hasNext()) {
+			PageVersions v = it.next();
+			while (!v.old.isEmpty() && v.old.get(0).replacedBy <= oldest) {
+				v.old.remove(0);
+			}
+			if (v.pending == null && v.old.isEmpty() && v.lastCommit <= oldest) {
+				it.remove();
+			}
+		}
+	}
+}
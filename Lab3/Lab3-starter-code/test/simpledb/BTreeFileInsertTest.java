@@ -172,6 +172,76 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 		assertTrue(page.getId().getPageNumber() == 2 || otherPage.getId().getPageNumber() == 2);
 	}
 
+	@Test
+	public void testDescentReleasesInternalPages() throws Exception {
+		// two leaves with free slots under an internal root
+		BTreeFile bf = BTreeUtility.createBTreeFile(2, 600, null, null, 0);
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) bf.readPage(BTreeRootPtrPage.getId(bf.getId()));
+		BTreePageId rootId = rootPtr.getRootId();
+		assertEquals(BTreePageId.INTERNAL, rootId.pgcateg());
+
+		// the pages only hold the tuple, so only its key stays locked
+		Tuple low = BTreeUtility.getBTreeTuple(1, 2);
+		Database.getBufferPool().insertTuple(tid, bf.getId(), low);
+		PageId lowLeaf = low.getRecordId().getPageId();
+		assertEquals(LockManager.Mode.X,
+				Database.getBufferPool().getLockManager().getKeyMode(tid, bf.getId(), low.getField(0)));
+		assertFalse(Database.getBufferPool().holdsLock(tid, lowLeaf));
+		assertFalse(Database.getBufferPool().holdsLock(tid, rootId));
+
+		// a writer in another subtree descends the same way
+		TransactionId tid2 = new TransactionId();
+		Tuple high = BTreeUtility.getBTreeTuple(BTreeUtility.MAX_RAND_VALUE, 2);
+		Database.getBufferPool().insertTuple(tid2, bf.getId(), high);
+		assertFalse(lowLeaf.equals(high.getRecordId().getPageId()));
+		assertFalse(Database.getBufferPool().holdsLock(tid2, rootId));
+		Database.getBufferPool().transactionComplete(tid2);
+	}
+
+	/**
+	 * A descent only latches the internal pages it passes, so it does not wait
+	 * for a transaction that has split one of them and not yet committed,
+	 * unless it needs a leaf that transaction changed.
+	 */
+	@Test
+	public void testDescentPassesUncommittedSplit() throws Exception {
+		final BTreeFile bf = BTreeUtility.createBTreeFile(2, 1500, null, null, 0);
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) bf.readPage(BTreeRootPtrPage.getId(bf.getId()));
+		BTreePageId rootId = rootPtr.getRootId();
+		assertEquals(BTreePageId.INTERNAL, rootId.pgcateg());
+		BTreeInternalPage root = (BTreeInternalPage) bf.readPage(rootId);
+		assertTrue(root.getNumEntries() >= 2);
+
+		// split the first leaf, which changes the root and the second leaf
+		int entries = root.getNumEntries();
+		BufferPool bp = Database.getBufferPool();
+		while(((BTreeInternalPage) bp.getPage(tid, rootId, Permissions.READ_ONLY)).getNumEntries() == entries) {
+			bp.insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(1, 2));
+		}
+		assertTrue(bp.holdsLock(tid, rootId));
+
+		// a writer to the last leaf passes the root without waiting
+		final TransactionId tid2 = new TransactionId();
+		final Tuple high = BTreeUtility.getBTreeTuple(BTreeUtility.MAX_RAND_VALUE, 2);
+		Thread writer = new Thread() {
+			public void run() {
+				try {
+					Database.getBufferPool().insertTuple(tid2, bf.getId(), high);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		writer.start();
+		writer.join(5000);
+		assertFalse(writer.isAlive());
+		assertNotNull(high.getRecordId());
+		assertFalse(bp.holdsLock(tid2, rootId));
+		bp.transactionComplete(tid2);
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -3,7 +3,9 @@ package simpledb;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.Predicate.Op;
 
+import java.nio.file.Files;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.After;
 import org.junit.Before;
@@ -83,6 +85,37 @@ public class BTreeFileReadTest extends SimpleDbTestBase {
 		assertFalse(page.isSlotUsed(20));
 	}
 
+	/**
+	 * Pages decoded from a memory mapping of the file match those read
+	 * from the file.
+	 */
+	@Test
+	public void readPageMemoryMapped() throws Exception {
+		BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(2, 2000, null, null, 0);
+		BTreePageId rootPtrPid = new BTreePageId(bigFile.getId(), 0, BTreePageId.ROOT_PTR);
+		BTreePageId rootId = ((BTreeRootPtrPage) bigFile.readPage(rootPtrPid)).getRootId();
+		assertEquals(BTreePageId.INTERNAL, rootId.pgcateg());
+		ArrayList<BTreePageId> pids = new ArrayList<BTreePageId>();
+		pids.add(rootId);
+		Iterator<BTreeEntry> it = ((BTreeInternalPage) bigFile.readPage(rootId)).iterator();
+		while (it.hasNext()) {
+			BTreeEntry e = it.next();
+			if (pids.size() == 1) {
+				pids.add(e.getLeftChild());
+			}
+			pids.add(e.getRightChild());
+		}
+		ArrayList<byte[]> expected = new ArrayList<byte[]>();
+		for (BTreePageId pid : pids) {
+			expected.add(bigFile.readPage(pid).getPageData());
+		}
+
+		bigFile.setMemoryMapped(true);
+		for (int i = 0; i < pids.size(); i++) {
+			assertArrayEquals(expected.get(i), bigFile.readPage(pids.get(i)).getPageData());
+		}
+	}
+
 	@Test
 	public void testIteratorBasic() throws Exception {
 		BTreeFile smallFile = BTreeUtility.createRandomBTreeFile(2, 3, null,
@@ -201,6 +234,198 @@ public class BTreeFileReadTest extends SimpleDbTestBase {
 
 	}
 
+	/**
+	 * A reader waiting for a key holds no latch and no page lock, so a writer
+	 * can still change the pages it read.
+	 */
+	@Test public void readerWaitingForKeyHoldsNoPage() throws Exception {
+		final BTreeFile twoLeafPageFile = BTreeUtility.createBTreeFile(2, 600,
+				null, null, 0);
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) twoLeafPageFile.readPage(
+				BTreeRootPtrPage.getId(twoLeafPageFile.getId()));
+		BTreePageId rootId = rootPtr.getRootId();
+		assertEquals(BTreePageId.INTERNAL, rootId.pgcateg());
+
+		TransactionId writer = new TransactionId();
+		Database.getBufferPool().insertTuple(writer, twoLeafPageFile.getId(), BTreeUtility.getBTreeTuple(1, 2));
+
+		final TransactionId reader = new TransactionId();
+		final boolean[] found = new boolean[1];
+		Thread scan = new Thread() {
+			public void run() {
+				try {
+					DbFileIterator it = twoLeafPageFile.indexIterator(reader,
+							new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(0)));
+					it.open();
+					found[0] = it.hasNext();
+					it.close();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		scan.start();
+		Thread.sleep(200);
+		assertTrue(scan.isAlive());
+		assertFalse(Database.getBufferPool().holdsLock(reader, rootId));
+
+		// another writer changes the leaf the reader waits on
+		final TransactionId writer2 = new TransactionId();
+		Thread insert = new Thread() {
+			public void run() {
+				try {
+					Database.getBufferPool().insertTuple(writer2, twoLeafPageFile.getId(),
+							BTreeUtility.getBTreeTuple(2, 2));
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		insert.start();
+		insert.join(1000);
+		assertFalse(insert.isAlive());
+
+		Database.getBufferPool().transactionComplete(writer);
+		Database.getBufferPool().transactionComplete(writer2);
+		scan.join(1000);
+		assertFalse(scan.isAlive());
+		assertTrue(found[0]);
+		Database.getBufferPool().transactionComplete(reader);
+	}
+
+	/**
+	 * A point read of a leaf's first key finds the left sibling's high key below
+	 * it, so it neither descends again nor waits for a writer that latched the
+	 * parent after the read had passed it.
+	 */
+	@Test public void firstKeyReadPassesLatchedParent() throws Exception {
+		final BTreeFile twoLeafPageFile = BTreeUtility.createBTreeFile(2, 600,
+				null, null, 0);
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		BufferPool bp = Database.getBufferPool();
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) twoLeafPageFile.readPage(
+				BTreeRootPtrPage.getId(twoLeafPageFile.getId()));
+		final BTreePageId rootId = rootPtr.getRootId();
+		assertEquals(BTreePageId.INTERNAL, rootId.pgcateg());
+		BTreeEntry entry = ((BTreeInternalPage) twoLeafPageFile.readPage(rootId)).iterator().next();
+		BTreePageId rightId = entry.getRightChild();
+
+		// the right leaf's first key is then above the key dividing the leaves
+		BTreeLeafPage right = (BTreeLeafPage) bp.getPage(tid, rightId, Permissions.READ_ONLY);
+		bp.deleteTuple(tid, right.iterator().next());
+		bp.transactionComplete(tid);
+		right = (BTreeLeafPage) bp.getPage(tid, rightId, Permissions.READ_ONLY);
+		final Field key = right.iterator().next().getField(0);
+		assertTrue(key.compare(Op.GREATER_THAN, entry.getKey()));
+
+		// a writer holds the leaf while the read descends to it
+		twoLeafPageFile.latches.writeLatch(rightId);
+		final TransactionId reader = new TransactionId();
+		final BTreePageId[] found = new BTreePageId[1];
+		Thread read = new Thread() {
+			public void run() {
+				try {
+					found[0] = twoLeafPageFile.findLeafPage(reader, rootId, Permissions.READ_ONLY, key).getId();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		read.start();
+		for (int i = 0; i < 500 && read.getState() != Thread.State.WAITING; i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(Thread.State.WAITING, read.getState());
+
+		// another writer latches the parent, as a split of the left leaf would
+		assertTrue(twoLeafPageFile.latches.tryWriteLatch(rootId));
+		twoLeafPageFile.latches.writeUnlatch(rightId);
+		read.join(5000);
+		assertFalse(read.isAlive());
+		assertEquals(rightId, found[0]);
+		twoLeafPageFile.latches.writeUnlatch(rootId);
+		bp.transactionComplete(reader);
+	}
+
+	/** Checks that each of pids reads back from file as its bytes in raw. */
+	private static void checkPages(BTreeFile file, List<BTreePageId> pids, byte[] raw) {
+		int pageSize = BufferPool.getPageSize();
+		for (BTreePageId pid : pids) {
+			int offset = BTreeRootPtrPage.getPageSize() + (pid.getPageNumber() - 1) * pageSize;
+			assertArrayEquals(Arrays.copyOfRange(raw, offset, offset + pageSize),
+					file.readPage(pid).getPageData());
+		}
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(file.getId());
+		assertArrayEquals(Arrays.copyOfRange(raw, 0, BTreeRootPtrPage.getPageSize()),
+				file.readPage(rootPtrId).getPageData());
+	}
+
+	/**
+	 * Pages read through the shared channel match the file byte for byte,
+	 * both after an interrupted read has closed the channel and while other
+	 * threads' interrupts keep closing it under concurrent readers.
+	 */
+	@Test public void readPageAfterInterrupt() throws Exception {
+		final BTreeFile file = BTreeUtility.createRandomBTreeFile(2, 2000, null, null, 0);
+		final byte[] raw = Files.readAllBytes(file.getFile().toPath());
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) file.readPage(BTreeRootPtrPage.getId(file.getId()));
+		BTreePageId rootId = rootPtr.getRootId();
+		assertEquals(BTreePageId.INTERNAL, rootId.pgcateg());
+		final List<BTreePageId> pids = new ArrayList<BTreePageId>();
+		pids.add(rootId);
+		Iterator<BTreeEntry> it = ((BTreeInternalPage) file.readPage(rootId)).iterator();
+		BTreeEntry e = null;
+		while (it.hasNext()) {
+			e = it.next();
+			pids.add(e.getLeftChild());
+		}
+		pids.add(e.getRightChild());
+		assertEquals(file.numPages(), pids.size());
+		checkPages(file, pids, raw);
+
+		// an interrupted read closes the channel; the next read reopens it
+		Thread.currentThread().interrupt();
+		try {
+			file.readPage(rootId);
+			fail("an interrupted read returned a page");
+		} catch (RuntimeException expected) {
+		}
+		assertTrue(Thread.interrupted());
+		checkPages(file, pids, raw);
+
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread[] readers = new Thread[4];
+		for (int t = 0; t < readers.length; t++) {
+			readers[t] = new Thread(() -> {
+				try {
+					for (int i = 0; i < 200; i++) {
+						checkPages(file, pids, raw);
+					}
+				} catch (Throwable ex) {
+					failure.compareAndSet(null, ex);
+				}
+			});
+			readers[t].start();
+		}
+		for (int i = 0; i < 100; i++) {
+			Thread.currentThread().interrupt();
+			try {
+				file.readPage(pids.get(i % pids.size()));
+			} catch (RuntimeException expected) {
+			}
+			Thread.interrupted();
+			Thread.sleep(2);
+		}
+		for (Thread r : readers) {
+			r.join();
+		}
+		if (failure.get() != null) {
+			throw new AssertionError(failure.get());
+		}
+		checkPages(file, pids, raw);
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -166,6 +166,37 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * The reverse iterator returns every entry with its own children after
+	 * deletes leave empty slots between the entries.
+	 */
+	@Test public void reverseIteratorAfterDelete() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+		Iterator<BTreeEntry> it = page.iterator();
+		while (it.hasNext())
+			entries.add(it.next());
+		for (int i = 1; i < entries.size(); i += 3)
+			page.deleteKeyAndLeftChild(entries.get(i));
+
+		ArrayList<BTreeEntry> forward = new ArrayList<BTreeEntry>();
+		it = page.iterator();
+		while (it.hasNext())
+			forward.add(it.next());
+		Collections.reverse(forward);
+
+		int row = 0;
+		it = page.reverseIterator();
+		while (it.hasNext()) {
+			BTreeEntry e = it.next();
+			assertEquals(forward.get(row).getKey(), e.getKey());
+			assertEquals(forward.get(row).getLeftChild(), e.getLeftChild());
+			assertEquals(forward.get(row).getRightChild(), e.getRightChild());
+			row++;
+		}
+		assertEquals(forward.size(), row);
+	}
+
 	/**
 	 * Unit test for BTreeInternalPage.getNumEmptySlots()
 	 */
@@ -0,0 +1,102 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Measures random point lookups on a large B+ tree built by
+ * BTreeFileEncoder. Each lookup is a transaction that reads the tuples with
+ * one random key through BTreeFile.indexIterator. The buffer pool is kept
+ * small, so most pages on the path from the root to the leaf are read from
+ * the file, either through the file's channel or from a memory mapping of
+ * the file. Lookups per second and buffer pool misses per lookup are
+ * reported for an increasing number of threads.
+ * <p>
+ * Run with: ant runbench -Dbench=BTreeLookupBenchmark [-Dargs="threads"]
+ */
+public class BTreeLookupBenchmark {
+
+    private static final int DEFAULT_THREADS = 8;
+    private static final int TUPLES = 1000000;
+    private static final int POOL_PAGES = 64;
+    private static final long RUN_MILLIS = 3000;
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_THREADS;
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>(TUPLES);
+        for (int i = 0; i < TUPLES; i++) {
+            ArrayList<Integer> tuple = new ArrayList<Integer>(2);
+            tuple.add(i);
+            tuple.add(i);
+            tuples.add(tuple);
+        }
+        File hFile = File.createTempFile("lookupbench", ".dat");
+        hFile.deleteOnExit();
+        File bFile = File.createTempFile("lookupbench", ".btree");
+        bFile.deleteOnExit();
+        BTreeFile f = BTreeFileEncoder.convert(tuples, hFile, bFile, BufferPool.getPageSize(), 2,
+                new Type[] { Type.INT_TYPE, Type.INT_TYPE }, ',', 0);
+        Database.getCatalog().addTable(f, SystemTestUtil.getUUID());
+        tuples = null;
+
+        System.out.println("tuples=" + TUPLES + " pages=" + f.numPages() + " pool=" + POOL_PAGES);
+        System.out.println("mode\tthreads\tlookups/s\tmisses/lookup");
+        for (boolean mapped : new boolean[] { false, true }) {
+            f.setMemoryMapped(mapped);
+            for (int threads = 1; threads <= maxThreads; threads *= 2) {
+                BufferPool bp = Database.resetBufferPool(POOL_PAGES);
+                bp.setReadAheadWindow(0);
+                long lookups = run(f, threads);
+                System.out.println((mapped ? "mapped" : "channel") + "\t" + threads + "\t"
+                        + lookups * 1000 / RUN_MILLIS + "\t\t"
+                        + String.format("%.2f", (double) bp.getMissCount() / Math.max(1, lookups)));
+            }
+        }
+    }
+
+    /** Returns the number of lookups made. */
+    private static long run(final BTreeFile f, int threads) throws InterruptedException {
+        final AtomicLong lookups = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final long[] deadline = new long[1];
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final long seed = t;
+            workers[t] = new Thread(() -> {
+                Random r = new Random(seed);
+                long n = 0;
+                try {
+                    start.await();
+                    while (System.currentTimeMillis() < deadline[0]) {
+                        TransactionId tid = new TransactionId();
+                        IndexPredicate ipred = new IndexPredicate(Predicate.Op.EQUALS,
+                                new IntField(r.nextInt(TUPLES)));
+                        DbFileIterator it = f.indexIterator(tid, ipred);
+                        it.open();
+                        while (it.hasNext()) {
+                            it.next();
+                        }
+                        it.close();
+                        Database.getBufferPool().transactionComplete(tid);
+                        n++;
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+                lookups.addAndGet(n);
+            });
+            workers[t].start();
+        }
+        deadline[0] = System.currentTimeMillis() + RUN_MILLIS;
+        start.countDown();
+        for (Thread w : workers) {
+            w.join();
+        }
+        return lookups.get();
+    }
+}
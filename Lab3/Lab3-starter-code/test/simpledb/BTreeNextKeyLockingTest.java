@@ -236,6 +236,80 @@ public class BTreeNextKeyLockingTest extends SimpleDbTestBase {
 		bw1 = null;
 	}
 
+	/**
+	 * Inserts of keys with other keys between them lock neither each other's
+	 * key nor the key after it, so writers to one leaf do not wait for each
+	 * other.
+	 */
+	@Test
+	public void insertsIntoOneLeafDoNotWait() throws Exception {
+		BTreeFile bf = BTreeUtility.createBTreeFile(2, 10, null, null, 0);
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		BufferPool bp = Database.getBufferPool();
+
+		Tuple low = BTreeUtility.getBTreeTuple(3, 2);
+		bp.insertTuple(tid, bf.getId(), low);
+
+		TransactionId tid2 = new TransactionId();
+		BTreeWriter bw = new BTreeWriter(tid2, bf, 7, 1);
+		bw.start();
+		bw.join(5000);
+		assertTrue(bw.succeeded());
+
+		bp.transactionComplete(tid2);
+		bp.transactionComplete(tid);
+		tid = new TransactionId();
+		assertEquals(2, countKey(bf, 3));
+		assertEquals(2, countKey(bf, 7));
+		assertEquals(low.getRecordId().getPageId(), firstLeaf(bf, 7));
+	}
+
+	/**
+	 * An aborting writer undoes only its own change to a leaf that another
+	 * writer changed after it.
+	 */
+	@Test
+	public void abortUndoesOnlyItsOwnInsert() throws Exception {
+		BTreeFile bf = BTreeUtility.createBTreeFile(2, 10, null, null, 0);
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		BufferPool bp = Database.getBufferPool();
+
+		bp.insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(3, 2));
+
+		TransactionId tid2 = new TransactionId();
+		BTreeWriter bw = new BTreeWriter(tid2, bf, 7, 1);
+		bw.start();
+		bw.join(5000);
+		assertTrue(bw.succeeded());
+
+		bp.transactionComplete(tid, false);
+		bp.transactionComplete(tid2);
+		tid = new TransactionId();
+		assertEquals(1, countKey(bf, 3));
+		assertEquals(2, countKey(bf, 7));
+	}
+
+	private PageId firstLeaf(BTreeFile bf, int key) throws Exception {
+		DbFileIterator fit = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key)));
+		fit.open();
+		PageId pid = fit.next().getRecordId().getPageId();
+		fit.close();
+		return pid;
+	}
+
+	private int countKey(BTreeFile bf, int key) throws Exception {
+		IndexPredicate ipred = new IndexPredicate(Op.EQUALS, new IntField(key));
+		DbFileIterator fit = bf.indexIterator(tid, ipred);
+		fit.open();
+		int count = 0;
+		while(fit.hasNext()) {
+			fit.next();
+			count++;
+		}
+		fit.close();
+		return count;
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -0,0 +1,94 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BufferAccessStrategyTest extends SimpleDbTestBase {
+    private static final int POOL_PAGES = 40;
+    private static final int HOT_PAGES = 5;
+    private static final int SCAN_PAGES = 100;
+
+    private HeapFile hot;
+    private HeapFile big;
+    private BufferPool bp;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        hot = SystemTestUtil.createRandomHeapFile(2, 504 * HOT_PAGES, null, null);
+        big = SystemTestUtil.createRandomHeapFile(2, 504 * SCAN_PAGES, null, null);
+        bp = Database.resetBufferPool(POOL_PAGES);
+    }
+
+    private void readHotPages(TransactionId tid) throws Exception {
+        for (int i = 0; i < HOT_PAGES; i++) {
+            bp.getPage(tid, new HeapPageId(hot.getId(), i), Permissions.READ_ONLY);
+        }
+    }
+
+    private int scanBigTable(TransactionId tid) throws Exception {
+        SeqScan scan = new SeqScan(tid, big.getId(), "");
+        scan.open();
+        int count = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            count++;
+        }
+        scan.close();
+        return count;
+    }
+
+    /**
+     * Small files are cached normally; large ones get a ring.
+     */
+    @Test public void strategyOnlyForLargeFiles() {
+        assertNull(bp.getScanStrategy(POOL_PAGES));
+        BufferAccessStrategy strategy = bp.getScanStrategy(SCAN_PAGES);
+        assertNotNull(strategy);
+        assertEquals(POOL_PAGES / 8, strategy.getRingSize());
+    }
+
+    /**
+     * A scan of a table bigger than the pool leaves the hot pages cached.
+     */
+    @Test public void largeScanKeepsHotPages() throws Exception {
+        TransactionId tid = new TransactionId();
+        readHotPages(tid);
+        assertEquals(504 * SCAN_PAGES, scanBigTable(tid));
+
+        bp.resetStats();
+        readHotPages(tid);
+        assertEquals(HOT_PAGES, bp.getHitCount());
+        assertEquals(0, bp.getMissCount());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * With the ring disabled, the same scan pushes the hot pages out.
+     */
+    @Test public void largeScanWithoutRingEvictsHotPages() throws Exception {
+        bp.setScanRingThreshold(Integer.MAX_VALUE);
+        TransactionId tid = new TransactionId();
+        readHotPages(tid);
+        assertEquals(504 * SCAN_PAGES, scanBigTable(tid));
+
+        bp.resetStats();
+        readHotPages(tid);
+        assertTrue(bp.getMissCount() > 0);
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferAccessStrategyTest.class);
+    }
+}
@@ -0,0 +1,77 @@
+package simpledb;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Measures the rate of small transactions against a large, mostly resident
+ * buffer pool. Each transaction reads a few random pages, and in the update
+ * mix also dirties one of them, then commits. Commit and abort only visit
+ * the pages the transaction locked, so the rate should not drop as the
+ * number of resident pages grows.
+ * <p>
+ * Run with: ant runbench -Dbench=CommitBenchmark [-Dargs="residentPages"]
+ */
+public class CommitBenchmark {
+
+    private static final int POOL_PAGES = 100000;
+    private static final int DEFAULT_RESIDENT_PAGES = 20000;
+    private static final int PAGES_PER_XACT = 4;
+    private static final long RUN_MILLIS = 3000;
+
+    public static void main(String[] args) throws Exception {
+        int resident = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_RESIDENT_PAGES;
+        // a file of empty pages; page contents do not matter here
+        File file = File.createTempFile("commitbench", ".dat");
+        file.deleteOnExit();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength((long) resident * BufferPool.getPageSize());
+        raf.close();
+        HeapFile f = new HeapFile(file, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(f, SystemTestUtil.getUUID());
+        int tableId = f.getId();
+        int numPages = f.numPages();
+        BufferPool bp = Database.resetBufferPool(POOL_PAGES);
+        bp.setReadAheadWindow(0);
+
+        // make every page of the table resident
+        TransactionId warm = new TransactionId();
+        for (int i = 0; i < numPages; i++) {
+            bp.getPage(warm, new HeapPageId(tableId, i), Permissions.READ_ONLY);
+        }
+        bp.transactionComplete(warm);
+
+        System.out.println("pool=" + POOL_PAGES + " resident=" + numPages
+                + " pages/xact=" + PAGES_PER_XACT);
+        System.out.println("mix\tcommits/s\taborts/s");
+        for (boolean update : new boolean[] { false, true }) {
+            long commits = run(bp, tableId, numPages, update, true);
+            long aborts = run(bp, tableId, numPages, update, false);
+            System.out.println((update ? "update" : "read") + "\t" + commits + "\t" + aborts);
+        }
+    }
+
+    private static long run(BufferPool bp, int tableId, int numPages, boolean update, boolean commit)
+            throws Exception {
+        Random r = new Random(0);
+        long n = 0;
+        long deadline = System.currentTimeMillis() + RUN_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            TransactionId tid = new TransactionId();
+            for (int i = 0; i < PAGES_PER_XACT; i++) {
+                PageId pid = new HeapPageId(tableId, r.nextInt(numPages));
+                if (update && i == 0) {
+                    bp.getPage(tid, pid, Permissions.READ_WRITE).markDirty(true, tid);
+                } else {
+                    bp.getPage(tid, pid, Permissions.READ_ONLY);
+                }
+            }
+            bp.transactionComplete(tid, commit);
+            n++;
+        }
+        return n * 1000 / RUN_MILLIS;
+    }
+}
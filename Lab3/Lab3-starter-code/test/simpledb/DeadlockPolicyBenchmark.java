@@ -0,0 +1,93 @@
+package simpledb;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Compares the deadlock policies under lock contention. Each thread runs
+ * transactions that lock a few random pages of a small table, half of them
+ * for writing, in random order, so that transactions often wait for and
+ * deadlock with each other. An aborted transaction is retried under a new
+ * TransactionId. Commits per second and aborts per commit are reported for
+ * each policy and thread count.
+ * <p>
+ * Run with: ant runbench -Dbench=DeadlockPolicyBenchmark [-Dargs="pages"]
+ */
+public class DeadlockPolicyBenchmark {
+
+    private static final int[] THREADS = { 4, 16, 64, 256 };
+    private static final int DEFAULT_PAGES = 64;
+    private static final int PAGES_PER_XACT = 4;
+    private static final long RUN_MILLIS = 3000;
+
+    public static void main(String[] args) throws Exception {
+        int pages = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PAGES;
+        File file = File.createTempFile("deadlockbench", ".dat");
+        file.deleteOnExit();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength((long) pages * BufferPool.getPageSize());
+        raf.close();
+        HeapFile f = new HeapFile(file, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(f, SystemTestUtil.getUUID());
+
+        System.out.println("pages=" + pages + " pages/xact=" + PAGES_PER_XACT);
+        System.out.println("threads\tpolicy\tcommits/s\taborts/commit");
+        for (int threads : THREADS) {
+            for (DeadlockPolicy policy : DeadlockPolicy.values()) {
+                BufferPool bp = Database.resetBufferPool(pages);
+                bp.setReadAheadWindow(0);
+                bp.setDeadlockPolicy(policy);
+                long[] result = run(bp, f.getId(), pages, threads);
+                System.out.println(threads + "\t" + policy + "\t" + result[0] * 1000 / RUN_MILLIS
+                        + "\t" + String.format("%.2f", (double) result[1] / Math.max(1, result[0])));
+            }
+        }
+    }
+
+    /** Returns the number of commits and of aborts. */
+    private static long[] run(final BufferPool bp, final int tableId, final int pages, int threads)
+            throws InterruptedException {
+        final AtomicLong commits = new AtomicLong();
+        final AtomicLong aborts = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final long[] deadline = new long[1];
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final long seed = t;
+            workers[t] = new Thread(() -> {
+                Random r = new Random(seed);
+                try {
+                    start.await();
+                    while (System.currentTimeMillis() < deadline[0]) {
+                        TransactionId tid = new TransactionId();
+                        try {
+                            for (int i = 0; i < PAGES_PER_XACT; i++) {
+                                Permissions perm = r.nextBoolean() ? Permissions.READ_WRITE : Permissions.READ_ONLY;
+                                bp.getPage(tid, new HeapPageId(tableId, r.nextInt(pages)), perm);
+                            }
+                            bp.transactionComplete(tid, true);
+                            commits.incrementAndGet();
+                        } catch (TransactionAbortedException e) {
+                            // getPage has aborted tid already
+                            aborts.incrementAndGet();
+                        }
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            workers[t].start();
+        }
+        deadline[0] = System.currentTimeMillis() + RUN_MILLIS;
+        start.countDown();
+        for (Thread w : workers) {
+            w.join();
+        }
+        return new long[] { commits.get(), aborts.get() };
+    }
+}
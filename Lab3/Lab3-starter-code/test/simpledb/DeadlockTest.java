@@ -7,6 +7,8 @@ import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 
 public class DeadlockTest extends TestUtil.CreateHeapFile {
@@ -211,6 +213,73 @@ public class DeadlockTest extends TestUtil.CreateHeapFile {
     System.out.println("testUpgradeWriteDeadlock resolved deadlock");
   }
 
+  /**
+   * The youngest transaction on a cycle is aborted as soon as the cycle
+   * forms, even when it is not the transaction that closed it.
+   */
+  @Test public void testYoungestIsVictim() throws Exception {
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    bp.getPage(tid2, p1, Permissions.READ_WRITE);
+
+    // tid2 is younger and starts waiting first; tid1 closes the cycle
+    LockGrabber lg2 = startGrabber(tid2, p0, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+    LockGrabber lg1 = startGrabber(tid1, p1, Permissions.READ_WRITE);
+
+    lg1.join(10 * POLL_INTERVAL);
+    lg2.join(10 * POLL_INTERVAL);
+    assertTrue(lg1.acquired());
+    assertNull(lg1.getError());
+    assertFalse(lg2.acquired());
+    assertTrue(lg2.getError() instanceof TransactionAbortedException);
+    bp.transactionComplete(tid1);
+  }
+
+  /**
+   * Under WAIT_DIE a younger transaction that would wait for an older one
+   * aborts at once, while an older one waits for a younger one.
+   */
+  @Test public void testWaitDie() throws Exception {
+    bp.setDeadlockPolicy(DeadlockPolicy.WAIT_DIE);
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    bp.getPage(tid2, p1, Permissions.READ_WRITE);
+
+    LockGrabber younger = startGrabber(tid2, p0, Permissions.READ_WRITE);
+    younger.join(10 * POLL_INTERVAL);
+    assertTrue(younger.getError() instanceof TransactionAbortedException);
+
+    bp.getPage(tid2, p1, Permissions.READ_WRITE);
+    LockGrabber older = startGrabber(tid1, p1, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+    assertFalse(older.acquired());
+    assertNull(older.getError());
+    bp.transactionComplete(tid2);
+    older.join(10 * POLL_INTERVAL);
+    assertTrue(older.acquired());
+    bp.transactionComplete(tid1);
+  }
+
+  /**
+   * Under WOUND_WAIT an older transaction that would wait for a younger one
+   * aborts it; the younger one finds out at its next lock request.
+   */
+  @Test public void testWoundWait() throws Exception {
+    bp.setDeadlockPolicy(DeadlockPolicy.WOUND_WAIT);
+    bp.getPage(tid2, p0, Permissions.READ_WRITE);
+
+    LockGrabber older = startGrabber(tid1, p0, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+    assertFalse(older.acquired());
+
+    LockGrabber younger = startGrabber(tid2, p1, Permissions.READ_ONLY);
+    younger.join(10 * POLL_INTERVAL);
+    assertTrue(younger.getError() instanceof TransactionAbortedException);
+    older.join(10 * POLL_INTERVAL);
+    assertTrue(older.acquired());
+    assertNull(older.getError());
+    bp.transactionComplete(tid1);
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,203 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class EvictionPolicyTest extends SimpleDbTestBase {
+
+    /** Filter that accepts every frame. */
+    private static final EvictionPolicy.FrameFilter ALL = new EvictionPolicy.FrameFilter() {
+        public boolean canEvict(int frame) {
+            return true;
+        }
+    };
+
+    /** Filter that accepts every frame but one, e.g. because it is dirty. */
+    private static EvictionPolicy.FrameFilter allBut(final int pinned) {
+        return new EvictionPolicy.FrameFilter() {
+            public boolean canEvict(int frame) {
+                return frame != pinned;
+            }
+        };
+    }
+
+    private static PageId pid(int n) {
+        return new HeapPageId(1, n);
+    }
+
+    private static void fill(EvictionPolicy policy, int frames) {
+        policy.init(frames);
+        for (int i = 0; i < frames; i++) {
+            policy.frameFilled(i, pid(i));
+        }
+    }
+
+    /**
+     * CLOCK gives a referenced frame a second chance.
+     */
+    @Test public void clockSecondChance() {
+        EvictionPolicy policy = new ClockEvictionPolicy();
+        fill(policy, 3);
+        // every frame starts referenced, so the first sweep only clears bits
+        assertEquals(0, policy.chooseVictim(ALL));
+        policy.frameCleared(0);
+        policy.frameFilled(0, pid(3));
+        policy.frameAccessed(1);
+        assertEquals(2, policy.chooseVictim(ALL));
+    }
+
+    /**
+     * No policy returns a frame rejected by the filter.
+     */
+    @Test public void respectsFilter() {
+        EvictionPolicy[] policies = { new ClockEvictionPolicy(),
+                new LruKEvictionPolicy(), new TwoQueueEvictionPolicy() };
+        for (EvictionPolicy policy : policies) {
+            fill(policy, 1);
+            assertEquals(-1, policy.chooseVictim(allBut(0)));
+            fill(policy, 4);
+            for (int i = 0; i < 10; i++) {
+                assertTrue(policy.chooseVictim(allBut(2)) != 2);
+            }
+        }
+    }
+
+    /**
+     * An LRU-K victim search asks the filter about the head of the ranking
+     * only, plus one call per pinned frame ranked ahead of the victim, however
+     * many frames the pool has.
+     */
+    @Test public void lruKVictimSearchStopsAtFirstEvictable() {
+        final int frames = 4096;
+        final int pinned = 10;
+        final int[] calls = new int[1];
+        EvictionPolicy.FrameFilter counting = new EvictionPolicy.FrameFilter() {
+            public boolean canEvict(int frame) {
+                calls[0]++;
+                return frame >= pinned;
+            }
+        };
+        EvictionPolicy policy = new LruKEvictionPolicy(2);
+        fill(policy, frames);
+        for (int i = 0; i < frames; i++) {
+            policy.frameAccessed(i);
+        }
+        assertEquals(pinned, policy.chooseVictim(counting));
+        assertEquals(pinned + 1, calls[0]);
+
+        // once the pinned frames are hot, the victim is found on the first call
+        for (int i = 0; i < pinned; i++) {
+            policy.frameAccessed(i);
+            policy.frameAccessed(i);
+        }
+        calls[0] = 0;
+        assertEquals(pinned, policy.chooseVictim(counting));
+        assertEquals(1, calls[0]);
+    }
+
+    /**
+     * LRU-2 evicts the page referenced once before pages referenced twice,
+     * even if the once-referenced page was used most recently.
+     */
+    @Test public void lruKPrefersPagesWithShortHistory() {
+        EvictionPolicy policy = new LruKEvictionPolicy(2);
+        fill(policy, 3);
+        policy.frameAccessed(0);
+        policy.frameAccessed(1);
+        assertEquals(2, policy.chooseVictim(ALL));
+        policy.frameAccessed(2);
+        // now frame 0 has the oldest second-to-last reference
+        assertEquals(0, policy.chooseVictim(ALL));
+    }
+
+    /**
+     * LRU-K remembers the history of a page that is evicted and read again.
+     */
+    @Test public void lruKRetainsHistory() {
+        EvictionPolicy policy = new LruKEvictionPolicy(2);
+        fill(policy, 2);
+        policy.frameAccessed(0);
+        policy.frameCleared(0);
+        policy.frameFilled(0, pid(0));
+        // frame 0 already has two references, frame 1 only one
+        assertEquals(1, policy.chooseVictim(ALL));
+    }
+
+    /**
+     * 2Q keeps a page that was re-read after eviction in Am, and a scan of
+     * new pages only cycles through A1in.
+     */
+    @Test public void twoQueueScanResistance() {
+        EvictionPolicy policy = new TwoQueueEvictionPolicy();
+        fill(policy, 8);
+        // A1in holds all 8 frames, more than its share, so its head goes first
+        assertEquals(0, policy.chooseVictim(ALL));
+        policy.frameCleared(0);
+        // pid(0) is remembered in A1out, so reading it again promotes it to Am
+        policy.frameFilled(0, pid(0));
+
+        // a scan of new pages never evicts the hot page
+        for (int i = 8; i < 100; i++) {
+            int victim = policy.chooseVictim(ALL);
+            assertTrue(victim != 0);
+            policy.frameCleared(victim);
+            policy.frameFilled(victim, pid(i));
+            policy.frameAccessed(0);
+        }
+    }
+
+    /**
+     * BufferPool counts hits and misses.
+     */
+    @Test public void hitRatio() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 1000, null, null);
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES, new TwoQueueEvictionPolicy());
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 3; i++) {
+            bp.getPage(tid, new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY);
+        }
+        bp.getPage(tid, new HeapPageId(hf.getId(), 1), Permissions.READ_ONLY);
+        assertEquals(2, bp.getHitCount());
+        assertEquals(2, bp.getMissCount());
+        assertEquals(0.5, bp.getHitRatio(), 1e-9);
+        bp.resetStats();
+        assertEquals(0, bp.getHitCount());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Every policy keeps a scan over more pages than the pool holds working.
+     */
+    @Test public void scanLargerThanPool() throws Exception {
+        EvictionPolicy[] policies = { new ClockEvictionPolicy(),
+                new LruKEvictionPolicy(), new TwoQueueEvictionPolicy() };
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 20, null, null);
+        for (EvictionPolicy policy : policies) {
+            BufferPool bp = Database.resetBufferPool(5, policy);
+            TransactionId tid = new TransactionId();
+            DbFileIterator it = hf.iterator(tid);
+            it.open();
+            int count = 0;
+            while (it.hasNext()) {
+                it.next();
+                count++;
+            }
+            it.close();
+            assertEquals(504 * 20, count);
+            assertEquals(20, bp.getMissCount());
+            bp.transactionComplete(tid);
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(EvictionPolicyTest.class);
+    }
+}
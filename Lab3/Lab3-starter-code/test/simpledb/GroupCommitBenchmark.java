@@ -0,0 +1,77 @@
+package simpledb;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures commit throughput of the log as the number of concurrent
+ * committers grows. Each committer loops writing a BEGIN and a COMMIT
+ * record. Three configurations are reported per committer count: each
+ * commit forcing the log under the log's monitor, as before group commit;
+ * group commit with no delay; and group commit with a short delay.
+ * <p>
+ * Run with: ant runbench -Dbench=GroupCommitBenchmark [-Dargs="delayMicros"]
+ */
+public class GroupCommitBenchmark {
+
+    private static final int[] COMMITTERS = { 1, 8, 64 };
+    private static final long DEFAULT_DELAY_MICROS = 200;
+    private static final long RUN_MILLIS = 3000;
+
+    public static void main(String[] args) throws Exception {
+        long delay = args.length > 0 ? Long.parseLong(args[0]) : DEFAULT_DELAY_MICROS;
+        LogFile log = Database.getLogFile();
+        System.out.println("committers\tserial commits/s\tgroup commits/s\tgroup+" + delay
+                + "us commits/s\tcommits/force");
+        for (int threads : COMMITTERS) {
+            long serial = run(log, threads, true);
+            log.setGroupCommitDelay(0);
+            long group = run(log, threads, false);
+            log.setGroupCommitDelay(delay);
+            long forcesBefore = log.getForceCount();
+            long delayed = run(log, threads, false);
+            long forced = log.getForceCount() - forcesBefore;
+            System.out.println(threads + "\t" + serial + "\t" + group + "\t" + delayed
+                    + "\t" + String.format("%.1f", (double) delayed * RUN_MILLIS / 1000 / Math.max(1, forced)));
+        }
+    }
+
+    private static long run(final LogFile log, int threads, final boolean serial)
+            throws InterruptedException {
+        final AtomicLong commits = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final long[] deadline = new long[1];
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                long n = 0;
+                try {
+                    start.await();
+                    while (System.currentTimeMillis() < deadline[0]) {
+                        TransactionId tid = new TransactionId();
+                        log.logXactionBegin(tid);
+                        if (serial) {
+                            // holding the monitor makes logCommit force the log itself
+                            synchronized (log) {
+                                log.logCommit(tid);
+                            }
+                        } else {
+                            log.logCommit(tid);
+                        }
+                        n++;
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+                commits.addAndGet(n);
+            });
+            workers[t].start();
+        }
+        deadline[0] = System.currentTimeMillis() + RUN_MILLIS;
+        start.countDown();
+        for (Thread w : workers) {
+            w.join();
+        }
+        return commits.get() * 1000 / RUN_MILLIS;
+    }
+}
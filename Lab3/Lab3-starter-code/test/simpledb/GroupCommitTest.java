@@ -0,0 +1,91 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class GroupCommitTest extends SimpleDbTestBase {
+    private static final int THREADS = 8;
+    private static final int COMMITS = 50;
+
+    private LogFile log;
+
+    @Before public void setUp() {
+        log = Database.getLogFile();
+    }
+
+    private void commitAll(final int threads, final int commits) throws Exception {
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] committers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            committers[t] = new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < commits; i++) {
+                            TransactionId tid = new TransactionId();
+                            log.logXactionBegin(tid);
+                            log.logCommit(tid);
+                        }
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    }
+                }
+            };
+            committers[t].start();
+        }
+        for (Thread t : committers) {
+            t.join(60000);
+            assertFalse("committer did not finish", t.isAlive());
+        }
+        assertNull(failure.get());
+    }
+
+    /**
+     * Every commit returns, and concurrent committers share forces.
+     */
+    @Test public void committersShareForces() throws Exception {
+        log.setGroupCommitDelay(2000);
+        long before = log.getForceCount();
+        commitAll(THREADS, COMMITS);
+        long forced = log.getForceCount() - before;
+        assertTrue(forced > 0);
+        assertTrue("expected fewer forces than commits, got " + forced, forced < THREADS * COMMITS);
+    }
+
+    /**
+     * A commit made while the caller holds the log's monitor forces the
+     * log itself rather than waiting for the flusher.
+     */
+    @Test public void commitHoldingMonitor() throws Exception {
+        TransactionId tid = new TransactionId();
+        long before = log.getForceCount();
+        synchronized (log) {
+            log.logXactionBegin(tid);
+            log.logCommit(tid);
+        }
+        assertEquals(before + 1, log.getForceCount());
+    }
+
+    /**
+     * The log is forced after a commit even with no other committers.
+     */
+    @Test public void singleCommitter() throws Exception {
+        long before = log.getForceCount();
+        commitAll(1, COMMITS);
+        assertEquals(COMMITS, log.getForceCount() - before);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(GroupCommitTest.class);
+    }
+}
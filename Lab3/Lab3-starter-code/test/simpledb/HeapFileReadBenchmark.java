@@ -0,0 +1,99 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Measures how many pages per second HeapFile.readPage reads, as it does on
+ * every buffer pool miss. Threads read random pages of a table straight from
+ * the file, bypassing the pool, both through the file's channel and with
+ * the file memory-mapped. The same reads are also made the way readPage
+ * used to make them, opening and closing a RandomAccessFile for every page,
+ * for comparison. The file is small enough to stay in the
+ * operating system's cache, so this measures the cost of the calls rather
+ * than of the disk.
+ * <p>
+ * Run with: ant runbench -Dbench=HeapFileReadBenchmark [-Dargs="threads"]
+ */
+public class HeapFileReadBenchmark {
+
+    private static final int DEFAULT_THREADS = 8;
+    private static final int PAGES = 4096;
+    private static final long RUN_MILLIS = 3000;
+
+    /** Reads one page of a file. */
+    private interface PageReader {
+        void read(HeapPageId pid) throws IOException;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_THREADS;
+        final File file = File.createTempFile("readbench", ".dat");
+        file.deleteOnExit();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength((long) PAGES * BufferPool.getPageSize());
+        raf.close();
+        final HeapFile f = new HeapFile(file, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(f, SystemTestUtil.getUUID());
+
+        PageReader perPage = pid -> {
+            byte[] data = new byte[BufferPool.getPageSize()];
+            RandomAccessFile r = new RandomAccessFile(file, "r");
+            r.seek((long) pid.getPageNumber() * BufferPool.getPageSize());
+            r.read(data);
+            r.close();
+            new HeapPage(pid, ByteBuffer.wrap(data));
+        };
+        PageReader channel = pid -> f.readPage(pid);
+        final HeapFile mapped = new HeapFile(file, f.getTupleDesc());
+        mapped.setMemoryMapped(true);
+        PageReader mmap = pid -> mapped.readPage(pid);
+
+        System.out.println("pages=" + PAGES);
+        System.out.println("threads\topen per page\tshared channel\tmapped\t(pages/s)");
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            System.out.println(threads + "\t" + run(perPage, f.getId(), threads) + "\t\t"
+                    + run(channel, f.getId(), threads) + "\t\t" + run(mmap, f.getId(), threads));
+        }
+    }
+
+    /** Returns the number of pages read per second. */
+    private static long run(final PageReader reader, final int tableId, int threads)
+            throws InterruptedException {
+        final AtomicLong reads = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final long[] deadline = new long[1];
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final long seed = t;
+            workers[t] = new Thread(() -> {
+                Random r = new Random(seed);
+                long n = 0;
+                try {
+                    start.await();
+                    while (System.currentTimeMillis() < deadline[0]) {
+                        reader.read(new HeapPageId(tableId, r.nextInt(PAGES)));
+                        n++;
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+                reads.addAndGet(n);
+            });
+            workers[t].start();
+        }
+        deadline[0] = System.currentTimeMillis() + RUN_MILLIS;
+        start.countDown();
+        for (Thread w : workers) {
+            w.join();
+        }
+        return reads.get() * 1000 / RUN_MILLIS;
+    }
+}
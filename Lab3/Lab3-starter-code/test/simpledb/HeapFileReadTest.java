@@ -3,7 +3,9 @@ package simpledb;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
 
+import java.nio.file.Files;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -101,6 +103,31 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         it.close();
     }
 
+    /**
+     * A scan goes on past an empty page to the pages after it.
+     */
+    @Test
+    public void testIteratorSkipsEmptyPage() throws Exception {
+        HeapFile threePageFile = SystemTestUtil.createRandomHeapFile(2, 504 * 3,
+                null, null);
+        HeapPageId middle = new HeapPageId(threePageFile.getId(), 1);
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, middle,
+                Permissions.READ_WRITE);
+        for (Iterator<Tuple> it = page.iterator(); it.hasNext();) {
+            page.deleteTuple(it.next());
+        }
+
+        DbFileIterator it = threePageFile.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count += 1;
+        }
+        assertEquals(504 * 2, count);
+        it.close();
+    }
+
     @Test
     public void testIteratorClose() throws Exception {
         // make more than 1 page. Previous closed iterator would start fetching
@@ -121,6 +148,87 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         it.close();
     }
 
+    /**
+     * Pages read through a memory mapping match those read from the file,
+     * are copied rather than written through when changed, and pages
+     * appended to the file can be read as well.
+     */
+    @Test
+    public void readPageMemoryMapped() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        byte[] expected = hf.readPage(pid).getPageData();
+        hf.setMemoryMapped(true);
+        HeapPage page = (HeapPage) hf.readPage(pid);
+        assertArrayEquals(expected, page.getPageData());
+
+        page.deleteTuple(page.iterator().next());
+        assertArrayEquals(expected, hf.readPage(pid).getPageData());
+
+        HeapPage appended = new HeapPage(new HeapPageId(hf.getId(), 1), HeapPage.createEmptyPageData());
+        appended.insertTuple(Utility.getHeapTuple(7, 2));
+        hf.writePage(appended);
+        assertEquals(2, hf.numPages());
+        assertArrayEquals(appended.getPageData(),
+                hf.readPage(appended.getId()).getPageData());
+    }
+
+    /** Checks that every page of file reads back as the bytes in raw. */
+    private static void checkPages(HeapFile file, byte[] raw) {
+        int pageSize = BufferPool.getPageSize();
+        for (int i = 0; i < raw.length / pageSize; i++) {
+            Page page = file.readPage(new HeapPageId(file.getId(), i));
+            assertArrayEquals(Arrays.copyOfRange(raw, i * pageSize, (i + 1) * pageSize),
+                    page.getPageData());
+        }
+    }
+
+    /**
+     * Pages read through the shared channel match the file byte for byte,
+     * both after an interrupted read has closed the channel and while other
+     * threads' interrupts keep closing it under concurrent readers.
+     */
+    @Test
+    public void readPageAfterInterrupt() throws Exception {
+        final HeapFile file = SystemTestUtil.createRandomHeapFile(2, 504 * 4, null, null);
+        final byte[] raw = Files.readAllBytes(file.getFile().toPath());
+        assertEquals(4 * BufferPool.getPageSize(), raw.length);
+        checkPages(file, raw);
+
+        // an interrupted read closes the channel; the next read reopens it
+        Thread.currentThread().interrupt();
+        file.readPage(new HeapPageId(file.getId(), 0));
+        assertTrue(Thread.interrupted());
+        checkPages(file, raw);
+
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] readers = new Thread[4];
+        for (int t = 0; t < readers.length; t++) {
+            readers[t] = new Thread(() -> {
+                try {
+                    for (int i = 0; i < 200; i++) {
+                        checkPages(file, raw);
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            readers[t].start();
+        }
+        for (int i = 0; i < 20; i++) {
+            Thread.currentThread().interrupt();
+            file.readPage(new HeapPageId(file.getId(), i % 4));
+            Thread.interrupted();
+            Thread.sleep(5);
+        }
+        for (Thread r : readers) {
+            r.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        checkPages(file, raw);
+    }
+
     /**
      * JUnit suite target
      */
@@ -1,5 +1,9 @@
 package simpledb;
 
+import simpledb.systemtest.SystemTestUtil;
+
+import java.util.ArrayList;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -43,6 +47,195 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * An insert goes to a page the free-space map knows has room, skipping
+     * the full pages before it, and the map remembers what it learnt.
+     */
+    @Test public void insertUsesFreeSpaceMap() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 3, null, null);
+        BufferPool bp = Database.getBufferPool();
+        HeapPageId p0 = new HeapPageId(hf.getId(), 0);
+        HeapPageId p2 = new HeapPageId(hf.getId(), 2);
+
+        // page 0 has never been seen, so the map sends the insert there
+        // first, and records that it is full
+        bp.deleteTuple(tid, ((HeapPage) bp.getPage(tid, p2, Permissions.READ_WRITE)).iterator().next());
+        bp.transactionComplete(tid);
+        tid = new TransactionId();
+        Tuple t = Utility.getHeapTuple(1, 2);
+        bp.insertTuple(tid, hf.getId(), t);
+        assertEquals(p2, t.getRecordId().getPageId());
+        assertEquals(3, hf.numPages());
+        assertFalse(bp.holdsLock(tid, p0));
+        bp.transactionComplete(tid);
+        tid = new TransactionId();
+
+        FreeSpaceMap reopened = new FreeSpaceMap(hf.getFile());
+        reopened.getFile().deleteOnExit();
+        assertFalse(reopened.mayHaveRoom(0));
+        assertFalse(reopened.mayHaveRoom(2));
+
+        // with the map up to date, the next insert touches no full page
+        bp.deleteTuple(tid, ((HeapPage) bp.getPage(tid, p2, Permissions.READ_WRITE)).iterator().next());
+        bp.transactionComplete(tid);
+        tid = new TransactionId();
+        bp.resetStats();
+        bp.insertTuple(tid, hf.getId(), Utility.getHeapTuple(2, 2));
+        assertEquals(1, bp.getHitCount() + bp.getMissCount());
+    }
+
+    /**
+     * A page filled by a transaction that aborts is not left marked full,
+     * either in the map or in its file.
+     */
+    @Test public void abortedInsertLeavesRoom() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 503, null, null);
+        hf.getFreeSpaceMap().getFile().deleteOnExit();
+        BufferPool bp = Database.getBufferPool();
+        HeapPageId p0 = new HeapPageId(hf.getId(), 0);
+        bp.insertTuple(tid, hf.getId(), Utility.getHeapTuple(1, 2));
+        assertFalse(hf.getFreeSpaceMap().mayHaveRoom(0));
+        bp.transactionComplete(tid, false);
+        tid = new TransactionId();
+
+        assertTrue(hf.getFreeSpaceMap().mayHaveRoom(0));
+        assertTrue(new FreeSpaceMap(hf.getFile()).mayHaveRoom(0));
+        Tuple t = Utility.getHeapTuple(2, 2);
+        bp.insertTuple(tid, hf.getId(), t);
+        assertEquals(p0, t.getRecordId().getPageId());
+    }
+
+    /**
+     * A map covering more pages than its heap file has is left over from
+     * another file, and is not used.
+     */
+    @Test public void staleMapDropped() throws Exception {
+        FreeSpaceMap m = new FreeSpaceMap(empty.getFile());
+        m.getFile().deleteOnExit();
+        m.update(0, 0, 1);
+        m.committed(0);
+        m.close();
+        assertFalse(new FreeSpaceMap(empty.getFile()).mayHaveRoom(0));
+
+        // the file has a single page
+        m.update(2, 0, 1);
+        m.committed(2);
+        m.close();
+        assertTrue(new FreeSpaceMap(empty.getFile()).mayHaveRoom(0));
+        assertFalse(m.getFile().exists());
+
+        // a heap file written anew loses its map
+        m.update(0, 1, 1);
+        m.committed(0);
+        m.close();
+        assertTrue(m.getFile().exists());
+        HeapFileEncoder.convert(new ArrayList<ArrayList<Integer>>(), empty.getFile(),
+                BufferPool.getPageSize(), 2);
+        assertFalse(m.getFile().exists());
+    }
+
+    /**
+     * Concurrent inserters are sent to different pages when there are pages
+     * enough, and each keeps filling its own.
+     */
+    @Test public void insertersSpread() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 2, null, null);
+        hf.getFreeSpaceMap().getFile().deleteOnExit();
+        BufferPool bp = Database.getBufferPool();
+        for (int i = 0; i < 2; i++) {
+            HeapPageId pid = new HeapPageId(hf.getId(), i);
+            bp.deleteTuple(tid, ((HeapPage) bp.getPage(tid, pid, Permissions.READ_WRITE)).iterator().next());
+            bp.deleteTuple(tid, ((HeapPage) bp.getPage(tid, pid, Permissions.READ_WRITE)).iterator().next());
+        }
+        bp.transactionComplete(tid);
+
+        TransactionId a = new TransactionId();
+        TransactionId b = new TransactionId();
+        Tuple ta = Utility.getHeapTuple(1, 2);
+        Tuple tb = Utility.getHeapTuple(2, 2);
+        bp.insertTuple(a, hf.getId(), ta);
+        bp.insertTuple(b, hf.getId(), tb);
+        assertFalse(ta.getRecordId().getPageId().equals(tb.getRecordId().getPageId()));
+
+        Tuple again = Utility.getHeapTuple(3, 2);
+        bp.insertTuple(a, hf.getId(), again);
+        assertEquals(ta.getRecordId().getPageId(), again.getRecordId().getPageId());
+        bp.transactionComplete(a);
+        bp.transactionComplete(b);
+    }
+
+    /**
+     * A file that runs out of pages grows by a whole extent at once, while
+     * numPages() counts only the pages in use, and scans see each new page.
+     */
+    @Test public void growsByExtent() throws Exception {
+        empty.getFreeSpaceMap().getFile().deleteOnExit();
+        BufferPool bp = Database.getBufferPool();
+        long extent = (long) HeapFile.EXTENT_PAGES * BufferPool.getPageSize();
+        long length = empty.getFile().length();
+        for (int i = 0; i < 505; i++) {
+            bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(2, empty.numPages());
+        assertEquals(length + extent, empty.getFile().length());
+
+        // a scan opened now still reaches the page added after it
+        DbFileIterator it = empty.iterator(tid);
+        it.open();
+
+        for (int i = 505; i < 504 * 3; i++) {
+            bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(3, empty.numPages());
+        assertEquals(length + extent, empty.getFile().length());
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        assertEquals(504 * 3, count);
+    }
+
+    /**
+     * Closing a file gives back the unused pages of its last extent, so that
+     * the file opened again counts only the pages that were in use.
+     */
+    @Test public void closeTrimsExtent() throws Exception {
+        empty.getFreeSpaceMap().getFile().deleteOnExit();
+        BufferPool bp = Database.getBufferPool();
+        for (int i = 0; i < 505; i++) {
+            bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        }
+        bp.transactionComplete(tid);
+        tid = new TransactionId();
+        assertEquals(2, empty.numPages());
+        assertTrue(empty.getFile().length() > 2L * BufferPool.getPageSize());
+
+        empty.close();
+        assertEquals(2L * BufferPool.getPageSize(), empty.getFile().length());
+        HeapFile reopened = new HeapFile(empty.getFile(), empty.getTupleDesc());
+        Database.getCatalog().addTable(reopened, SystemTestUtil.getUUID());
+        assertEquals(2, reopened.numPages());
+        DbFileIterator it = reopened.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        assertEquals(505, count);
+
+        // the file grows by an extent again
+        for (int i = 0; i < 504; i++) {
+            bp.insertTuple(tid, reopened.getId(), Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(3, reopened.numPages());
+        assertEquals(2L * BufferPool.getPageSize()
+                + (long) HeapFile.EXTENT_PAGES * BufferPool.getPageSize(), reopened.getFile().length());
+    }
+
     /**
      * JUnit suite target
      */
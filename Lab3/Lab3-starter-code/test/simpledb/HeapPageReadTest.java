@@ -99,6 +99,52 @@ public class HeapPageReadTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * An open iterator goes on returning the tuples the page held when it was
+     * opened, after the page changes.
+     */
+    @Test public void testIteratorAfterChange() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        Iterator<Tuple> it = page.iterator();
+        Tuple first = it.next();
+        page.deleteTuple(first);
+        for (Iterator<Tuple> rest = page.iterator(); rest.hasNext();)
+            page.deleteTuple(rest.next());
+        assertFalse(page.iterator().hasNext());
+
+        int row = 1;
+        while (it.hasNext()) {
+            Tuple tup = it.next();
+            assertEquals(EXAMPLE_VALUES[row][0], ((IntField) tup.getField(0)).getValue());
+            assertEquals(new RecordId(pid, row), tup.getRecordId());
+            row++;
+        }
+        assertEquals(EXAMPLE_VALUES.length, row);
+    }
+
+    /**
+     * String fields are read back as they were written.
+     */
+    @Test public void testStringFields() throws Exception {
+        TupleDesc td = new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE });
+        Database.getCatalog().addTable(new SkeletonFile(-2, td), SystemTestUtil.getUUID());
+        HeapPageId spid = new HeapPageId(-2, 0);
+        HeapPage page = new HeapPage(spid, HeapPage.createEmptyPageData());
+        for (int i = 0; i < 3; i++) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new StringField(i == 0 ? "" : "value " + i, Type.STRING_LEN));
+            t.setField(1, new IntField(i));
+            page.insertTuple(t);
+        }
+        int i = 0;
+        for (Iterator<Tuple> it = new HeapPage(spid, page.getPageData()).iterator(); it.hasNext(); i++) {
+            Tuple t = it.next();
+            assertEquals(i == 0 ? "" : "value " + i, ((StringField) t.getField(0)).getValue());
+            assertEquals(i, ((IntField) t.getField(1)).getValue());
+        }
+        assertEquals(3, i);
+    }
+
     /**
      * Unit test for HeapPage.getNumEmptySlots()
      */
@@ -0,0 +1,61 @@
+package simpledb;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures how long a blocked lock request takes to be granted once the
+ * lock is released. As in LockingTest, one transaction holds a write lock
+ * on a page while another thread asks for it and blocks; the holder then
+ * commits, and the time from the commit to the waiter's getPage() returning
+ * is recorded.
+ * <p>
+ * Run with: ant runbench -Dbench=LockHandoffBenchmark [-Dargs="rounds"]
+ */
+public class LockHandoffBenchmark {
+
+    private static final int DEFAULT_ROUNDS = 200;
+    /** Time given to the waiter to block before the holder commits, in ms. */
+    private static final int BLOCK_MILLIS = 2;
+
+    public static void main(String[] args) throws Exception {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ROUNDS;
+        HeapFile f = Utility.createEmptyHeapFile(java.io.File.createTempFile("handoff", ".dat").getAbsolutePath(), 2);
+        TransactionId setup = new TransactionId();
+        f.insertTuple(setup, Utility.getHeapTuple(0, 2));
+        final BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        final PageId pid = new HeapPageId(f.getId(), 0);
+
+        long[] micros = new long[rounds];
+        for (int i = 0; i < rounds; i++) {
+            TransactionId holder = new TransactionId();
+            final TransactionId waiter = new TransactionId();
+            bp.getPage(holder, pid, Permissions.READ_WRITE);
+            final long[] acquiredAt = new long[1];
+            final CountDownLatch started = new CountDownLatch(1);
+            Thread t = new Thread(() -> {
+                try {
+                    started.countDown();
+                    bp.getPage(waiter, pid, Permissions.READ_WRITE);
+                    acquiredAt[0] = System.nanoTime();
+                    bp.transactionComplete(waiter);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            t.start();
+            started.await();
+            Thread.sleep(BLOCK_MILLIS);
+            long releasedAt = System.nanoTime();
+            bp.transactionComplete(holder);
+            t.join();
+            micros[i] = (acquiredAt[0] - releasedAt) / 1000;
+        }
+        Arrays.sort(micros);
+        System.out.println("rounds=" + rounds);
+        System.out.println("handoff latency us: p50=" + micros[rounds / 2]
+                + " p90=" + micros[rounds * 9 / 10]
+                + " p99=" + micros[Math.min(rounds - 1, rounds * 99 / 100)]
+                + " max=" + micros[rounds - 1]);
+    }
+}
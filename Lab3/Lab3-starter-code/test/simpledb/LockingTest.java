@@ -3,6 +3,8 @@ package simpledb;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertNull;
 import junit.framework.JUnit4TestAdapter;
 
@@ -186,6 +188,100 @@ public class LockingTest extends TestUtil.CreateHeapFile {
     bp.getPage(tid1, p1, Permissions.READ_WRITE);
   }
 
+  /**
+   * Unit test for BufferPool.getPage() assuming locking.
+   * A read lock requested behind a waiting write lock waits its turn, and
+   * releasing the read lock hands the page to the writer.
+   */
+  @Test public void waitersGrantedInOrder() throws Exception {
+    TransactionId tid3 = new TransactionId();
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    TestUtil.LockGrabber writer = new TestUtil.LockGrabber(tid2, p0, Permissions.READ_WRITE);
+    writer.start();
+    Thread.sleep(TIMEOUT);
+    assertFalse(writer.acquired());
+    grabLock(tid3, p0, Permissions.READ_ONLY, false);
+
+    bp.releasePage(tid1, p0);
+    writer.join(TIMEOUT * 10);
+    assertTrue(writer.acquired());
+    assertNull(writer.getError());
+  }
+
+  /**
+   * Unit test for BufferPool.getPage() assuming locking.
+   * A waiter that gives up does not hold up the requests behind it.
+   */
+  @Test public void stoppedWaiterLeavesQueue() throws Exception {
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    TestUtil.LockGrabber t = new TestUtil.LockGrabber(tid2, p0, Permissions.READ_WRITE);
+    t.start();
+    Thread.sleep(TIMEOUT);
+    assertFalse(t.acquired());
+    t.stop();
+    t.join();
+    bp.releasePage(tid1, p0);
+    grabLock(new TransactionId(), p0, Permissions.READ_WRITE, true);
+  }
+
+  /**
+   * Unit test for BufferPool.getPage() assuming locking.
+   * Past the escalation threshold, a reader's page locks are replaced by a
+   * shared lock on the whole table, which still excludes writers.
+   */
+  @Test public void escalateToTableLock() throws Exception {
+    bp.setLockEscalationThreshold(1);
+    LockManager lm = bp.getLockManager();
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    assertEquals(LockManager.Mode.IS, lm.getTableMode(tid1, empty.getId()));
+    bp.getPage(tid1, p1, Permissions.READ_ONLY);
+    assertEquals(LockManager.Mode.S, lm.getTableMode(tid1, empty.getId()));
+    assertFalse(lm.holdsPageLock(tid1, p0));
+    assertTrue(bp.holdsLock(tid1, p2));
+
+    grabLock(tid2, p2, Permissions.READ_ONLY, true);
+    grabLock(new TransactionId(), p2, Permissions.READ_WRITE, false);
+
+    bp.transactionComplete(tid1);
+    assertFalse(bp.holdsLock(tid1, p0));
+    grabLock(new TransactionId(), p0, Permissions.READ_WRITE, true);
+  }
+
+  /**
+   * Unit test for BufferPool.getPage() assuming locking.
+   * Escalation never waits: while another transaction writes the table, a
+   * reader keeps its page locks.
+   */
+  @Test public void escalationSkippedOnConflict() throws Exception {
+    bp.setLockEscalationThreshold(1);
+    LockManager lm = bp.getLockManager();
+    bp.getPage(tid2, p2, Permissions.READ_WRITE);
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    bp.getPage(tid1, p1, Permissions.READ_ONLY);
+    assertEquals(LockManager.Mode.IS, lm.getTableMode(tid1, empty.getId()));
+    assertTrue(lm.holdsPageLock(tid1, p1));
+    assertFalse(bp.holdsLock(tid1, p2));
+  }
+
+  /**
+   * Unit test for BufferPool.getPage() assuming locking.
+   * A writer's table lock escalates to exclusive, and abort still discards
+   * the pages it wrote before escalating.
+   */
+  @Test public void escalatedWriterKeepsWritePages() throws Exception {
+    bp.setLockEscalationThreshold(1);
+    LockManager lm = bp.getLockManager();
+    bp.getPage(tid1, p0, Permissions.READ_WRITE).markDirty(true, tid1);
+    bp.getPage(tid1, p1, Permissions.READ_ONLY);
+    assertEquals(LockManager.Mode.X, lm.getTableMode(tid1, empty.getId()));
+    assertEquals(1, lm.getXactWritePages(tid1).size());
+    grabLock(tid2, p2, Permissions.READ_ONLY, false);
+
+    bp.transactionComplete(tid1, false);
+    assertFalse(bp.holdsLock(tid1, p0));
+    assertNull(bp.getPage(tid2, p0, Permissions.READ_ONLY).isDirty());
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,116 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class OffHeapBufferPoolTest extends SimpleDbTestBase {
+    private static final int POOL_PAGES = 10;
+    private static final int TABLE_PAGES = 25;
+
+    private ArrayList<ArrayList<Integer>> tuples;
+    private HeapFile hf;
+    private BufferPool bp;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        tuples = new ArrayList<ArrayList<Integer>>();
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * TABLE_PAGES, null, tuples);
+        bp = Database.resetBufferPool((long) POOL_PAGES * BufferPool.getPageSize(), true);
+    }
+
+    /**
+     * The pool is sized in bytes.
+     */
+    @Test public void sizedInBytes() {
+        assertTrue(bp.isOffHeap());
+        assertEquals(POOL_PAGES, bp.MAX_PAGES);
+        assertEquals((long) POOL_PAGES * BufferPool.getPageSize(), bp.getCapacityBytes());
+        assertEquals(BufferPool.DEFAULT_PAGES, BufferPool.pagesFor(BufferPool.DEFAULT_POOL_BYTES));
+    }
+
+    /**
+     * A scan through an off-heap pool smaller than the table returns every tuple.
+     */
+    @Test public void scan() throws Exception {
+        TransactionId tid = new TransactionId();
+        SystemTestUtil.matchTuples(hf, tid, tuples);
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * A page held by a caller stays readable after its frame is reused.
+     */
+    @Test public void pageSurvivesEviction() throws Exception {
+        TransactionId tid = new TransactionId();
+        HeapPage first = (HeapPage) bp.getPage(tid, new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY);
+        byte[] before = first.getPageData();
+        for (int i = 1; i < TABLE_PAGES; i++) {
+            bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        }
+        assertArrayEquals(before, first.getPageData());
+        Iterator<Tuple> it = first.iterator();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        assertEquals(504, count);
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Inserts and deletes through an off-heap pool are written back to disk.
+     */
+    @Test public void insertDelete() throws Exception {
+        TransactionId tid = new TransactionId();
+        Tuple t = Utility.getHeapTuple(new int[] { 7, 7 });
+        bp.insertTuple(tid, hf.getId(), t);
+        bp.transactionComplete(tid);
+        ArrayList<Integer> row = new ArrayList<Integer>();
+        row.add(7);
+        row.add(7);
+        tuples.add(row);
+
+        Database.resetBufferPool((long) POOL_PAGES * BufferPool.getPageSize(), true);
+        tid = new TransactionId();
+        SystemTestUtil.matchTuples(hf, tid, tuples);
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        Tuple inserted = null;
+        while (inserted == null && it.hasNext()) {
+            Tuple next = it.next();
+            RecordId rid = next.getRecordId();
+            if (rid.getPageId().getPageNumber() == t.getRecordId().getPageId().getPageNumber()
+                    && rid.getTupleNumber() == t.getRecordId().getTupleNumber()) {
+                inserted = next;
+            }
+        }
+        it.close();
+        assertNotNull(inserted);
+        Database.getBufferPool().deleteTuple(tid, inserted);
+        Database.getBufferPool().transactionComplete(tid);
+        tuples.remove(tuples.size() - 1);
+
+        Database.resetBufferPool((long) POOL_PAGES * BufferPool.getPageSize(), true);
+        tid = new TransactionId();
+        SystemTestUtil.matchTuples(hf, tid, tuples);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(OffHeapBufferPoolTest.class);
+    }
+}
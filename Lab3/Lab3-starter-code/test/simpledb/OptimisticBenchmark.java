@@ -0,0 +1,99 @@
+package simpledb;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Compares two-phase locking with optimistic concurrency control on tiny
+ * read-modify-write transactions. Each transaction reads a few random pages
+ * of a table and rewrites one of them, then commits; an aborted transaction
+ * is retried under a new TransactionId. The table is large under low
+ * contention and a handful of pages under high contention. Commits per
+ * second and aborts per commit are reported for each.
+ * <p>
+ * Run with: ant runbench -Dbench=OptimisticBenchmark [-Dargs="threads"]
+ */
+public class OptimisticBenchmark {
+
+    private static final int DEFAULT_THREADS = 8;
+    private static final int LOW_CONTENTION_PAGES = 4096;
+    private static final int HIGH_CONTENTION_PAGES = 8;
+    private static final int PAGES_PER_XACT = 3;
+    private static final long RUN_MILLIS = 3000;
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_THREADS;
+        System.out.println("threads=" + threads + " pages/xact=" + PAGES_PER_XACT);
+        System.out.println("pages\tlevel\tcommits/s\taborts/commit");
+        for (int pages : new int[] { LOW_CONTENTION_PAGES, HIGH_CONTENTION_PAGES }) {
+            // a file of empty pages; page contents do not matter here
+            File file = File.createTempFile("occbench", ".dat");
+            file.deleteOnExit();
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.setLength((long) pages * BufferPool.getPageSize());
+            raf.close();
+            HeapFile f = new HeapFile(file, Utility.getTupleDesc(2));
+            Database.getCatalog().addTable(f, SystemTestUtil.getUUID());
+
+            for (IsolationLevel level : new IsolationLevel[] { IsolationLevel.SERIALIZABLE,
+                    IsolationLevel.OPTIMISTIC }) {
+                BufferPool bp = Database.resetBufferPool(pages);
+                bp.setReadAheadWindow(0);
+                bp.setIsolationLevel(level);
+                long[] result = run(bp, f.getId(), pages, threads);
+                System.out.println(pages + "\t" + level + "\t" + result[0] * 1000 / RUN_MILLIS
+                        + "\t" + String.format("%.2f", (double) result[1] / Math.max(1, result[0])));
+            }
+        }
+    }
+
+    /** Returns the number of commits and of aborts. */
+    private static long[] run(final BufferPool bp, final int tableId, final int pages, int threads)
+            throws InterruptedException {
+        final AtomicLong commits = new AtomicLong();
+        final AtomicLong aborts = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final long[] deadline = new long[1];
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final long seed = t;
+            workers[t] = new Thread(() -> {
+                Random r = new Random(seed);
+                try {
+                    start.await();
+                    while (System.currentTimeMillis() < deadline[0]) {
+                        TransactionId tid = new TransactionId();
+                        try {
+                            HeapPageId written = null;
+                            for (int i = 0; i < PAGES_PER_XACT; i++) {
+                                written = new HeapPageId(tableId, r.nextInt(pages));
+                                bp.getPage(tid, written, Permissions.READ_ONLY);
+                            }
+                            bp.getPage(tid, written, Permissions.READ_WRITE).markDirty(true, tid);
+                            bp.validate(tid);
+                            bp.transactionComplete(tid, true);
+                            commits.incrementAndGet();
+                        } catch (TransactionAbortedException e) {
+                            // getPage or validate has aborted tid already
+                            aborts.incrementAndGet();
+                        }
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            workers[t].start();
+        }
+        deadline[0] = System.currentTimeMillis() + RUN_MILLIS;
+        start.countDown();
+        for (Thread w : workers) {
+            w.join();
+        }
+        return new long[] { commits.get(), aborts.get() };
+    }
+}
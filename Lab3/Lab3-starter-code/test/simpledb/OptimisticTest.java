@@ -0,0 +1,133 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class OptimisticTest extends SimpleDbTestBase {
+    private HeapFile hf;
+    private BufferPool bp;
+    private HeapPageId p0;
+    private HeapPageId p1;
+
+    @Before public void setUp() throws Exception {
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * 2, null, null);
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        bp.setIsolationLevel(IsolationLevel.OPTIMISTIC);
+        p0 = new HeapPageId(hf.getId(), 0);
+        p1 = new HeapPageId(hf.getId(), 1);
+    }
+
+    @After public void tearDown() {
+        bp.setIsolationLevel(IsolationLevel.SERIALIZABLE);
+    }
+
+    private int count(TransactionId tid) throws Exception {
+        int n = 0;
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    /** Deletes one tuple of the page. */
+    private void deleteOne(TransactionId tid, HeapPageId pid) throws Exception {
+        HeapPage page = (HeapPage) bp.getPage(tid, pid, Permissions.READ_ONLY);
+        bp.deleteTuple(tid, page.iterator().next());
+    }
+
+    /**
+     * Writes go to a private copy that only the writer sees, and no lock is
+     * taken, until the writer commits.
+     */
+    @Test public void writesArePrivateUntilCommit() throws Exception {
+        TransactionId writer = new TransactionId();
+        deleteOne(writer, p0);
+        assertEquals(504 * 2 - 1, count(writer));
+        assertFalse(bp.holdsLock(writer, p0));
+
+        TransactionId reader = new TransactionId();
+        assertEquals(504 * 2, count(reader));
+
+        bp.validate(writer);
+        bp.transactionComplete(writer);
+        TransactionId later = new TransactionId();
+        assertEquals(504 * 2 - 1, count(later));
+        bp.transactionComplete(later);
+    }
+
+    /**
+     * A transaction that read a page another transaction then changed fails
+     * validation; one whose reads are untouched commits.
+     */
+    @Test public void staleReadFailsValidation() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        TransactionId t3 = new TransactionId();
+        deleteOne(t1, p0);
+        deleteOne(t2, p0);
+        deleteOne(t3, p1);
+
+        bp.validate(t1);
+        bp.transactionComplete(t1);
+        try {
+            bp.validate(t2);
+            fail("expected t2 to fail validation");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        bp.validate(t3);
+        bp.transactionComplete(t3);
+
+        TransactionId tid = new TransactionId();
+        assertEquals(504 * 2 - 2, count(tid));
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Committing without validate() still validates.
+     */
+    @Test(expected=IOException.class)
+    public void completeValidates() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        deleteOne(t1, p0);
+        deleteOne(t2, p0);
+        bp.transactionComplete(t1);
+        bp.transactionComplete(t2);
+    }
+
+    /**
+     * Pages a transaction fetched for writing but left unchanged are not
+     * installed, so they do not fail other transactions.
+     */
+    @Test public void unchangedPagesNotInstalled() throws Exception {
+        TransactionId reader = new TransactionId();
+        bp.getPage(reader, p0, Permissions.READ_ONLY);
+
+        TransactionId t = new TransactionId();
+        bp.getPage(t, p0, Permissions.READ_WRITE);
+        bp.validate(t);
+        bp.transactionComplete(t);
+
+        bp.validate(reader);
+        bp.transactionComplete(reader);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(OptimisticTest.class);
+    }
+}
@@ -0,0 +1,95 @@
+package simpledb;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Measures buffer pool hit throughput as the number of reader threads grows.
+ * Every page of the table fits in the pool, so after warm-up each lookup is a
+ * hit. Two numbers are reported per thread count: lookups straight against
+ * the PageTable, and full BufferPool.getPage() calls, which also go through
+ * the lock manager.
+ * <p>
+ * Run with: ant runbench -Dbench=PageTableBenchmark
+ */
+public class PageTableBenchmark {
+
+    private static final int TABLE_PAGES = 256;
+    private static final long RUN_MILLIS = 2000;
+
+    private interface Lookup {
+        void lookup(TransactionId tid, PageId pid) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rowsPerPage = BufferPool.getPageSize() * 8 / (Utility.getTupleDesc(2).getSize() * 8 + 1);
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, TABLE_PAGES * rowsPerPage, null, null);
+        final int tableId = f.getId();
+        final int numPages = f.numPages();
+        final BufferPool bp = Database.resetBufferPool(numPages);
+        final PageTable table = (PageTable) field(bp, "page_table");
+
+        // warm the pool so that every lookup below is a hit
+        TransactionId warm = new TransactionId();
+        for (int i = 0; i < numPages; i++) {
+            bp.getPage(warm, new HeapPageId(tableId, i), Permissions.READ_ONLY);
+        }
+        bp.transactionComplete(warm);
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.println("cores=" + cores + " pages=" + numPages
+                + " partitions=" + table.numPartitions());
+        System.out.println("threads\tpagetable ops/s\tgetPage ops/s");
+        for (int threads = 1; threads <= Math.max(2 * cores, 8); threads *= 2) {
+            long direct = run(threads, tableId, numPages, (tid, pid) -> table.get(pid));
+            long full = run(threads, tableId, numPages,
+                    (tid, pid) -> bp.getPage(tid, pid, Permissions.READ_ONLY));
+            System.out.println(threads + "\t" + direct + "\t" + full);
+        }
+    }
+
+    private static long run(int threads, final int tableId, final int numPages, final Lookup op)
+            throws InterruptedException {
+        final AtomicLong ops = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final long[] deadline = new long[1];
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final long seed = t;
+            workers[t] = new Thread(() -> {
+                Random r = new Random(seed);
+                TransactionId tid = new TransactionId();
+                long n = 0;
+                try {
+                    start.await();
+                    while (System.currentTimeMillis() < deadline[0]) {
+                        for (int i = 0; i < 1000; i++) {
+                            op.lookup(tid, new HeapPageId(tableId, r.nextInt(numPages)));
+                        }
+                        n += 1000;
+                    }
+                    Database.getBufferPool().transactionComplete(tid);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+                ops.addAndGet(n);
+            });
+            workers[t].start();
+        }
+        deadline[0] = System.currentTimeMillis() + RUN_MILLIS;
+        start.countDown();
+        for (Thread w : workers) {
+            w.join();
+        }
+        return ops.get() * 1000 / RUN_MILLIS;
+    }
+
+    private static Object field(Object o, String name) throws Exception {
+        java.lang.reflect.Field f = o.getClass().getDeclaredField(name);
+        f.setAccessible(true);
+        return f.get(o);
+    }
+}
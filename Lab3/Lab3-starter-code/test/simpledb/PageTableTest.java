@@ -0,0 +1,204 @@
+package simpledb;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class PageTableTest extends SimpleDbTestBase {
+    private static final int TABLE_ID = -1;
+    private static final int CAPACITY = 32;
+    private static final int NUM_PAGE_IDS = 4 * CAPACITY;
+    private static final int THREADS = 4;
+    private static final int OPS_PER_THREAD = 5000;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void addTable() {
+        Database.getCatalog().addTable(new SkeletonFile(TABLE_ID, Utility.getTupleDesc(2)),
+                SystemTestUtil.getUUID());
+    }
+
+    /** Returns a page whose single tuple holds the page number. */
+    private static HeapPage page(int n) throws Exception {
+        HeapPage page = new HeapPage(new HeapPageId(TABLE_ID, n), HeapPage.createEmptyPageData());
+        page.insertTuple(Utility.getHeapTuple(n, 2));
+        return page;
+    }
+
+    private static int pageNumberIn(HeapPage page) {
+        Iterator<Tuple> it = page.iterator();
+        assertTrue(it.hasNext());
+        return ((IntField) it.next().getField(0)).getValue();
+    }
+
+    /**
+     * Threads that cache, look up and remove more pages than the table holds
+     * race each other for free frames and for eviction victims. The table
+     * never holds more pages than it has frames, every lookup returns the
+     * page cached under that id, and no page is corrupted by being copied
+     * into a frame that another page still lives in.
+     */
+    private void churn(final PageTable table) throws Exception {
+        final Map<HeapPage, Integer> created = new ConcurrentHashMap<HeapPage, Integer>();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final long seed = t;
+            workers[t] = new Thread(() -> {
+                Random r = new Random(seed);
+                try {
+                    start.await();
+                    for (int i = 0; i < OPS_PER_THREAD; i++) {
+                        int n = r.nextInt(NUM_PAGE_IDS);
+                        PageId pid = new HeapPageId(TABLE_ID, n);
+                        if (r.nextInt(10) == 0) {
+                            table.remove(pid);
+                            continue;
+                        }
+                        Page cached = table.get(pid);
+                        if (cached == null) {
+                            HeapPage p = page(n);
+                            created.put(p, n);
+                            cached = table.putIfAbsent(pid, p);
+                        }
+                        assertEquals(pid, cached.getId());
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            workers[t].start();
+        }
+        start.countDown();
+        for (Thread w : workers) {
+            w.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+
+        // size() is only exact once the table is quiet, since it counts one
+        // partition at a time
+        assertTrue(table.size() <= CAPACITY);
+        assertEquals(table.size(), new HashSet<PageId>(table.pageIds()).size());
+        for (Map.Entry<HeapPage, Integer> e : created.entrySet()) {
+            assertEquals(e.getValue().intValue(), pageNumberIn(e.getKey()));
+        }
+        for (PageId pid : table.pageIds()) {
+            assertEquals(pid.getPageNumber(), pageNumberIn((HeapPage) table.peek(pid)));
+        }
+
+        FrameArena arena = table.getArena();
+        if (arena != null) {
+            // each frame backs at most one cached page, and evicted pages back none
+            Set<HeapPage> cached = new HashSet<HeapPage>();
+            for (PageId pid : table.pageIds()) {
+                cached.add((HeapPage) table.peek(pid));
+            }
+            for (int slot = 0; slot < arena.numFrames(); slot++) {
+                int views = 0;
+                for (HeapPage p : created.keySet()) {
+                    if (p.isViewOf(arena.frame(slot))) {
+                        assertTrue(cached.contains(p));
+                        views++;
+                    }
+                }
+                assertTrue(views <= 1);
+            }
+        }
+    }
+
+    /**
+     * Contended caching with pages kept on the heap.
+     */
+    @Test public void concurrentChurn() throws Exception {
+        churn(new PageTable(CAPACITY, 4, new ClockEvictionPolicy()));
+        churn(new PageTable(CAPACITY, 4, new LruKEvictionPolicy()));
+        churn(new PageTable(CAPACITY, 4, new TwoQueueEvictionPolicy()));
+    }
+
+    /**
+     * Contended caching with pages moved into and out of arena frames.
+     */
+    @Test public void concurrentChurnOffHeap() throws Exception {
+        churn(new PageTable(CAPACITY, 4, new ClockEvictionPolicy(),
+                new FrameArena(CAPACITY, BufferPool.getPageSize())));
+        churn(new PageTable(CAPACITY, 4, new LruKEvictionPolicy(),
+                new FrameArena(CAPACITY, BufferPool.getPageSize())));
+    }
+
+    /**
+     * Threads racing to fill a table must evict clean pages only, and a table
+     * of nothing but dirty pages refuses new ones.
+     */
+    @Test public void dirtyPagesAreNotEvicted() throws Exception {
+        final PageTable table = new PageTable(CAPACITY, 4, new ClockEvictionPolicy(),
+                new FrameArena(CAPACITY, BufferPool.getPageSize()));
+        TransactionId tid = new TransactionId();
+        List<HeapPage> dirty = new ArrayList<HeapPage>();
+        for (int n = 0; n < CAPACITY / 2; n++) {
+            HeapPage p = page(n);
+            p.markDirty(true, tid);
+            table.putIfAbsent(p.getId(), p);
+            dirty.add(p);
+        }
+
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] workers = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final int first = NUM_PAGE_IDS + t * OPS_PER_THREAD;
+            workers[t] = new Thread(() -> {
+                try {
+                    for (int n = first; n < first + OPS_PER_THREAD / 10; n++) {
+                        HeapPage p = page(n);
+                        table.putIfAbsent(p.getId(), p);
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread w : workers) {
+            w.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+
+        for (HeapPage p : dirty) {
+            assertSame(p, table.peek(p.getId()));
+            assertEquals(p.getId().getPageNumber(), pageNumberIn(p));
+        }
+        assertEquals(CAPACITY, table.size());
+
+        for (PageId pid : table.pageIds()) {
+            table.peek(pid).markDirty(true, tid);
+        }
+        try {
+            table.putIfAbsent(new HeapPageId(TABLE_ID, NUM_PAGE_IDS - 1), page(NUM_PAGE_IDS - 1));
+            fail("a table of dirty pages accepted another page");
+        } catch (DbException expected) {
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageTableTest.class);
+    }
+}
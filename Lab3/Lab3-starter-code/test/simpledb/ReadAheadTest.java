@@ -0,0 +1,116 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class ReadAheadTest extends SimpleDbTestBase {
+    private static final int PAGES = 20;
+
+    /** Counts the number of readPage operations. */
+    private static class InstrumentedHeapFile extends HeapFile {
+        volatile int readCount = 0;
+
+        InstrumentedHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public synchronized Page readPage(PageId pid) {
+            readCount += 1;
+            return super.readPage(pid);
+        }
+    }
+
+    private InstrumentedHeapFile table;
+    private ArrayList<ArrayList<Integer>> tuples;
+    private BufferPool bp;
+
+    @Before public void setUp() throws Exception {
+        tuples = new ArrayList<ArrayList<Integer>>();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 504 * PAGES, 1000, null, tuples);
+        table = new InstrumentedHeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    private void read(TransactionId tid, int page) throws Exception {
+        bp.getPage(tid, new HeapPageId(table.getId(), page), Permissions.READ_ONLY);
+    }
+
+    private void awaitPrefetches(long n) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (bp.getPrefetchCount() < n && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(n, bp.getPrefetchCount());
+    }
+
+    /**
+     * Two sequential reads start a read-ahead of the next window pages,
+     * which later misses then use.
+     */
+    @Test public void sequentialReadsArePrefetched() throws Exception {
+        TransactionId tid = new TransactionId();
+        int window = bp.getReadAheadWindow();
+        read(tid, 0);
+        read(tid, 1);
+        awaitPrefetches(window);
+        for (int i = 2; i < 2 + window; i++) {
+            read(tid, i);
+        }
+        assertEquals(window, bp.getPrefetchHitCount());
+        assertEquals(0, bp.getPrefetchWasteCount());
+        assertEquals(2 + window, table.readCount);
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * A full scan reads every page exactly once, whoever reads it.
+     */
+    @Test public void scanReadsEachPageOnce() throws Exception {
+        SystemTestUtil.matchTuples(table, tuples);
+        assertEquals(PAGES, table.readCount);
+    }
+
+    /**
+     * A window of zero disables read-ahead.
+     */
+    @Test public void disabled() throws Exception {
+        bp.setReadAheadWindow(0);
+        SystemTestUtil.matchTuples(table, tuples);
+        assertEquals(0, bp.getPrefetchCount());
+        assertEquals(PAGES, table.readCount);
+    }
+
+    /**
+     * A prefetched page is not used once a page of its file has been written
+     * or discarded, since it may be stale.
+     */
+    @Test public void writeInvalidatesPrefetch() throws Exception {
+        TransactionId tid = new TransactionId();
+        read(tid, 0);
+        read(tid, 1);
+        awaitPrefetches(bp.getReadAheadWindow());
+        bp.discardPage(new HeapPageId(table.getId(), 1));
+        read(tid, 2);
+        assertEquals(0, bp.getPrefetchHitCount());
+        assertTrue(bp.getPrefetchWasteCount() > 0);
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReadAheadTest.class);
+    }
+}
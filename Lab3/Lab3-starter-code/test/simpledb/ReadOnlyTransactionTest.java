@@ -0,0 +1,171 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class ReadOnlyTransactionTest extends SimpleDbTestBase {
+    private HeapFile hf;
+    private BufferPool bp;
+    private HeapPageId p0;
+
+    @Before public void setUp() throws Exception {
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * 2, null, null);
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        p0 = new HeapPageId(hf.getId(), 0);
+    }
+
+    private int count(TransactionId tid) throws Exception {
+        return count(hf, tid);
+    }
+
+    private int count(DbFile file, TransactionId tid) throws Exception {
+        int n = 0;
+        DbFileIterator it = file.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    /** Deletes one tuple of page 0. */
+    private void deleteOne(TransactionId tid) throws Exception {
+        HeapPage page = (HeapPage) bp.getPage(tid, p0, Permissions.READ_WRITE);
+        Tuple t = page.iterator().next();
+        bp.deleteTuple(tid, t);
+    }
+
+    /**
+     * A read-only transaction neither waits for a writer's lock nor sees its
+     * uncommitted changes, and takes no lock itself.
+     */
+    @Test public void readerIgnoresWriter() throws Exception {
+        TransactionId writer = new TransactionId();
+        deleteOne(writer);
+
+        Transaction reader = new Transaction(true);
+        reader.start();
+        assertEquals(504 * 2, count(reader.getId()));
+        assertFalse(bp.holdsLock(reader.getId(), p0));
+        reader.commit();
+
+        bp.transactionComplete(writer);
+    }
+
+    /**
+     * A commit is seen by read-only transactions started after it, not by
+     * those started before.
+     */
+    @Test public void snapshotIsStable() throws Exception {
+        Transaction before = new Transaction(true);
+        before.start();
+
+        TransactionId writer = new TransactionId();
+        deleteOne(writer);
+        bp.transactionComplete(writer);
+
+        Transaction after = new Transaction(true);
+        after.start();
+        assertEquals(504 * 2 - 1, count(after.getId()));
+        assertEquals(504 * 2, count(before.getId()));
+        before.commit();
+        after.commit();
+
+        // nothing is left for snapshots that are no longer open
+        assertEquals(0, bp.getVersionStore().size());
+    }
+
+    /**
+     * Writers save no page images while no read-only transaction is open,
+     * yet one that starts before a writer commits does not see the commit.
+     */
+    @Test public void imagesSavedOnlyForSnapshots() throws Exception {
+        TransactionId writer = new TransactionId();
+        deleteOne(writer);
+        HeapPageId p1 = new HeapPageId(hf.getId(), 1);
+        bp.getPage(writer, p1, Permissions.READ_WRITE);
+        bp.releasePage(writer, p1);
+        assertEquals(0, bp.getVersionStore().size());
+
+        Transaction reader = new Transaction(true);
+        reader.start();
+        assertEquals(504 * 2, count(reader.getId()));
+        bp.transactionComplete(writer);
+        assertEquals(504 * 2, count(reader.getId()));
+        reader.commit();
+        assertEquals(0, bp.getVersionStore().size());
+    }
+
+    /**
+     * A read-only transaction writes no log records.
+     */
+    @Test public void noLogRecords() throws Exception {
+        int records = Database.getLogFile().getTotalRecords();
+        Transaction t = new Transaction(true);
+        t.start();
+        assertEquals(504 * 2, count(t.getId()));
+        t.commit();
+        assertEquals(records, Database.getLogFile().getTotalRecords());
+    }
+
+    /**
+     * A read-only transaction may not write.
+     */
+    /**
+     * A read-only transaction reads the leaves of a B+ tree that locks keys
+     * as its writers left them, and puts back what its snapshot sees: it
+     * misses neither a delete nor an insert, committed or not, made after
+     * it started.
+     */
+    @Test public void btreeSnapshotIgnoresKeyWriters() throws Exception {
+        BTreeFile bf = BTreeUtility.createBTreeFile(2, 600, null, null, 0);
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        Transaction before = new Transaction(true);
+        before.start();
+
+        TransactionId deleter = new TransactionId();
+        DbFileIterator it = bf.iterator(deleter);
+        it.open();
+        Tuple first = it.next();
+        it.close();
+        bp.deleteTuple(deleter, first);
+        bp.transactionComplete(deleter);
+
+        TransactionId writer = new TransactionId();
+        bp.insertTuple(writer, bf.getId(), BTreeUtility.getBTreeTuple(1, 2));
+        bp.insertTuple(writer, bf.getId(), BTreeUtility.getBTreeTuple(2, 2));
+        assertEquals(600, count(bf, before.getId()));
+        bp.transactionComplete(writer);
+
+        Transaction after = new Transaction(true);
+        after.start();
+        assertEquals(601, count(bf, after.getId()));
+        assertEquals(600, count(bf, before.getId()));
+        before.commit();
+        after.commit();
+    }
+
+    @Test(expected=DbException.class)
+    public void writeRefused() throws Exception {
+        Transaction t = new Transaction(true);
+        t.start();
+        try {
+            bp.getPage(t.getId(), p0, Permissions.READ_WRITE);
+        } finally {
+            t.abort();
+        }
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReadOnlyTransactionTest.class);
+    }
+}
@@ -0,0 +1,130 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileWriter;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class SlottedHeapFileTest extends SimpleDbTestBase {
+
+    /**
+     * Writes a catalog with one table of the given format to a new directory
+     * and loads it, returning the table.
+     */
+    private static DbFile loadTable(String format) throws Exception {
+        File dir = File.createTempFile("slotted", "");
+        dir.delete();
+        dir.mkdir();
+        dir.deleteOnExit();
+        File schema = new File(dir, "catalog.txt");
+        schema.deleteOnExit();
+        FileWriter w = new FileWriter(schema);
+        w.write("t_" + format + " (id int, name string) " + format + "\n");
+        w.close();
+        Database.getCatalog().loadSchema(schema.getPath());
+        DbFile f = Database.getCatalog().getDatabaseFile(
+                Database.getCatalog().getTableId("t_" + format));
+        new File(dir, "t_" + format + ".dat").deleteOnExit();
+        new File(dir, "t_" + format + ".dat.fsm").deleteOnExit();
+        return f;
+    }
+
+    /** Inserts rows tuples with short strings into f and returns its page count. */
+    private static int fill(DbFile f, int rows) throws Exception {
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < rows; i++) {
+            Tuple t = new Tuple(f.getTupleDesc());
+            t.setField(0, new IntField(i));
+            t.setField(1, new StringField("name" + i, Type.STRING_LEN));
+            Database.getBufferPool().insertTuple(tid, f.getId(), t);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        return ((HeapFile) f).numPages();
+    }
+
+    /**
+     * A table declared slotted in the catalog is a SlottedHeapFile, and takes
+     * far fewer pages for short strings than a heap table.
+     */
+    @Test public void loadSchemaFormat() throws Exception {
+        DbFile heap = loadTable("heap");
+        DbFile slotted = loadTable("slotted");
+        assertFalse(heap instanceof SlottedHeapFile);
+        assertTrue(slotted instanceof SlottedHeapFile);
+
+        int rows = 1000;
+        int heapPages = fill(heap, rows);
+        int slottedPages = fill(slotted, rows);
+        assertTrue(slottedPages * 4 < heapPages);
+
+        // read back through the buffer pool and from disk
+        for (int pass = 0; pass < 2; pass++) {
+            TransactionId tid = new TransactionId();
+            DbFileIterator it = slotted.iterator(tid);
+            it.open();
+            boolean[] seen = new boolean[rows];
+            int count = 0;
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                int i = ((IntField) t.getField(0)).getValue();
+                assertEquals("name" + i, ((StringField) t.getField(1)).getValue());
+                assertFalse(seen[i]);
+                seen[i] = true;
+                count++;
+            }
+            it.close();
+            Database.getBufferPool().transactionComplete(tid);
+            assertEquals(rows, count);
+            Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        }
+    }
+
+    /**
+     * Deleted tuples are gone from the table, and their room is reused.
+     */
+    @Test public void deleteAndReuse() throws Exception {
+        DbFile slotted = loadTable("slotted");
+        int pages = fill(slotted, 1000);
+
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = slotted.iterator(tid);
+        it.open();
+        int deleted = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            if (((IntField) t.getField(0)).getValue() % 2 == 0) {
+                Database.getBufferPool().deleteTuple(tid, t);
+                deleted++;
+            }
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(500, deleted);
+
+        assertEquals(pages, fill(slotted, 500));
+        tid = new TransactionId();
+        it = slotted.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(1000, count);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SlottedHeapFileTest.class);
+    }
+}
@@ -0,0 +1,169 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class SlottedHeapPageTest extends SimpleDbTestBase {
+
+    private HeapPageId pid;
+    private TupleDesc td;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void addTable() throws Exception {
+        this.pid = new HeapPageId(-1, -1);
+        this.td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE });
+        Database.getCatalog().addTable(new SkeletonFile(-1, td), SystemTestUtil.getUUID());
+    }
+
+    private Tuple tuple(int i, String s) {
+        Tuple t = new Tuple(td);
+        t.setField(0, new IntField(i));
+        t.setField(1, new StringField(s, Type.STRING_LEN));
+        return t;
+    }
+
+    private static String string(int len, char c) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < len; i++)
+            sb.append(c);
+        return sb.toString();
+    }
+
+    private static ArrayList<Tuple> tuples(HeapPage page) {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (Iterator<Tuple> it = page.iterator(); it.hasNext();)
+            tuples.add(it.next());
+        return tuples;
+    }
+
+    /**
+     * A page of zeros is an empty page.
+     */
+    @Test public void emptyPage() throws Exception {
+        SlottedHeapPage page = new SlottedHeapPage(pid, HeapPage.createEmptyPageData());
+        assertFalse(page.iterator().hasNext());
+        assertFalse(page.isSlotUsed(0));
+        assertTrue(page.getNumEmptySlots() > 0);
+    }
+
+    /**
+     * Short strings take only the room they need, so many more tuples fit on
+     * a page than on a HeapPage, and they survive a trip through the page
+     * image.
+     */
+    @Test public void insertShortStrings() throws Exception {
+        SlottedHeapPage page = new SlottedHeapPage(pid, HeapPage.createEmptyPageData());
+        int n = 0;
+        while (page.hasRoomFor(tuple(n, "row" + n))) {
+            Tuple t = tuple(n, "row" + n);
+            page.insertTuple(t);
+            assertEquals(n, t.getRecordId().getTupleNumber());
+            n++;
+        }
+        HeapPage fixed = new HeapPage(pid, HeapPage.createEmptyPageData());
+        assertTrue(n > 5 * fixed.getNumEmptySlots());
+
+        ArrayList<Tuple> read = tuples(new SlottedHeapPage(pid, page.getPageData()));
+        assertEquals(n, read.size());
+        for (int i = 0; i < n; i++) {
+            assertEquals(new IntField(i), read.get(i).getField(0));
+            assertEquals("row" + i, ((StringField) read.get(i).getField(1)).getValue());
+            assertEquals(new RecordId(pid, i), read.get(i).getRecordId());
+        }
+    }
+
+    /**
+     * Room freed by deletes is reused by compacting the page, and tuples
+     * that were not deleted keep their slots and values.
+     */
+    @Test public void deleteAndCompact() throws Exception {
+        SlottedHeapPage page = new SlottedHeapPage(pid, HeapPage.createEmptyPageData());
+        String filler = string(100, 'x');
+        int n = 0;
+        while (page.hasRoomFor(tuple(n, filler)))
+            page.insertTuple(tuple(n++, filler));
+        String longer = string(Type.STRING_LEN, 'y');
+        assertFalse(page.hasRoomFor(tuple(-1, longer)));
+
+        // delete every other tuple, none of which leaves room by itself
+        for (Tuple t : tuples(page)) {
+            if (((IntField) t.getField(0)).getValue() % 2 == 0)
+                page.deleteTuple(t);
+        }
+        Tuple added = tuple(-1, longer);
+        page.insertTuple(added);
+        assertEquals(0, added.getRecordId().getTupleNumber());
+
+        int odd = 0;
+        for (Tuple t : tuples(page)) {
+            int i = ((IntField) t.getField(0)).getValue();
+            if (i == -1) {
+                assertEquals(longer, ((StringField) t.getField(1)).getValue());
+                continue;
+            }
+            assertEquals(1, i % 2);
+            assertEquals(i, t.getRecordId().getTupleNumber());
+            assertEquals(filler, ((StringField) t.getField(1)).getValue());
+            odd++;
+        }
+        assertEquals(n / 2, odd);
+    }
+
+    /**
+     * Deleting the last tuples empties the page.
+     */
+    @Test public void deleteAll() throws Exception {
+        SlottedHeapPage page = new SlottedHeapPage(pid, HeapPage.createEmptyPageData());
+        int empty = page.getNumEmptySlots();
+        for (int i = 0; i < 10; i++)
+            page.insertTuple(tuple(i, "value" + i));
+        for (Tuple t : tuples(page))
+            page.deleteTuple(t);
+        assertFalse(page.iterator().hasNext());
+        assertEquals(empty, page.getNumEmptySlots());
+        assertArrayEquals(HeapPage.createEmptyPageData(), page.getPageData());
+
+        try {
+            Tuple t = tuple(0, "value");
+            t.setRecordId(new RecordId(pid, 0));
+            page.deleteTuple(t);
+            fail("expected exception for an empty slot");
+        } catch (DbException e) {
+            // expected
+        }
+    }
+
+    /**
+     * The before image is a page of the same format.
+     */
+    @Test public void beforeImage() throws Exception {
+        SlottedHeapPage page = new SlottedHeapPage(pid, HeapPage.createEmptyPageData());
+        page.insertTuple(tuple(1, "a"));
+        page.setBeforeImage();
+        page.insertTuple(tuple(2, "b"));
+        HeapPage before = page.getBeforeImage();
+        assertTrue(before instanceof SlottedHeapPage);
+        assertEquals(1, tuples(before).size());
+        assertEquals(2, tuples(page).size());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SlottedHeapPageTest.class);
+    }
+}
@@ -0,0 +1,126 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class SnapshotIsolationTest extends SimpleDbTestBase {
+    private HeapFile hf;
+    private BufferPool bp;
+    private HeapPageId p0;
+
+    @Before public void setUp() throws Exception {
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * 2, null, null);
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        bp.setIsolationLevel(IsolationLevel.SNAPSHOT);
+        p0 = new HeapPageId(hf.getId(), 0);
+    }
+
+    @After public void tearDown() {
+        bp.setIsolationLevel(IsolationLevel.SERIALIZABLE);
+    }
+
+    private int count(TransactionId tid) throws Exception {
+        int n = 0;
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    /** Deletes one tuple of page 0. */
+    private void deleteOne(TransactionId tid) throws Exception {
+        HeapPage page = (HeapPage) bp.getPage(tid, p0, Permissions.READ_WRITE);
+        Tuple t = page.iterator().next();
+        bp.deleteTuple(tid, t);
+    }
+
+    /**
+     * A reader neither waits for a writer's lock nor sees its uncommitted
+     * changes, and takes no lock itself.
+     */
+    @Test public void readerIgnoresWriter() throws Exception {
+        TransactionId writer = new TransactionId();
+        deleteOne(writer);
+
+        TransactionId reader = new TransactionId();
+        assertEquals(504 * 2, count(reader));
+        assertFalse(bp.holdsLock(reader, p0));
+
+        bp.transactionComplete(writer);
+        bp.transactionComplete(reader);
+    }
+
+    /**
+     * A commit is seen by snapshots taken after it, not by those taken before.
+     */
+    @Test public void snapshotIsStable() throws Exception {
+        TransactionId before = new TransactionId();
+        bp.beginSnapshot(before);
+
+        TransactionId writer = new TransactionId();
+        deleteOne(writer);
+        bp.transactionComplete(writer);
+
+        TransactionId after = new TransactionId();
+        assertEquals(504 * 2 - 1, count(after));
+        assertEquals(504 * 2, count(before));
+        bp.transactionComplete(before);
+        bp.transactionComplete(after);
+
+        // nothing is left for snapshots that are no longer open
+        assertEquals(0, bp.getVersionStore().size());
+    }
+
+    /**
+     * A transaction reads its snapshot plus its own changes.
+     */
+    @Test public void readsOwnWrites() throws Exception {
+        TransactionId tid = new TransactionId();
+        deleteOne(tid);
+        assertEquals(504 * 2 - 1, count(tid));
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Writing a page that changed after the writer's snapshot aborts it.
+     */
+    @Test public void firstCommitterWins() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        bp.beginSnapshot(t1);
+        bp.beginSnapshot(t2);
+
+        deleteOne(t1);
+        bp.transactionComplete(t1);
+
+        try {
+            bp.getPage(t2, p0, Permissions.READ_WRITE);
+            fail("expected t2 to abort");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        assertFalse(bp.holdsLock(t2, p0));
+
+        // another page, and a fresh snapshot, are fine
+        TransactionId t3 = new TransactionId();
+        bp.getPage(t3, p0, Permissions.READ_WRITE);
+        bp.getPage(t3, new HeapPageId(hf.getId(), 1), Permissions.READ_WRITE);
+        bp.transactionComplete(t3);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SnapshotIsolationTest.class);
+    }
+}
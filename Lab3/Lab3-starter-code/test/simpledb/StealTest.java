@@ -0,0 +1,123 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class StealTest extends SimpleDbTestBase {
+    private static final int POOL_PAGES = 4;
+    private static final int TABLE_PAGES = 10;
+
+    private HeapFile hf;
+    private BufferPool bp;
+
+    @Before public void setUp() throws Exception {
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * TABLE_PAGES, null, null);
+        bp = Database.resetBufferPool(POOL_PAGES);
+    }
+
+    @After public void tearDown() {
+        bp.setStealEnabled(false);
+    }
+
+    private ArrayList<Tuple> readAll(TransactionId tid) throws Exception {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            tuples.add(it.next());
+        }
+        it.close();
+        return tuples;
+    }
+
+    private int countOnDisk() throws Exception {
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId tid = new TransactionId();
+        int n = readAll(tid).size();
+        Database.getBufferPool().transactionComplete(tid);
+        return n;
+    }
+
+    /** Deletes every tuple in hf in one transaction, dirtying every page. */
+    private void deleteAll(TransactionId tid) throws Exception {
+        for (Tuple t : readAll(tid)) {
+            bp.deleteTuple(tid, t);
+        }
+    }
+
+    /**
+     * Without STEAL, a transaction cannot dirty more pages than the pool holds.
+     */
+    @Test(expected=DbException.class)
+    public void noStealFillsPool() throws Exception {
+        deleteAll(new TransactionId());
+    }
+
+    /**
+     * With STEAL, it can, and its changes survive commit.
+     */
+    @Test public void stealCommit() throws Exception {
+        bp.setStealEnabled(true);
+        TransactionId tid = new TransactionId();
+        deleteAll(tid);
+        bp.transactionComplete(tid, true);
+        assertEquals(0, countOnDisk());
+    }
+
+    /**
+     * Pages written before an abort are rolled back from the log.
+     */
+    @Test public void stealAbort() throws Exception {
+        bp.setStealEnabled(true);
+        TransactionId tid = new TransactionId();
+        deleteAll(tid);
+        bp.transactionComplete(tid, false);
+        assertEquals(504 * TABLE_PAGES, countOnDisk());
+    }
+
+    /**
+     * The same holds when the transaction aborts through Transaction.
+     */
+    @Test public void stealAbortTransaction() throws Exception {
+        bp.setStealEnabled(true);
+        Transaction t = new Transaction();
+        t.start();
+        deleteAll(t.getId());
+        t.abort();
+        assertEquals(504 * TABLE_PAGES, countOnDisk());
+    }
+
+    /**
+     * The background writer cleans pages without being asked.
+     */
+    @Test public void writerCleansAhead() throws Exception {
+        bp.setStealEnabled(true);
+        TransactionId tid = new TransactionId();
+        for (Tuple t : readAll(tid).subList(0, 504 * POOL_PAGES / 2)) {
+            bp.deleteTuple(tid, t);
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        while (bp.countDirtyPages() > POOL_PAGES * BackgroundWriter.DEFAULT_DIRTY_TARGET
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(bp.countDirtyPages() <= POOL_PAGES * BackgroundWriter.DEFAULT_DIRTY_TARGET);
+        bp.transactionComplete(tid, true);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(StealTest.class);
+    }
+}
@@ -4,6 +4,7 @@ import java.util.*;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import junit.framework.JUnit4TestAdapter;
 
 public class TransactionTest extends TestUtil.CreateHeapFile {
@@ -112,6 +113,35 @@ public class TransactionTest extends TestUtil.CreateHeapFile {
     testTransactionComplete(false);
   }
 
+  /**
+   * Unit test for BufferPool.transactionComplete().
+   * Committing one transaction does not write the pages another transaction
+   * has dirtied, and aborting it keeps the pages it only read cached.
+   */
+  @Test public void completeTouchesOnlyOwnPages() throws Exception {
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    HeapPage p = (HeapPage) bp.getPage(tid2, p1, Permissions.READ_WRITE);
+    p.markDirty(true, tid2);
+    bp.transactionComplete(tid1, true);
+    assertEquals(tid2, p.isDirty());
+
+    TransactionId tid3 = new TransactionId();
+    Page read = bp.getPage(tid3, p0, Permissions.READ_ONLY);
+    bp.transactionComplete(tid3, false);
+    assertSame(read, bp.getPage(tid1, p0, Permissions.READ_ONLY));
+    bp.transactionComplete(tid1, true);
+    bp.transactionComplete(tid2, false);
+  }
+
+  /**
+   * Unit test for BufferPool.transactionComplete() on a transaction that
+   * never locked a page.
+   */
+  @Test public void completeWithoutLocks() throws Exception {
+    bp.transactionComplete(tid1, true);
+    bp.transactionComplete(tid2, false);
+  }
+
   /**
    * JUnit suite target
    */
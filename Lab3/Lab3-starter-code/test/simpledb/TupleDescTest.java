@@ -133,6 +133,23 @@ public class TupleDescTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Unit test for TupleDesc.getFieldOffset()
+     */
+    @Test public void getFieldOffset() {
+        TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE });
+        assertEquals(0, td.getFieldOffset(0));
+        assertEquals(Type.INT_TYPE.getLen(), td.getFieldOffset(1));
+        assertEquals(Type.INT_TYPE.getLen() + Type.STRING_TYPE.getLen(), td.getFieldOffset(2));
+        assertEquals(td.getFieldOffset(2) + Type.INT_TYPE.getLen(), td.getSize());
+        try {
+            td.getFieldOffset(3);
+            fail("expected exception");
+        } catch (NoSuchElementException e) {
+            // expected
+        }
+    }
+
     /**
      * Unit test for TupleDesc.numFields()
      */